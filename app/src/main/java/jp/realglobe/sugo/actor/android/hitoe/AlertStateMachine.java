@@ -0,0 +1,337 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+/**
+ * 初期状態、警告中、異常発生中の移り変わりと、それに伴う時間の管理。
+ * 警告中の救助要請までの秒読み、異常検知イベントのタイマー、定期報告と平常時の要約の予定を受け持ち、
+ * 画面や通報先の操作は listener に任せる。
+ * 時間は全て scheduler で測るので、仮想時刻でも動かせる。
+ * 呼び出しは全て scheduler のスレッドから行うこと。状態の読み取りだけはどのスレッドからでもよい
+ */
+final class AlertStateMachine {
+
+    // 秒読みの残り時間を知らせる間隔
+    static final long COUNTDOWN_TICK = 100;
+
+    /**
+     * 状態
+     */
+    enum State {
+        MAIN,
+        WARNING,
+        EMERGENCY,
+    }
+
+    interface Listener {
+        /**
+         * 状態が変わった
+         *
+         * @param state 新しい状態
+         */
+        void onStateChanged(State state);
+
+        /**
+         * 警告中の秒読みが進んだ
+         *
+         * @param remaining 救助要請までの残り時間（ミリ秒）
+         */
+        void onCountdown(long remaining);
+
+        /**
+         * 報告を始める。以降の onReport の前に 1 回だけ呼ぶ
+         */
+        void onReportStarted();
+
+        /**
+         * 報告する
+         *
+         * @param scheduled この報告の予定時刻
+         */
+        void onReport(long scheduled);
+
+        /**
+         * 平常時の要約を送る
+         *
+         * @param scheduled この要約の予定時刻
+         */
+        void onSummary(long scheduled);
+    }
+
+    private final Scheduler scheduler;
+    private final Listener listener;
+
+    private final Runnable countdownTask = this::countdown;
+    private final Runnable timerTask = this::onTimer;
+    private final Runnable reportTask = () -> report(this.nextReport);
+    private final Runnable summaryTask = () -> summarize(this.nextSummary);
+
+    private volatile State state = State.MAIN;
+    // 警告中にした原因。初期状態なら null
+    private volatile String cause;
+    // 異常を検知した時刻
+    private volatile long detected;
+
+    // 警告中にしてから救助要請するまでの時間
+    private long delay;
+    // 救助要請する時刻
+    private long deadline;
+    // タイマーで警告中にするときの原因
+    private String timerCause;
+    // 報告中か
+    private boolean reporting;
+    // 報告間隔
+    private long reportInterval;
+    // 次の報告の予定時刻
+    private long nextReport;
+    // 平常時の要約の間隔。0 なら送らない
+    private long summaryInterval;
+    // 次の要約の予定時刻
+    private long nextSummary;
+
+    /**
+     * @param scheduler      時刻と処理の実行
+     * @param listener       状態の変化を受け取る
+     * @param delay          警告中にしてから救助要請するまでの時間（ミリ秒）
+     * @param reportInterval  報告間隔（ミリ秒）
+     * @param summaryInterval 平常時の要約の間隔（ミリ秒）。0 なら送らない
+     */
+    AlertStateMachine(Scheduler scheduler, Listener listener, long delay, long reportInterval, long summaryInterval) {
+        this.scheduler = scheduler;
+        this.listener = listener;
+        setDelay(delay);
+        setReportInterval(reportInterval);
+        setSummaryInterval(summaryInterval);
+    }
+
+    /**
+     * 初期状態に戻して、平常時の要約を始める
+     */
+    void reset() {
+        this.state = State.MAIN;
+        this.cause = null;
+        this.scheduler.cancel(this.timerTask);
+        this.scheduler.cancel(this.countdownTask);
+        this.reporting = false;
+        this.scheduler.cancel(this.reportTask);
+        this.listener.onStateChanged(State.MAIN);
+        this.scheduler.cancel(this.summaryTask);
+        scheduleSummary();
+    }
+
+    /**
+     * 全ての予定を取り消す。reset を呼ぶまで何も送らない
+     */
+    void stop() {
+        this.scheduler.cancel(this.timerTask);
+        this.scheduler.cancel(this.countdownTask);
+        this.reporting = false;
+        this.scheduler.cancel(this.reportTask);
+        this.scheduler.cancel(this.summaryTask);
+    }
+
+    /**
+     * 警告中にして、救助要請までの秒読みを始める
+     *
+     * @param cause 原因
+     * @return 警告中にしたら true。初期状態でなければ何もせず false
+     */
+    boolean warn(String cause) {
+        if (this.state != State.MAIN) {
+            // 初期状態からのみ
+            return false;
+        }
+        this.cause = cause;
+        this.state = State.WARNING;
+        this.detected = this.scheduler.now();
+        this.deadline = this.detected + this.delay;
+        this.scheduler.cancel(this.timerTask);
+        this.scheduler.cancel(this.countdownTask);
+        this.scheduler.cancel(this.summaryTask);
+        this.listener.onStateChanged(State.WARNING);
+        startReport();
+        countdown();
+        return true;
+    }
+
+    private void countdown() {
+        if (this.state != State.WARNING) {
+            return;
+        }
+        final long remaining = this.deadline - this.scheduler.now();
+        if (remaining <= 0) {
+            call();
+            return;
+        }
+        this.listener.onCountdown(remaining);
+        this.scheduler.postDelayed(this.countdownTask, Math.min(COUNTDOWN_TICK, remaining));
+    }
+
+    /**
+     * 異常発生中にする
+     *
+     * @return 異常発生中にしたら true。既に異常発生中なら false
+     */
+    boolean call() {
+        if (this.state == State.EMERGENCY) {
+            return false;
+        }
+        if (this.state == State.MAIN) {
+            // 警告を経ずに救助要請した
+            this.detected = this.scheduler.now();
+        }
+        this.state = State.EMERGENCY;
+        this.scheduler.cancel(this.timerTask);
+        this.scheduler.cancel(this.countdownTask);
+        this.scheduler.cancel(this.summaryTask);
+        // 最初の報告から異常発生中の準備を済ませておくように
+        this.listener.onStateChanged(State.EMERGENCY);
+        startReport();
+        return true;
+    }
+
+    /**
+     * 異常検知イベントを発生させるタイマーを作動させる
+     *
+     * @param cause 警告中にするときの原因
+     * @param delay 警告中にするまでの時間（ミリ秒）
+     */
+    void startTimer(String cause, long delay) {
+        this.timerCause = cause;
+        this.scheduler.cancel(this.timerTask);
+        this.scheduler.postDelayed(this.timerTask, delay);
+    }
+
+    private void onTimer() {
+        warn(this.timerCause);
+    }
+
+    /**
+     * 報告を始める。
+     * 既に報告中なら、状態が変わったことを次の定期報告を待たずにすぐ報告する
+     */
+    private void startReport() {
+        if (this.reporting) {
+            this.scheduler.cancel(this.reportTask);
+        } else {
+            this.reporting = true;
+            this.listener.onReportStarted();
+        }
+        report(this.scheduler.now());
+    }
+
+    private void report(long scheduled) {
+        if (!this.reporting) {
+            return;
+        }
+        this.listener.onReport(scheduled);
+        scheduleReport();
+    }
+
+    private void scheduleReport() {
+        this.nextReport = this.scheduler.now() + this.reportInterval;
+        this.scheduler.postDelayed(this.reportTask, this.reportInterval);
+    }
+
+    private void summarize(long scheduled) {
+        if (this.state != State.MAIN) {
+            return;
+        }
+        this.listener.onSummary(scheduled);
+        scheduleSummary();
+    }
+
+    private void scheduleSummary() {
+        if (this.summaryInterval <= 0) {
+            return;
+        }
+        this.nextSummary = this.scheduler.now() + this.summaryInterval;
+        this.scheduler.postDelayed(this.summaryTask, this.summaryInterval);
+    }
+
+    /**
+     * 警告中にしてから救助要請するまでの時間を変える。秒読み中なら次の警告から使う
+     *
+     * @param delay 救助要請までの時間（ミリ秒）
+     */
+    void setDelay(long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("negative delay " + delay);
+        }
+        this.delay = delay;
+    }
+
+    /**
+     * 報告間隔を変える。報告中なら、次の報告を新しい間隔で入れ直す
+     *
+     * @param reportInterval 報告間隔（ミリ秒）
+     */
+    void setReportInterval(long reportInterval) {
+        if (reportInterval <= 0) {
+            throw new IllegalArgumentException("non-positive report interval " + reportInterval);
+        }
+        if (reportInterval == this.reportInterval) {
+            return;
+        }
+        this.reportInterval = reportInterval;
+        if (this.reporting) {
+            this.scheduler.cancel(this.reportTask);
+            scheduleReport();
+        }
+    }
+
+    /**
+     * 平常時の要約の間隔を変える。平常時なら、次の要約を新しい間隔で入れ直す
+     *
+     * @param summaryInterval 要約の間隔（ミリ秒）。0 なら送らない
+     */
+    void setSummaryInterval(long summaryInterval) {
+        if (summaryInterval < 0) {
+            throw new IllegalArgumentException("negative summary interval " + summaryInterval);
+        }
+        if (summaryInterval == this.summaryInterval) {
+            return;
+        }
+        this.summaryInterval = summaryInterval;
+        this.scheduler.cancel(this.summaryTask);
+        if (this.state == State.MAIN) {
+            scheduleSummary();
+        }
+    }
+
+    /**
+     * @return 今の状態
+     */
+    State getState() {
+        return this.state;
+    }
+
+    /**
+     * @return 警告中にした原因。利用者が自分で救助要請したか、初期状態なら null
+     */
+    String getCause() {
+        return this.cause;
+    }
+
+    /**
+     * @return 異常を検知した時刻
+     */
+    long getDetected() {
+        return this.detected;
+    }
+
+}
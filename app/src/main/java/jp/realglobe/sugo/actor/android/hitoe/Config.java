@@ -0,0 +1,423 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 設定値。
+ * 設定を読み取って検査した時点のものを変更不能な形で持つ
+ */
+final class Config {
+
+    /**
+     * 平常時に受け取る生データ
+     */
+    enum RawData {
+        // 受け取らない。転倒を検知しない代わりに一番電池が持つ
+        NONE,
+        // 加速度だけ受け取る。転倒は検知する
+        ACC,
+        // 加速度と心電図を受け取る
+        ALL,
+    }
+
+    interface StringResources {
+        /**
+         * 文字列リソースを引く
+         *
+         * @param id 文字列リソースの ID
+         * @return 文字列
+         */
+        String call(int id);
+    }
+
+    interface StringPreferences {
+        /**
+         * 設定の文字列を引く
+         *
+         * @param key          設定のキー
+         * @param defaultValue 設定が無いときの値
+         * @return 設定値
+         */
+        String call(String key, String defaultValue);
+    }
+
+    // 読み取る設定のキー
+    private static final int[] KEY_IDS = {
+            R.string.key_delay,
+            R.string.key_server,
+            R.string.key_backup_servers,
+            R.string.key_emergency_servers,
+            R.string.key_actor_suffix,
+            R.string.key_report_interval,
+            R.string.key_timer,
+            R.string.key_heartrate_lower,
+            R.string.key_heartrate_upper,
+            R.string.key_abnormal_duration,
+            R.string.key_outbox_policy,
+            R.string.key_outbox_capacity,
+            R.string.key_signal_timeout,
+            R.string.key_main_buffering,
+            R.string.key_main_raw_data,
+            R.string.key_summary_interval,
+    };
+
+    private final long delay;
+    private final String server;
+    private final List<String> backupServers;
+    private final List<String> emergencyServers;
+    private final String actorKey;
+    private final long reportInterval;
+    private final long timer;
+    private final int heartrateLower;
+    private final int heartrateUpper;
+    private final long abnormalDuration;
+    private final Outbox.Policy outboxPolicy;
+    private final int outboxCapacity;
+    private final long signalTimeout;
+    private final long mainBuffering;
+    private final RawData mainRawData;
+    private final long summaryInterval;
+
+    private Config(long delay, String server, List<String> backupServers, List<String> emergencyServers, String actorKey, long reportInterval, long timer, int heartrateLower, int heartrateUpper, long abnormalDuration, Outbox.Policy outboxPolicy, int outboxCapacity, long signalTimeout, long mainBuffering, RawData mainRawData, long summaryInterval) {
+        this.delay = delay;
+        this.server = server;
+        this.backupServers = backupServers;
+        this.emergencyServers = emergencyServers;
+        this.actorKey = actorKey;
+        this.reportInterval = reportInterval;
+        this.timer = timer;
+        this.heartrateLower = heartrateLower;
+        this.heartrateUpper = heartrateUpper;
+        this.abnormalDuration = abnormalDuration;
+        this.outboxPolicy = outboxPolicy;
+        this.outboxCapacity = outboxCapacity;
+        this.signalTimeout = signalTimeout;
+        this.mainBuffering = mainBuffering;
+        this.mainRawData = mainRawData;
+        this.summaryInterval = summaryInterval;
+    }
+
+    /**
+     * 設定を読み取る
+     *
+     * @param context     文字列リソースを引くためのコンテキスト
+     * @param preferences 設定。null なら既定値を使う
+     * @return 設定値
+     * @throws IllegalArgumentException 不正な値があった
+     */
+    static Config load(Context context, @Nullable SharedPreferences preferences) {
+        return load(context::getString, preferences != null ? preferences::getString : null);
+    }
+
+    /**
+     * 設定を読み取る
+     *
+     * @param resources   文字列リソース
+     * @param preferences 設定。null なら既定値を使う
+     * @return 設定値
+     * @throws IllegalArgumentException 不正な値があった
+     */
+    static Config load(StringResources resources, @Nullable StringPreferences preferences) {
+        final Reader reader = new Reader(resources, preferences);
+        final long delay = 1_000L * reader.getLong(R.string.key_delay, R.string.default_delay);
+        final String server = reader.getString(R.string.key_server, R.string.default_server).trim();
+        final List<String> backupServers = reader.getList(R.string.key_backup_servers, R.string.default_backup_servers);
+        final List<String> emergencyServers = reader.getList(R.string.key_emergency_servers, R.string.default_emergency_servers);
+        final String actorKey = resources.call(R.string.actor_prefix) + reader.getString(R.string.key_actor_suffix, R.string.default_actor_suffix);
+        final long reportInterval = 1_000L * reader.getLong(R.string.key_report_interval, R.string.default_report_interval);
+        final long timer = 1_000L * reader.getLong(R.string.key_timer, R.string.default_timer);
+        final int heartrateLower = (int) reader.getLong(R.string.key_heartrate_lower, R.string.default_heartrate_lower);
+        final int heartrateUpper = (int) reader.getLong(R.string.key_heartrate_upper, R.string.default_heartrate_upper);
+        final long abnormalDuration = 1_000L * reader.getLong(R.string.key_abnormal_duration, R.string.default_abnormal_duration);
+        final String outboxPolicy = reader.getString(R.string.key_outbox_policy, R.string.default_outbox_policy).trim();
+        final int outboxCapacity = (int) reader.getLong(R.string.key_outbox_capacity, R.string.default_outbox_capacity);
+        final long signalTimeout = 1_000L * reader.getLong(R.string.key_signal_timeout, R.string.default_signal_timeout);
+        final long mainBuffering = 1_000L * reader.getLong(R.string.key_main_buffering, R.string.default_main_buffering);
+        final String mainRawData = reader.getString(R.string.key_main_raw_data, R.string.default_main_raw_data).trim();
+        final long summaryInterval = 1_000L * reader.getLong(R.string.key_summary_interval, R.string.default_summary_interval);
+
+        if (delay < 0) {
+            throw new IllegalArgumentException("negative delay " + delay);
+        } else if (server.isEmpty()) {
+            throw new IllegalArgumentException("empty server");
+        } else if (reportInterval <= 0) {
+            throw new IllegalArgumentException("non-positive report interval " + reportInterval);
+        } else if (timer < 0) {
+            throw new IllegalArgumentException("negative timer " + timer);
+        } else if (heartrateLower > heartrateUpper) {
+            throw new IllegalArgumentException("heartrate lower " + heartrateLower + " exceeds upper " + heartrateUpper);
+        } else if (abnormalDuration < 0) {
+            throw new IllegalArgumentException("negative abnormal duration " + abnormalDuration);
+        } else if (outboxCapacity <= 0) {
+            throw new IllegalArgumentException("non-positive outbox capacity " + outboxCapacity);
+        } else if (signalTimeout <= 0) {
+            throw new IllegalArgumentException("non-positive signal timeout " + signalTimeout);
+        } else if (mainBuffering < 0) {
+            throw new IllegalArgumentException("negative main buffering " + mainBuffering);
+        } else if (summaryInterval < 0) {
+            throw new IllegalArgumentException("negative summary interval " + summaryInterval);
+        }
+        return new Config(delay, server, backupServers, emergencyServers, actorKey, reportInterval, timer, heartrateLower, heartrateUpper, abnormalDuration,
+                Outbox.Policy.valueOf(outboxPolicy.toUpperCase(Locale.US)), outboxCapacity, signalTimeout, mainBuffering,
+                RawData.valueOf(mainRawData.toUpperCase(Locale.US)), summaryInterval);
+    }
+
+    /**
+     * 設定値を読み取るキーか調べる
+     *
+     * @param context 文字列リソースを引くためのコンテキスト
+     * @param key     設定のキー
+     * @return 設定値を読み取るキーなら true
+     */
+    static boolean isKey(Context context, @Nullable String key) {
+        for (int id : KEY_IDS) {
+            if (context.getString(id).equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 報告間隔だけを変えたものを返す
+     *
+     * @param reportInterval 報告間隔（ミリ秒）
+     * @return 設定値
+     * @throws IllegalArgumentException 不正な値だった
+     */
+    Config withReportInterval(long reportInterval) {
+        if (reportInterval <= 0) {
+            throw new IllegalArgumentException("non-positive report interval " + reportInterval);
+        }
+        return new Config(this.delay, this.server, this.backupServers, this.emergencyServers, this.actorKey, reportInterval, this.timer, this.heartrateLower, this.heartrateUpper, this.abnormalDuration,
+                this.outboxPolicy, this.outboxCapacity, this.signalTimeout, this.mainBuffering, this.mainRawData, this.summaryInterval);
+    }
+
+    /**
+     * 異常検知の閾値だけを変えたものを返す
+     *
+     * @param heartrateLower   心拍数の正常範囲の下限
+     * @param heartrateUpper   心拍数の正常範囲の上限
+     * @param abnormalDuration 異常とみなすまでの時間（ミリ秒）
+     * @return 設定値
+     * @throws IllegalArgumentException 不正な値だった
+     */
+    Config withHeartrateThresholds(int heartrateLower, int heartrateUpper, long abnormalDuration) {
+        if (heartrateLower > heartrateUpper) {
+            throw new IllegalArgumentException("heartrate lower " + heartrateLower + " exceeds upper " + heartrateUpper);
+        } else if (abnormalDuration < 0) {
+            throw new IllegalArgumentException("negative abnormal duration " + abnormalDuration);
+        }
+        return new Config(this.delay, this.server, this.backupServers, this.emergencyServers, this.actorKey, this.reportInterval, this.timer, heartrateLower, heartrateUpper, abnormalDuration,
+                this.outboxPolicy, this.outboxCapacity, this.signalTimeout, this.mainBuffering, this.mainRawData, this.summaryInterval);
+    }
+
+    /**
+     * @return 異常を検知してから救助を要請するまでの時間（ミリ秒）
+     */
+    long getDelay() {
+        return delay;
+    }
+
+    /**
+     * @return 通報先 sugo-hub の URL
+     */
+    String getServer() {
+        return server;
+    }
+
+    /**
+     * @return 通報先につながらないときに順に試す sugo-hub の URL
+     */
+    List<String> getBackupServers() {
+        return backupServers;
+    }
+
+    /**
+     * @return 異常発生中に通報先と並行して報告を送る sugo-hub の URL
+     */
+    List<String> getEmergencyServers() {
+        return emergencyServers;
+    }
+
+    /**
+     * @return 試す順に並べた全ての sugo-hub の URL
+     */
+    List<String> getServers() {
+        final List<String> servers = new ArrayList<>();
+        servers.add(this.server);
+        servers.addAll(this.backupServers);
+        return servers;
+    }
+
+    /**
+     * @return sugo-actor としてのキー
+     */
+    String getActorKey() {
+        return actorKey;
+    }
+
+    /**
+     * @return 報告間隔（ミリ秒）
+     */
+    long getReportInterval() {
+        return reportInterval;
+    }
+
+    /**
+     * @return 異常検知イベントを強制的に発生させるまでの時間（ミリ秒）
+     */
+    long getTimer() {
+        return timer;
+    }
+
+    /**
+     * @return 心拍数の正常範囲の下限
+     */
+    int getHeartrateLower() {
+        return heartrateLower;
+    }
+
+    /**
+     * @return 心拍数の正常範囲の上限
+     */
+    int getHeartrateUpper() {
+        return heartrateUpper;
+    }
+
+    /**
+     * @return 心拍数が正常範囲を外れ続けてから異常とみなすまでの時間（ミリ秒）
+     */
+    long getAbnormalDuration() {
+        return abnormalDuration;
+    }
+
+    /**
+     * @return つながっていない間に溜まった定期報告の間引き方
+     */
+    Outbox.Policy getOutboxPolicy() {
+        return outboxPolicy;
+    }
+
+    /**
+     * @return 溜めておく定期報告の最大数
+     */
+    int getOutboxCapacity() {
+        return outboxCapacity;
+    }
+
+    /**
+     * @return 心拍数が来ない、または 0 が続いてから信号を失ったとみなすまでの時間（ミリ秒）
+     */
+    long getSignalTimeout() {
+        return signalTimeout;
+    }
+
+    /**
+     * @return 平常時に心拍数をまとめて受け取る間隔（ミリ秒）。0 なら SDK に任せる
+     */
+    long getMainBuffering() {
+        return mainBuffering;
+    }
+
+    /**
+     * @return 平常時に受け取る生データ
+     */
+    RawData getMainRawData() {
+        return mainRawData;
+    }
+
+    /**
+     * @return 平常時に心拍数の要約を送る間隔（ミリ秒）。0 なら送らない
+     */
+    long getSummaryInterval() {
+        return summaryInterval;
+    }
+
+    @Override
+    public String toString() {
+        return "delay=" + this.delay +
+                ",server=" + this.server +
+                ",backupServers=" + this.backupServers +
+                ",emergencyServers=" + this.emergencyServers +
+                ",actorKey=" + this.actorKey +
+                ",reportInterval=" + this.reportInterval +
+                ",timer=" + this.timer +
+                ",heartrateLower=" + this.heartrateLower +
+                ",heartrateUpper=" + this.heartrateUpper +
+                ",abnormalDuration=" + this.abnormalDuration +
+                ",outboxPolicy=" + this.outboxPolicy +
+                ",outboxCapacity=" + this.outboxCapacity +
+                ",signalTimeout=" + this.signalTimeout +
+                ",mainBuffering=" + this.mainBuffering +
+                ",mainRawData=" + this.mainRawData +
+                ",summaryInterval=" + this.summaryInterval;
+    }
+
+    /**
+     * 設定の文字列を読む
+     */
+    private static class Reader {
+        private final StringResources resources;
+        private final StringPreferences preferences;
+
+        Reader(StringResources resources, @Nullable StringPreferences preferences) {
+            this.resources = resources;
+            this.preferences = preferences;
+        }
+
+        String getString(int keyId, int defaultId) {
+            final String defaultValue = this.resources.call(defaultId);
+            if (this.preferences == null) {
+                return defaultValue;
+            }
+            return this.preferences.call(this.resources.call(keyId), defaultValue);
+        }
+
+        /**
+         * 空白かカンマで区切った文字列を読む
+         */
+        List<String> getList(int keyId, int defaultId) {
+            final List<String> values = new ArrayList<>();
+            for (String value : getString(keyId, defaultId).split("[\\s,]+")) {
+                if (!value.isEmpty()) {
+                    values.add(value);
+                }
+            }
+            return Collections.unmodifiableList(values);
+        }
+
+        long getLong(int keyId, int defaultId) {
+            final String value = getString(keyId, defaultId);
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid " + this.resources.call(keyId) + " " + value, e);
+            }
+        }
+    }
+
+}
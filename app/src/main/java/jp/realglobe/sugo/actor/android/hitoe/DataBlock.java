@@ -0,0 +1,109 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.Arrays;
+
+/**
+ * 1 回の受信で届いた、1 つのデータキーの値の並び。
+ * 時刻と値を基本型の配列に詰め、データキーごとに使い回す
+ */
+final class DataBlock {
+
+    private final String dataKey;
+    private final int width;
+    private long[] dates = new long[16];
+    private double[] values;
+    private int count;
+    private long received;
+
+    /**
+     * @param dataKey データキー
+     * @param width   1 つの時刻あたりの値の数
+     */
+    DataBlock(String dataKey, int width) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("non-positive width " + width);
+        }
+        this.dataKey = dataKey;
+        this.width = width;
+        this.values = new double[this.dates.length * width];
+    }
+
+    /**
+     * 空にして使い始める
+     *
+     * @param received 届いた単調増加時刻（ミリ秒）
+     */
+    void reset(long received) {
+        this.count = 0;
+        this.received = received;
+    }
+
+    /**
+     * 時刻を 1 つ足す。値はその後 set で入れる
+     *
+     * @param date ミリ秒単位の UNIX 時間
+     * @return 足した位置
+     */
+    int add(long date) {
+        if (this.count == this.dates.length) {
+            this.dates = Arrays.copyOf(this.dates, 2 * this.count);
+            this.values = Arrays.copyOf(this.values, 2 * this.count * this.width);
+        }
+        this.dates[this.count] = date;
+        return this.count++;
+    }
+
+    /**
+     * 読み損ねた最後の時刻を取り除く
+     */
+    void removeLast() {
+        if (this.count > 0) {
+            this.count--;
+        }
+    }
+
+    void set(int index, int column, double value) {
+        this.values[index * this.width + column] = value;
+    }
+
+    String getDataKey() {
+        return this.dataKey;
+    }
+
+    int getWidth() {
+        return this.width;
+    }
+
+    int getCount() {
+        return this.count;
+    }
+
+    long getReceived() {
+        return this.received;
+    }
+
+    long getDate(int index) {
+        return this.dates[index];
+    }
+
+    double getValue(int index, int column) {
+        return this.values[index * this.width + column];
+    }
+
+}
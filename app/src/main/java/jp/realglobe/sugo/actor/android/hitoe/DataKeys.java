@@ -0,0 +1,132 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.Arrays;
+
+/**
+ * hitoe のデータキーの表。
+ * 出てきたデータキーに順に番号を振り、データキーの集まりを long のビット集合で表す
+ */
+final class DataKeys {
+
+    // 扱えるデータキーの最大数
+    static final int MAX_KEYS = Long.SIZE;
+
+    private static final char SEPARATOR = '|';
+
+    // 番号順のデータキー
+    private static final String[] keys = new String[MAX_KEYS];
+    private static int size;
+
+    private DataKeys() {
+    }
+
+    /**
+     * データキーの番号を返す。初めてのデータキーなら番号を振る
+     *
+     * @param text  データキーを含む文字列
+     * @param start データキーの始まり
+     * @param end   データキーの終わり
+     * @return 番号
+     */
+    static synchronized int index(String text, int start, int end) {
+        final int length = end - start;
+        for (int i = 0; i < size; i++) {
+            if (keys[i].length() == length && keys[i].regionMatches(0, text, start, length)) {
+                return i;
+            }
+        }
+        if (size >= MAX_KEYS) {
+            throw new IllegalArgumentException("too many data keys at " + text.substring(start, end));
+        }
+        keys[size] = text.substring(start, end);
+        return size++;
+    }
+
+    /**
+     * データキーの集まりを返す
+     *
+     * @param dataKeys データキー
+     * @return ビット集合
+     */
+    static long of(String... dataKeys) {
+        long set = 0;
+        for (String dataKey : dataKeys) {
+            set |= 1L << index(dataKey, 0, dataKey.length());
+        }
+        return set;
+    }
+
+    /**
+     * | 区切りのデータキーを読み取る
+     *
+     * @param text  データキーを含む文字列
+     * @param start 読み取りの始まり
+     * @param end   読み取りの終わり
+     * @return ビット集合
+     */
+    static long parse(String text, int start, int end) {
+        long set = 0;
+        int keyStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i < end && text.charAt(i) != SEPARATOR) {
+                continue;
+            }
+            if (i > keyStart) {
+                set |= 1L << index(text, keyStart, i);
+            }
+            keyStart = i + 1;
+        }
+        return set;
+    }
+
+    /**
+     * データキーの集まりを番号順の配列にする
+     *
+     * @param set ビット集合
+     * @return データキー
+     */
+    static synchronized String[] toArray(long set) {
+        final String[] names = new String[Long.bitCount(set)];
+        int n = 0;
+        for (long rest = set; rest != 0; rest &= rest - 1) {
+            names[n++] = keys[Long.numberOfTrailingZeros(rest)];
+        }
+        return names;
+    }
+
+    /**
+     * データキーの集まりを名前順に | でつないだ文字列にする
+     *
+     * @param set ビット集合
+     * @return 文字列
+     */
+    static String format(long set) {
+        final String[] names = toArray(set);
+        Arrays.sort(names);
+        final StringBuilder buff = new StringBuilder();
+        for (String name : names) {
+            if (buff.length() > 0) {
+                buff.append(SEPARATOR);
+            }
+            buff.append(name);
+        }
+        return buff.toString();
+    }
+
+}
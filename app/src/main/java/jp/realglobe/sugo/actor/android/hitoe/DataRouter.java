@@ -0,0 +1,230 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * hitoe のレシーバーに届いたデータを、データキーごとの読み取り方で読んで受け取り手に配る。
+ * 配るのは SDK のスレッドで、受け取り手は届いた値を使い回しの DataBlock で受け取る
+ */
+final class DataRouter {
+
+    private static final String LOG_TAG = DataRouter.class.getName();
+
+    interface Decoder {
+        /**
+         * @return 1 つの時刻あたりの値の数
+         */
+        int getWidth();
+
+        /**
+         * 今の行を読んで足す
+         *
+         * @param scanner 行まで進めた走査
+         * @param block   足し先
+         * @throws IllegalArgumentException 読めなかった
+         */
+        void decode(ResponseScanner scanner, DataBlock block);
+    }
+
+    interface Receiver {
+        /**
+         * 値を受け取る。block は呼び出しの間だけ有効
+         *
+         * @param block 値
+         */
+        void receive(DataBlock block);
+    }
+
+    /**
+     * 時刻に続いて width 個の数値が並ぶ行の読み取り方を返す
+     *
+     * @param width 時刻あたりの値の数
+     * @return 読み取り方
+     */
+    static Decoder columns(int width) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("non-positive width " + width);
+        }
+        return new Decoder() {
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public void decode(ResponseScanner scanner, DataBlock block) {
+                if (scanner.getColumnCount() < width + 1) {
+                    throw new IllegalArgumentException("too few columns in " + scanner.getRow());
+                }
+                final int index = block.add(scanner.getLong(0));
+                try {
+                    for (int i = 0; i < width; i++) {
+                        block.set(index, i, scanner.getDouble(i + 1));
+                    }
+                } catch (IllegalArgumentException e) {
+                    block.removeLast();
+                    throw e;
+                }
+            }
+        };
+    }
+
+    // データキーの番号ごとの読み取り方と受け取り手。書き換え時に配列ごと差し替える
+    private volatile Decoder[] decoders = new Decoder[DataKeys.MAX_KEYS];
+    private volatile Receiver[][] receivers = new Receiver[DataKeys.MAX_KEYS][];
+    // データキーの番号ごとの使い回しの入れ物。SDK のスレッドだけが触る
+    private final DataBlock[] blocks = new DataBlock[DataKeys.MAX_KEYS];
+    // 使い回しの走査。SDK のスレッドだけが触る
+    private final ResponseScanner scanner = new ResponseScanner();
+    // 読めなかった行の数
+    private volatile long errors;
+
+    /**
+     * データキーの読み取り方を登録する
+     *
+     * @param dataKey データキー
+     * @param decoder 読み取り方
+     */
+    synchronized void register(String dataKey, Decoder decoder) {
+        final Decoder[] decoders = this.decoders.clone();
+        decoders[DataKeys.index(dataKey, 0, dataKey.length())] = decoder;
+        this.decoders = decoders;
+    }
+
+    /**
+     * 受け取り手を加える
+     *
+     * @param dataKey  データキー
+     * @param receiver 受け取り手
+     * @return 受け取るデータキーが増えたら true
+     */
+    synchronized boolean subscribe(String dataKey, Receiver receiver) {
+        final int index = DataKeys.index(dataKey, 0, dataKey.length());
+        if (this.decoders[index] == null) {
+            throw new IllegalArgumentException("no decoder for " + dataKey);
+        }
+        final Receiver[][] receivers = this.receivers.clone();
+        final Receiver[] old = receivers[index];
+        if (old == null) {
+            receivers[index] = new Receiver[]{receiver};
+        } else {
+            receivers[index] = Arrays.copyOf(old, old.length + 1);
+            receivers[index][old.length] = receiver;
+        }
+        this.receivers = receivers;
+        return old == null;
+    }
+
+    /**
+     * 受け取り手を外す
+     *
+     * @param dataKey  データキー
+     * @param receiver 受け取り手
+     * @return 受け取るデータキーが減ったら true
+     */
+    synchronized boolean unsubscribe(String dataKey, Receiver receiver) {
+        final int index = DataKeys.index(dataKey, 0, dataKey.length());
+        final Receiver[] old = this.receivers[index];
+        if (old == null) {
+            return false;
+        }
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] != receiver) {
+                continue;
+            }
+            final Receiver[][] receivers = this.receivers.clone();
+            if (old.length == 1) {
+                receivers[index] = null;
+            } else {
+                receivers[index] = new Receiver[old.length - 1];
+                System.arraycopy(old, 0, receivers[index], 0, i);
+                System.arraycopy(old, i + 1, receivers[index], i, old.length - i - 1);
+            }
+            this.receivers = receivers;
+            return old.length == 1;
+        }
+        return false;
+    }
+
+    /**
+     * @return 受け取り手のいるデータキーのビット集合
+     */
+    long getSubscribedKeys() {
+        final Receiver[][] receivers = this.receivers;
+        long keys = 0;
+        for (int i = 0; i < receivers.length; i++) {
+            if (receivers[i] != null) {
+                keys |= 1L << i;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return 読めなかった行の数
+     */
+    long getErrors() {
+        return this.errors;
+    }
+
+    /**
+     * 届いたデータを読んで配る。SDK のスレッドからだけ呼ぶこと
+     *
+     * @param dataKey  データキー
+     * @param data     データ
+     * @param received 届いた単調増加時刻（ミリ秒）
+     */
+    void dispatch(String dataKey, String data, long received) {
+        final int index = DataKeys.index(dataKey, 0, dataKey.length());
+        final Decoder decoder = this.decoders[index];
+        final Receiver[] receivers = this.receivers[index];
+        if (decoder == null || receivers == null) {
+            return;
+        }
+        DataBlock block = this.blocks[index];
+        if (block == null || block.getWidth() != decoder.getWidth()) {
+            block = new DataBlock(dataKey, decoder.getWidth());
+            this.blocks[index] = block;
+        }
+        block.reset(received);
+        final ResponseScanner scanner = this.scanner;
+        scanner.reset(data);
+        while (scanner.nextRow()) {
+            try {
+                decoder.decode(scanner, block);
+            } catch (IllegalArgumentException e) {
+                this.errors++;
+                Log.w(LOG_TAG, e.toString());
+            }
+        }
+        if (block.getCount() == 0) {
+            return;
+        }
+        for (Receiver receiver : receivers) {
+            try {
+                receiver.receive(block);
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, e.toString());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 複数の通報先に同時に送った報告が、最初にどこかで送り出されるまでを数える。
+ * sugo-hub は受け取ったことを返さないので、どれかの経路が emitter に渡した時点を送り出しとする。
+ * 相手に届いたことまでは分からない
+ */
+final class DeliveryTracker {
+
+    // 送り出すのを待つ報告の最大数
+    static final int MAX_PENDING = 256;
+
+    // 統計のキー
+    private static final String KEY_REPORTS = "reports";
+    private static final String KEY_EMITTED = "emitted";
+    private static final String KEY_LAST_EMIT_LATENCY = "lastEmitLatency";
+    private static final String KEY_AVERAGE_EMIT_LATENCY = "averageEmitLatency";
+    private static final String KEY_FIRSTS = "firsts";
+
+    // 送り出すのを待っている報告の通し番号
+    private final Map<Long, Boolean> pending = new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > MAX_PENDING;
+        }
+    };
+
+    private long reports;
+    private long emitted;
+    private long lastLatency = -1;
+    private long totalLatency;
+    // 通報先ごとの、最初に送り出した数
+    private final Map<String, Integer> firsts = new HashMap<>();
+
+    /**
+     * 報告を送り始めたことを記録する
+     *
+     * @param sequence 報告の通し番号
+     */
+    synchronized void offered(long sequence) {
+        this.pending.put(sequence, Boolean.TRUE);
+        this.reports++;
+    }
+
+    /**
+     * 報告をどこかの経路で送り出したことを記録する。2 つ目以降は数えない
+     *
+     * @param server   送り出した通報先
+     * @param sequence 報告の通し番号
+     * @param latency  送信待ちに入れてから送り出すまでの時間（ミリ秒）
+     */
+    synchronized void emitted(String server, long sequence, long latency) {
+        if (this.pending.remove(sequence) == null) {
+            return;
+        }
+        this.emitted++;
+        this.lastLatency = latency;
+        this.totalLatency += latency;
+        final Integer count = this.firsts.get(server);
+        this.firsts.put(server, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * 統計を返す
+     *
+     * @return 送り始めた数、どこかで送り出した数、最初に送り出すまでの時間、通報先ごとの最初に送り出した数
+     */
+    synchronized Map<String, Object> getStats() {
+        final Map<String, Object> stats = new HashMap<>();
+        stats.put(KEY_REPORTS, this.reports);
+        stats.put(KEY_EMITTED, this.emitted);
+        stats.put(KEY_LAST_EMIT_LATENCY, this.lastLatency >= 0 ? this.lastLatency : null);
+        stats.put(KEY_AVERAGE_EMIT_LATENCY, this.emitted > 0 ? (double) this.totalLatency / this.emitted : null);
+        stats.put(KEY_FIRSTS, new HashMap<>(this.firsts));
+        return stats;
+    }
+
+}
@@ -0,0 +1,157 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 加速度から転倒を検知する。
+ * 大きな衝撃の後、加速度の大きさがほとんど揺れない状態が続いたら転倒とみなす。
+ * 揺れは直近の決まった数の加速度の大きさの標準偏差で測り、1 つの加速度ごとの更新は定数時間で済ませる
+ */
+final class FallDetector {
+
+    // 衝撃とみなす加速度の大きさ（G）
+    static final float IMPACT_THRESHOLD = 2.5f;
+    // 動いていないとみなす揺れ（G）
+    static final float INACTIVITY_THRESHOLD = 0.08f;
+    // 衝撃の後、倒れ込むのを待つ時間
+    static final long SETTLE_TIME = 2_000;
+    // 転倒とみなすまで動かない時間
+    static final long INACTIVITY_DURATION = 10_000;
+    // 衝撃の後、動かなくならなければ忘れるまでの時間
+    static final long IMPACT_TIMEOUT = 30_000;
+    // 揺れを測る加速度の数
+    static final int WINDOW = 32;
+
+    // 統計のキー
+    private static final String KEY_IMPACTS = "impacts";
+    private static final String KEY_FALLS = "falls";
+    private static final String KEY_PEAK = "peak";
+
+    // 直近の加速度の大きさ
+    private final float[] window = new float[WINDOW];
+    private int count;
+    private int next;
+    private double sum;
+    private double sumSquares;
+
+    // 衝撃を受けた時刻。受けていなければ負
+    private long impact = -1;
+    // 動かなくなった時刻。動いていれば負
+    private long inactiveSince = -1;
+    // 今の衝撃を転倒として数えたか
+    private boolean fallen;
+
+    private int impacts;
+    private int falls;
+    private float peak;
+
+    /**
+     * 加速度を入れて転倒度を更新する
+     *
+     * @param date ミリ秒単位の UNIX 時間
+     * @param x    x 軸の加速度（G）
+     * @param y    y 軸の加速度（G）
+     * @param z    z 軸の加速度（G）
+     * @return 転倒度。0 なら衝撃無し、0 より大きければ衝撃の後、1 以上なら転倒
+     */
+    synchronized float update(long date, float x, float y, float z) {
+        final float magnitude = (float) Math.sqrt(x * x + y * y + z * z);
+        push(magnitude);
+
+        if (magnitude >= IMPACT_THRESHOLD) {
+            if (this.impact < 0) {
+                this.impacts++;
+            }
+            this.impact = date;
+            this.inactiveSince = -1;
+            this.fallen = false;
+            this.peak = Math.max(this.peak, magnitude);
+            return Float.MIN_VALUE;
+        } else if (this.impact < 0) {
+            return 0;
+        } else if (date - this.impact < SETTLE_TIME) {
+            return Float.MIN_VALUE;
+        }
+
+        if (this.count < WINDOW || deviation() > INACTIVITY_THRESHOLD) {
+            // 動いている
+            this.inactiveSince = -1;
+            if (date - this.impact > IMPACT_TIMEOUT) {
+                this.impact = -1;
+                return 0;
+            }
+            return Float.MIN_VALUE;
+        }
+        if (this.inactiveSince < 0) {
+            this.inactiveSince = date;
+        }
+        final float score = Math.max(Float.MIN_VALUE, (float) (date - this.inactiveSince) / INACTIVITY_DURATION);
+        if (score >= 1 && !this.fallen) {
+            this.fallen = true;
+            this.falls++;
+        }
+        return score;
+    }
+
+    private void push(float magnitude) {
+        if (this.count == WINDOW) {
+            final float old = this.window[this.next];
+            this.sum -= old;
+            this.sumSquares -= old * old;
+        } else {
+            this.count++;
+        }
+        this.window[this.next] = magnitude;
+        this.sum += magnitude;
+        this.sumSquares += magnitude * magnitude;
+        this.next = (this.next + 1) % WINDOW;
+    }
+
+    /**
+     * @return 直近の加速度の大きさの標準偏差
+     */
+    private double deviation() {
+        final double mean = this.sum / this.count;
+        return Math.sqrt(Math.max(0, this.sumSquares / this.count - mean * mean));
+    }
+
+    /**
+     * 衝撃を忘れる
+     */
+    synchronized void reset() {
+        this.impact = -1;
+        this.inactiveSince = -1;
+        this.fallen = false;
+    }
+
+    /**
+     * 統計を返す
+     *
+     * @return 衝撃の数、転倒の数、衝撃の最大（G）
+     */
+    synchronized Map<String, Object> getStats() {
+        final Map<String, Object> stats = new HashMap<>();
+        stats.put(KEY_IMPACTS, this.impacts);
+        stats.put(KEY_FALLS, this.falls);
+        stats.put(KEY_PEAK, this.peak);
+        return stats;
+    }
+
+}
@@ -0,0 +1,56 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Handler のスレッドで、端末起動からの時刻で処理を行う
+ */
+final class HandlerScheduler implements Scheduler {
+
+    private final Handler handler;
+
+    /**
+     * @param handler 処理を行うスレッドの handler
+     */
+    HandlerScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void post(Runnable task) {
+        this.handler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        this.handler.postDelayed(task, delay);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        this.handler.removeCallbacks(task);
+    }
+
+}
@@ -0,0 +1,226 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.support.v4.content.ContextCompat;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 直近の心拍数の推移を描く。
+ * 描いた線は画面外のビットマップに残しておき、新しい値が入ったら古い絵を左にずらして新しい区間だけを描き足す
+ */
+public class HeartrateChartView extends View {
+
+    // 縦軸の範囲
+    private static final float MIN_HEARTRATE = 30;
+    private static final float MAX_HEARTRATE = 210;
+    // 目盛りを引く心拍数
+    private static final float[] GRID_HEARTRATES = {60, 100, 150};
+
+    private static final float LINE_WIDTH_DP = 2;
+
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint gridPaint = new Paint();
+    // 描画待ちか
+    private final AtomicBoolean invalidated = new AtomicBoolean();
+    private final HeartrateSeries.Listener listener = () -> {
+        if (this.invalidated.compareAndSet(false, true)) {
+            postInvalidateOnAnimation();
+        }
+    };
+
+    private HeartrateSeries series;
+    private boolean attached;
+
+    // 描いた絵と、ずらすときの作業用
+    private Bitmap front;
+    private Bitmap back;
+    private final Canvas backCanvas = new Canvas();
+    // drawLines に渡す頂点列
+    private float[] points;
+    // 刻み 1 つ分の横幅
+    private double step;
+    // 描き終えた最新の刻みの通し番号。描いていなければ負
+    private long drawn = -1;
+
+    public HeartrateChartView(Context context) {
+        this(context, null);
+    }
+
+    public HeartrateChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        final float density = context.getResources().getDisplayMetrics().density;
+        this.linePaint.setColor(ContextCompat.getColor(context, R.color.colorChartLine));
+        this.linePaint.setStrokeWidth(LINE_WIDTH_DP * density);
+        this.linePaint.setStyle(Paint.Style.STROKE);
+        this.gridPaint.setColor(ContextCompat.getColor(context, R.color.colorChartGrid));
+        this.gridPaint.setStrokeWidth(density);
+    }
+
+    /**
+     * 描く心拍数を設定する。UI スレッドで呼ぶ
+     *
+     * @param series 描く心拍数
+     */
+    void setSeries(HeartrateSeries series) {
+        if (this.series != null) {
+            this.series.setListener(null);
+        }
+        this.series = series;
+        this.points = new float[4 * series.capacity()];
+        if (this.attached) {
+            series.setListener(this.listener);
+        }
+        this.drawn = -1;
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        this.attached = true;
+        if (this.series != null) {
+            this.series.setListener(this.listener);
+            this.drawn = -1;
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        this.attached = false;
+        if (this.series != null) {
+            this.series.setListener(null);
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (this.front != null) {
+            this.front.recycle();
+            this.back.recycle();
+            this.front = null;
+            this.back = null;
+        }
+        if (w > 0 && h > 0) {
+            this.front = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            this.back = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        }
+        this.drawn = -1;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        this.invalidated.set(false);
+        if (this.front == null || this.series == null) {
+            return;
+        }
+        final long head = this.series.getHead();
+        if (head >= 0 && head != this.drawn) {
+            if (this.drawn < 0 || head - this.drawn >= this.series.capacity()) {
+                redraw(head);
+            } else {
+                scroll(head);
+            }
+            this.drawn = head;
+        }
+        canvas.drawBitmap(this.front, 0, 0, null);
+    }
+
+    /**
+     * 全部描き直す。大きさが変わったときや、描いていない期間が長いときだけ
+     *
+     * @param head 最新の刻みの通し番号
+     */
+    private void redraw(long head) {
+        this.step = (double) getWidth() / (this.series.capacity() - 1);
+        this.front.eraseColor(Color.TRANSPARENT);
+        this.backCanvas.setBitmap(this.front);
+        drawGrid(this.backCanvas, 0, getWidth());
+        drawSegments(this.backCanvas, head - this.series.capacity() + 1, head, head);
+        this.backCanvas.setBitmap(null);
+    }
+
+    /**
+     * 前に描いた絵をずらして新しい区間を描き足す
+     *
+     * @param head 最新の刻みの通し番号
+     */
+    private void scroll(long head) {
+        // 丸め誤差が溜まらないように、ずらす量は通し番号から求めた整数の位置の差にする
+        final int shift = (int) (Math.round(head * this.step) - Math.round(this.drawn * this.step));
+        this.back.eraseColor(Color.TRANSPARENT);
+        this.backCanvas.setBitmap(this.back);
+        this.backCanvas.drawBitmap(this.front, -shift, 0, null);
+        drawGrid(this.backCanvas, getWidth() - shift, getWidth());
+        // 前回の最新の刻みから線をつなぐ
+        drawSegments(this.backCanvas, this.drawn, head, head);
+        this.backCanvas.setBitmap(null);
+
+        final Bitmap tmp = this.front;
+        this.front = this.back;
+        this.back = tmp;
+    }
+
+    private void drawGrid(Canvas canvas, float left, float right) {
+        for (float heartrate : GRID_HEARTRATES) {
+            final float y = y(heartrate);
+            canvas.drawLine(left, y, right, y, this.gridPaint);
+        }
+    }
+
+    /**
+     * from から to までの刻みの間を線でつなぐ。値の無い刻みの前後はつながない
+     */
+    private void drawSegments(Canvas canvas, long from, long to, long head) {
+        int count = 0;
+        float prev = this.series.get(from);
+        for (long i = from + 1; i <= to; i++) {
+            final float cur = this.series.get(i);
+            if (!Float.isNaN(prev) && !Float.isNaN(cur)) {
+                this.points[count++] = x(i - 1, head);
+                this.points[count++] = y(prev);
+                this.points[count++] = x(i, head);
+                this.points[count++] = y(cur);
+            }
+            prev = cur;
+        }
+        if (count > 0) {
+            canvas.drawLines(this.points, 0, count, this.linePaint);
+        }
+    }
+
+    private float x(long index, long head) {
+        return getWidth() - 1 - (Math.round(head * this.step) - Math.round(index * this.step));
+    }
+
+    private float y(float heartrate) {
+        final float clipped = Math.max(MIN_HEARTRATE, Math.min(MAX_HEARTRATE, heartrate));
+        return (getHeight() - 1) * (MAX_HEARTRATE - clipped) / (MAX_HEARTRATE - MIN_HEARTRATE);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+/**
+ * 心拍数の異常を検知する。
+ * 心拍数が正常範囲を外れ続けている時間を、異常とみなすまでの時間で割ったものを異常度とする
+ */
+class HeartrateDetector {
+
+    // 正常範囲の下限
+    private volatile int lower;
+    // 正常範囲の上限
+    private volatile int upper;
+    // 異常とみなすまでの時間（ミリ秒）
+    private volatile long duration;
+
+    // 正常範囲を外れ始めた時刻。外れていなければ負
+    private long abnormalSince = -1;
+
+    /**
+     * @param lower    正常範囲の下限
+     * @param upper    正常範囲の上限
+     * @param duration 異常とみなすまでの時間（ミリ秒）
+     */
+    HeartrateDetector(int lower, int upper, long duration) {
+        setThresholds(lower, upper, duration);
+    }
+
+    /**
+     * 閾値を変える
+     *
+     * @param lower    正常範囲の下限
+     * @param upper    正常範囲の上限
+     * @param duration 異常とみなすまでの時間（ミリ秒）
+     */
+    void setThresholds(int lower, int upper, long duration) {
+        if (lower > upper) {
+            throw new IllegalArgumentException("lower " + lower + " exceeds upper " + upper);
+        } else if (duration < 0) {
+            throw new IllegalArgumentException("negative duration " + duration);
+        }
+        this.lower = lower;
+        this.upper = upper;
+        this.duration = duration;
+    }
+
+    int getLower() {
+        return this.lower;
+    }
+
+    int getUpper() {
+        return this.upper;
+    }
+
+    long getDuration() {
+        return this.duration;
+    }
+
+    /**
+     * 心拍数を入れて異常度を更新する
+     *
+     * @param date      ミリ秒単位の UNIX 時間
+     * @param heartrate 心拍数。0 以下は測定できていないものとして、これまでの経過を変えずに 0 を返す
+     * @return 異常度。0 なら正常か測定できていない、1 以上なら異常
+     */
+    synchronized float update(long date, int heartrate) {
+        if (heartrate <= 0) {
+            return 0;
+        }
+        if (this.lower <= heartrate && heartrate <= this.upper) {
+            this.abnormalSince = -1;
+            return 0;
+        }
+        if (this.abnormalSince < 0) {
+            this.abnormalSince = date;
+        }
+        return score(date);
+    }
+
+    private float score(long date) {
+        if (this.abnormalSince < 0) {
+            return 0;
+        } else if (this.duration <= 0) {
+            return 1;
+        }
+        return Math.max(Float.MIN_VALUE, (float) (date - this.abnormalSince) / this.duration);
+    }
+
+    /**
+     * 初期状態に戻す
+     */
+    synchronized void reset() {
+        this.abnormalSince = -1;
+    }
+
+}
@@ -0,0 +1,122 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 心拍数を表示する。
+ * どのスレッドからでも最新値を入れられ、表示の更新は画面の描画に合わせて 1 フレームに高々 1 回にまとめる
+ */
+class HeartrateDisplay implements Choreographer.FrameCallback {
+
+    // 表示文字列を使い回す心拍数の範囲
+    private static final String[] TEXTS = new String[256];
+
+    static {
+        for (int i = 0; i < TEXTS.length; i++) {
+            TEXTS[i] = String.valueOf(i);
+        }
+    }
+
+    private final Choreographer choreographer;
+    // フレームを要求済みか
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    // 最新の心拍数
+    private volatile int latest;
+    // 画面が見えているか
+    private volatile boolean running;
+
+    // 以下は UI スレッドでのみ触る
+    private TextView view;
+    // 表示中の心拍数
+    private int shown = -1;
+
+    /**
+     * UI スレッドで作る
+     */
+    HeartrateDisplay() {
+        this.choreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * 心拍数を入れる
+     *
+     * @param heartrate 心拍数
+     */
+    void set(int heartrate) {
+        this.latest = heartrate;
+        schedule();
+    }
+
+    /**
+     * 表示先を変える。UI スレッドで呼ぶ
+     *
+     * @param view 表示先
+     */
+    void setView(TextView view) {
+        this.view = view;
+        this.shown = -1;
+        show();
+    }
+
+    /**
+     * 表示の更新を再開する。UI スレッドで呼ぶ
+     */
+    void resume() {
+        this.running = true;
+        show();
+    }
+
+    /**
+     * 表示の更新を止める。UI スレッドで呼ぶ
+     */
+    void pause() {
+        this.running = false;
+        this.choreographer.removeFrameCallback(this);
+        this.scheduled.set(false);
+    }
+
+    private void schedule() {
+        if (!this.running) {
+            return;
+        }
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        this.scheduled.set(false);
+        show();
+    }
+
+    private void show() {
+        final int heartrate = this.latest;
+        if (this.view == null || heartrate == this.shown) {
+            return;
+        }
+        this.view.setText(0 <= heartrate && heartrate < TEXTS.length ? TEXTS[heartrate] : String.valueOf(heartrate));
+        this.shown = heartrate;
+    }
+
+}
@@ -0,0 +1,293 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 過去の心拍数を保持して、期間ごとにまとめて返す。
+ * 直近の生の値はメモリに、それより前は細かさの違う段ごとにファイルにまとめて持つので、
+ * 使うメモリとディスクの量は一定に収まる
+ */
+final class HeartrateHistory implements Closeable {
+
+    private static final String LOG_TAG = HeartrateHistory.class.getName();
+
+    // 1 回の問い合わせで返す区間の最大数
+    static final int MAX_BUCKETS = 2_000;
+
+    // 生の値を保持する数
+    static final int RAW_CAPACITY = 1_024;
+    // 段ごとの、まとめる期間の長さと保持する数
+    static final long[] TIER_RESOLUTIONS = {1_000, 60_000};
+    static final int[] TIER_CAPACITIES = {6 * 60 * 60, 7 * 24 * 60};
+
+    // 生の値。時刻の昇順に並べた環状バッファ
+    private final long[] dates;
+    private final short[] values;
+    // 最古の要素の位置
+    private int start;
+    private int size;
+
+    // 細かい順の段。ファイルが使えなければ空
+    private final RollupTier[] tiers;
+
+    /**
+     * @param directory 段ごとのファイルを置く場所。null ならメモリ上の生の値だけを持つ
+     * @param prefix    ファイル名の接頭辞
+     */
+    HeartrateHistory(@Nullable File directory, String prefix) {
+        this(directory, prefix, RAW_CAPACITY, TIER_RESOLUTIONS, TIER_CAPACITIES);
+    }
+
+    HeartrateHistory(@Nullable File directory, String prefix, int rawCapacity, long[] resolutions, int[] capacities) {
+        this.dates = new long[rawCapacity];
+        this.values = new short[rawCapacity];
+        this.tiers = openTiers(directory, prefix, resolutions, capacities);
+    }
+
+    private static RollupTier[] openTiers(@Nullable File directory, String prefix, long[] resolutions, int[] capacities) {
+        if (directory == null) {
+            return new RollupTier[0];
+        }
+        final RollupTier[] tiers = new RollupTier[resolutions.length];
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("cannot create " + directory);
+            }
+            for (int i = 0; i < tiers.length; i++) {
+                tiers[i] = RollupTier.open(new File(directory, prefix + "_" + resolutions[i] + ".bin"), resolutions[i], capacities[i]);
+                if (i > 0) {
+                    tiers[i - 1].setNext(tiers[i]);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Rollup files are not available: " + e);
+            closeAll(tiers);
+            return new RollupTier[0];
+        }
+        return tiers;
+    }
+
+    /**
+     * 心拍数を入れる
+     *
+     * @param date      ミリ秒単位の UNIX 時間
+     * @param heartrate 心拍数。0 以下は測定できていないものとして捨てる
+     */
+    synchronized void add(long date, int heartrate) {
+        if (heartrate <= 0) {
+            return;
+        } else if (this.size > 0 && date <= this.dates[slot(this.size - 1)]) {
+            // 時刻が戻るものは捨てる
+            return;
+        }
+        if (this.size < this.dates.length) {
+            this.size++;
+        } else {
+            this.start = slot(1);
+        }
+        final int slot = slot(this.size - 1);
+        this.dates[slot] = date;
+        this.values[slot] = (short) Math.min(heartrate, Short.MAX_VALUE);
+
+        if (this.tiers.length > 0) {
+            try {
+                // 粗い段へは細かい段から順に渡っていく
+                this.tiers[0].add(date, heartrate);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Rollup failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * 書き込み待ちのものをファイルに書く
+     */
+    synchronized void flush() {
+        for (RollupTier tier : this.tiers) {
+            try {
+                tier.flush();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Flush failed: " + e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeAll(this.tiers);
+    }
+
+    private static void closeAll(RollupTier[] tiers) {
+        for (RollupTier tier : tiers) {
+            if (tier == null) {
+                continue;
+            }
+            try {
+                tier.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Close failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * 期間ごとにまとめた心拍数を返す。
+     * 新しい部分ほど細かい段から取り出し、古い部分は粗い段で補う
+     *
+     * @param from       始まり（ミリ秒単位の UNIX 時間）
+     * @param to         終わり（ミリ秒単位の UNIX 時間）。これ自体は含まない
+     * @param resolution まとめる期間の長さ（ミリ秒）
+     * @return 値のある期間ごとの [始まり, 最小, 最大, 平均, 個数]
+     * @throws IllegalArgumentException 期間が不正か、まとめた数が多すぎる
+     */
+    synchronized List<List<Number>> query(long from, long to, long resolution) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("non-positive resolution " + resolution);
+        } else if (from > to) {
+            throw new IllegalArgumentException("from " + from + " exceeds to " + to);
+        } else if ((to - from) / resolution >= MAX_BUCKETS) {
+            throw new IllegalArgumentException("too many buckets for resolution " + resolution);
+        }
+
+        final Aggregator aggregator = new Aggregator(from, resolution);
+        // 生の値を 0 番目として、細かい順にそれぞれが受け持つ範囲の下端を決める
+        final long[] lowers = new long[this.tiers.length + 1];
+        lowers[0] = from;
+        try {
+            long upper = to;
+            for (int i = 0; i <= this.tiers.length; i++) {
+                if (i == this.tiers.length) {
+                    lowers[i] = from;
+                    break;
+                }
+                final long oldest = i == 0 ? rawOldest() : this.tiers[i - 1].oldest();
+                // 隣の粗い段の区切りに揃えて、粗い段の 1 レコードが重ならないようにする
+                final long boundary = oldest == Long.MAX_VALUE ? upper : ceil(oldest, this.tiers[i].getResolution());
+                lowers[i] = Math.max(from, Math.min(upper, boundary));
+                upper = lowers[i];
+            }
+
+            // 古い方から渡す
+            for (int i = this.tiers.length; i >= 1; i--) {
+                this.tiers[i - 1].scan(lowers[i], lowers[i - 1], aggregator);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Reading rollups failed: " + e);
+        }
+        for (int i = lowerBound(lowers[0]); i < this.size; i++) {
+            final int slot = slot(i);
+            final long date = this.dates[slot];
+            if (date >= to) {
+                break;
+            }
+            aggregator.accept(date, this.values[slot], this.values[slot], this.values[slot], 1);
+        }
+        return aggregator.finish();
+    }
+
+    private long rawOldest() {
+        return this.size > 0 ? this.dates[slot(0)] : Long.MAX_VALUE;
+    }
+
+    /**
+     * date 以降で最初の生の値を二分探索する
+     *
+     * @return 最古を 0 とした位置
+     */
+    private int lowerBound(long date) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (this.dates[slot(mid)] < date) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int slot(int index) {
+        return (this.start + index) % this.dates.length;
+    }
+
+    private static long ceil(long value, long unit) {
+        final long r = value % unit;
+        return r <= 0 ? value - r : value - r + unit;
+    }
+
+    /**
+     * 時刻順に渡される値を、問い合わせの期間ごとにまとめる
+     */
+    private static final class Aggregator implements RollupTier.Consumer {
+        private final long from;
+        private final long resolution;
+        private final List<List<Number>> buckets = new ArrayList<>();
+
+        private long bucket = -1;
+        private float min;
+        private float max;
+        private double sum;
+        private int count;
+
+        Aggregator(long from, long resolution) {
+            this.from = from;
+            this.resolution = resolution;
+        }
+
+        @Override
+        public void accept(long start, float min, float max, double sum, int count) {
+            final long cur = (start - this.from) / this.resolution;
+            if (cur != this.bucket) {
+                finishBucket();
+                this.bucket = cur;
+                this.min = min;
+                this.max = max;
+            } else {
+                this.min = Math.min(this.min, min);
+                this.max = Math.max(this.max, max);
+            }
+            this.sum += sum;
+            this.count += count;
+        }
+
+        private void finishBucket() {
+            if (this.count > 0) {
+                this.buckets.add(Arrays.<Number>asList(this.from + this.bucket * this.resolution, this.min, this.max, this.sum / this.count, this.count));
+            }
+            this.sum = 0;
+            this.count = 0;
+        }
+
+        List<List<Number>> finish() {
+            finishBucket();
+            return this.buckets;
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+/**
+ * 計測した心拍数
+ */
+final class HeartrateSample {
+
+    private final long date;
+    private final int heartrate;
+    private final long decoded;
+
+    /**
+     * @param date      ミリ秒単位の UNIX 時間
+     * @param heartrate 心拍数
+     * @param decoded   受け取った時刻（SystemClock.elapsedRealtime のミリ秒）
+     */
+    HeartrateSample(long date, int heartrate, long decoded) {
+        this.date = date;
+        this.heartrate = heartrate;
+        this.decoded = decoded;
+    }
+
+    long getDate() {
+        return date;
+    }
+
+    int getHeartrate() {
+        return heartrate;
+    }
+
+    long getDecoded() {
+        return decoded;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+/**
+ * グラフ表示用に直近の心拍数を一定の時間刻みで保持する。
+ * 刻みは UNIX 時間を刻み幅で割った通し番号で表し、値の無い刻みは NaN にする
+ */
+final class HeartrateSeries {
+
+    interface Listener {
+        /**
+         * 新しい値が入ったことを受け取る
+         */
+        void call();
+    }
+
+    // 刻み幅（ミリ秒）
+    private final long step;
+    private final float[] values;
+
+    // 最新の刻みの通し番号。まだ無ければ負
+    private long head = -1;
+
+    private volatile Listener listener;
+
+    /**
+     * @param window 保持する時間（ミリ秒）
+     * @param step   刻み幅（ミリ秒）
+     */
+    HeartrateSeries(long window, long step) {
+        if (step <= 0 || window < step) {
+            throw new IllegalArgumentException("invalid window " + window + " or step " + step);
+        }
+        this.step = step;
+        this.values = new float[(int) (window / step)];
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 刻み幅を返す
+     *
+     * @return 刻み幅（ミリ秒）
+     */
+    long getStep() {
+        return this.step;
+    }
+
+    /**
+     * 保持する刻みの数を返す
+     *
+     * @return 保持する刻みの数
+     */
+    int capacity() {
+        return this.values.length;
+    }
+
+    /**
+     * 心拍数を入れる
+     *
+     * @param date      ミリ秒単位の UNIX 時間
+     * @param heartrate 心拍数。0 以下は測定できていないものとして扱う
+     */
+    void add(long date, int heartrate) {
+        final long index = date / this.step;
+        synchronized (this) {
+            if (this.head < 0) {
+                this.head = index - 1;
+            } else if (index <= this.head - this.values.length) {
+                // 古すぎる
+                return;
+            }
+            // 飛ばした刻みは値無しにする
+            final long end = Math.min(index, this.head + this.values.length);
+            for (long i = Math.max(this.head + 1, end - this.values.length + 1); i <= end; i++) {
+                this.values[slot(i)] = Float.NaN;
+            }
+            if (index > this.head) {
+                this.head = index;
+            }
+            this.values[slot(index)] = heartrate > 0 ? heartrate : Float.NaN;
+        }
+        final Listener listener = this.listener;
+        if (listener != null) {
+            listener.call();
+        }
+    }
+
+    /**
+     * 最新の刻みの通し番号を返す
+     *
+     * @return 最新の刻みの通し番号。まだ無ければ負
+     */
+    synchronized long getHead() {
+        return this.head;
+    }
+
+    /**
+     * 値を返す
+     *
+     * @param index 刻みの通し番号
+     * @return 値。保持していなければ NaN
+     */
+    synchronized float get(long index) {
+        if (this.head < 0 || index > this.head || index <= this.head - this.values.length) {
+            return Float.NaN;
+        }
+        return this.values[slot(index)];
+    }
+
+    private int slot(long index) {
+        return (int) (index % this.values.length);
+    }
+
+}
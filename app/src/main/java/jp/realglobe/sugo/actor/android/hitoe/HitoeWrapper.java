@@ -16,19 +16,18 @@
 
 package jp.realglobe.sugo.actor.android.hitoe;
 
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import jp.ne.docomo.smt.dev.hitoetransmitter.HitoeSdkAPI;
 
@@ -53,6 +52,10 @@ class HitoeWrapper {
 
     private static final String CONNECT_PARAM_PINCODE = "pincode";
 
+    // レシーバーにデータをまとめて渡させる間隔（ミリ秒）のパラメータ。データキーの後ろに付ける
+    private static final String RECEIVER_PARAM_INTERVAL_SUFFIX = "_interval";
+    private static final String RECEIVER_PARAM_SEPARATOR = "\n";
+
     private static final int API_ID_GET_AVAILABLE_SENSOR = 0x1010;
     private static final int API_ID_CONNECT = 0x1020;
     private static final int API_ID_DISCONNECT = 0x1021;
@@ -73,10 +76,9 @@ class HitoeWrapper {
     private static final int RES_ID_SENSOR_UNAUTHORIZED = 0x63;
     private static final int RES_ID_SENSOR_DISCONNECT = 0x65;
     private static final int RES_ID_SENSOR_DISCONNECT_NOTICE = 0x66;
+    // 応答処理の表で、他のどの応答 ID にも当たらなかったときの処理を表す
+    private static final int RES_ID_ANY = 0xffff;
 
-    private static final String ROW_SEPARATOR = "(\\n|\\r|\\n\\r)";
-    private static final String COLUMN_SEPARATOR = ",";
-    private static final String DATAKEYS_SEPARATOR = "\\|";
 
     private static final int STATUS_COLUMN_NUMBER = 6;
     private static final int STATUS_SESSION_COLUMN = 0;
@@ -93,11 +95,37 @@ class HitoeWrapper {
 
     private static final String MODE_REALTIME = "realtime";
 
-    private static final String DATA_KEY_HR = "raw.hr";
-
-    private static final int DATA_HR_COLUMN_NUMBER = 2;
-    private static final int DATE_HR_TIMESTAMP_COLUMN = 0;
-    private static final int DATA_HR_BPM_COLUMN = 1;
+    // データキー
+    static final String DATA_KEY_HR = "raw.hr";
+    static final String DATA_KEY_RRI = "raw.rri";
+    static final String DATA_KEY_ACC = "raw.acc";
+    static final String DATA_KEY_ECG = "raw.ecg";
+    private static final long DATA_KEYS_HR = DataKeys.of(DATA_KEY_HR);
+    // 心電図の標本化周波数（Hz）
+    static final double ECG_SAMPLE_RATE = 200;
+
+    // データキーごとの、時刻に続く値の数
+    private static final int HR_WIDTH = 1;
+    private static final int RRI_WIDTH = 1;
+    private static final int ACC_WIDTH = 3;
+    private static final int ECG_WIDTH = 1;
+
+    // 利用できるデータの応答の、データキーの列
+    private static final int AVAILABLE_DATA_KEY_COLUMN = 0;
+
+    // 心拍数を配る輪の大きさ
+    private static final int BUS_CAPACITY = 256;
+    // 受け取り手に渡すスレッドの数。1 Hz の心拍数には受け取り手ごとに要らないが、
+    // 遅い受け取り手が 1 つあっても他が待たないように 2 つにする
+    private static final int SUBSCRIBER_THREADS = 2;
+
+    // 統計のキー
+    private static final String KEY_QUEUE = "queue";
+    private static final String KEY_BUFFERING = "buffering";
+    private static final String KEY_PAUSED = "paused";
+    private static final String KEY_CALLBACKS = "callbacks";
+    private static final String KEY_DATA_KEYS = "dataKeys";
+    private static final String KEY_DECODE_ERRORS = "decodeErrors";
 
 
     private static final String LOG_TAG = HitoeWrapper.class.getName();
@@ -136,8 +164,9 @@ class HitoeWrapper {
          *
          * @param date      ミリ秒単位の UNIX 時間
          * @param heartrate 心拍数
+         * @param received  SDK から届いた単調増加時刻（ミリ秒）
          */
-        void receive(long date, int heartrate);
+        void receive(long date, int heartrate, long received);
     }
 
     private interface InnerStatusCallback {
@@ -146,7 +175,16 @@ class HitoeWrapper {
          *
          * @param status 状態
          */
-        void call(Map<Pair<String, String>, Pair<String, Set<String>>> status);
+        void call(List<SessionStatus> status);
+    }
+
+    private interface ResponseHandler {
+        /**
+         * 応答を処理する
+         *
+         * @param response 応答
+         */
+        void call(String response);
     }
 
     private interface InnerSearchCallback {
@@ -168,6 +206,15 @@ class HitoeWrapper {
         void call(ConnectResult result, String session);
     }
 
+    private interface InnerAvailableDataCallback {
+        /**
+         * 利用できるデータを受け取る
+         *
+         * @param dataKeys 利用できるデータキーのビット集合。分からなければ 0
+         */
+        void call(long dataKeys);
+    }
+
     private interface InnerAddReceiverCallback {
         /**
          * レシーバーの登録結果を受け取る
@@ -179,156 +226,344 @@ class HitoeWrapper {
     }
 
     private final HitoeSdkAPI core;
+    // (API ID, 応答 ID) -> 応答の処理
+    private final SparseArray<ResponseHandler> handlers = new SparseArray<>();
+    // 届いたデータをデータキーごとに読んで配る
+    private final DataRouter router = new DataRouter();
+    // 受け取り手たちが共有するスレッド
+    private final ExecutorService subscriberExecutor = Executors.newFixedThreadPool(SUBSCRIBER_THREADS, runnable -> {
+        final Thread thread = new Thread(runnable, "sample-subscriber");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 心拍数を受け取り手たちに配る
+    private final SampleBus bus = new SampleBus(BUS_CAPACITY, SystemClock::elapsedRealtime, this.subscriberExecutor);
+    // SDK のスレッドから心拍数を受け取って、専用のスレッドで輪に書く
+    private final SampleDispatcher dispatcher = new SampleDispatcher(this.bus::publish);
     private volatile InnerStatusCallback statusCallback;
     private volatile InnerSearchCallback searchCallback;
     private volatile InnerConnectCallback connectCallback;
+    private volatile InnerAvailableDataCallback availableDataCallback;
     private volatile InnerAddReceiverCallback addReceiverCallback;
 
     private volatile Runnable disconnectCallback;
+    private volatile Runnable lostCallback;
     private volatile Runnable setReceiverCallback;
-    private volatile HeartrateReceiver heartrateReceiver;
 
     // 接続のセッション
     // (セッション ID, センサー ID)
     private Pair<String, String> session;
     // レシーバーの登録 ID
     private String connection;
+    // こちらから切ったセッションの ID
+    private String requestedDisconnect;
+    // 接続中のセンサーで利用できるデータキーのビット集合。分からなければ 0
+    private volatile long availableDataKeys;
+    // データをまとめて受け取る間隔。0 なら SDK に任せる
+    private volatile long buffering;
+    // 受け取り手がいても受け取らないデータキーのビット集合
+    private volatile long pausedDataKeys;
+    // レシーバーが呼ばれた回数
+    private volatile long receiverCalls;
 
     HitoeWrapper(HitoeSdkAPI core) {
         this.core = core;
+
+        on(API_ID_GET_STATUS, RES_ID_SUCCESS, response -> onStatus(Status.parse(response)));
+        on(API_ID_GET_STATUS, RES_ID_ANY, response -> onStatus(null));
+        on(API_ID_GET_AVAILABLE_SENSOR, RES_ID_SUCCESS, response -> onSearch(parseSensors(response)));
+        on(API_ID_GET_AVAILABLE_SENSOR, RES_ID_ANY, response -> onSearch(Collections.emptyList()));
+        on(API_ID_CONNECT, RES_ID_SENSOR_CONNECT, response -> onConnect(ConnectResult.OK, response));
+        on(API_ID_CONNECT, RES_ID_SENSOR_CONNECT_FAILURE, response -> onConnect(ConnectResult.NOT_FOUND, null));
+        on(API_ID_CONNECT, RES_ID_SENSOR_UNAUTHORIZED, response -> onConnect(ConnectResult.INVALID_PINCODE, null));
+        on(API_ID_CONNECT, RES_ID_SENSOR_DISCONNECT_NOTICE, response -> {
+            innerDisconnect(response);
+            onConnect(ConnectResult.NOT_FOUND, response);
+        });
+        on(API_ID_CONNECT, RES_ID_ANY, response -> onConnect(ConnectResult.NOT_FOUND, null));
+        on(API_ID_GET_AVAILABLE_DATA, RES_ID_SUCCESS, response -> onAvailableData(parseAvailableData(response)));
+        on(API_ID_GET_AVAILABLE_DATA, RES_ID_ANY, response -> onAvailableData(0));
+        on(ADI_ID_ADD_RECEIVER, RES_ID_SUCCESS, response -> onAddReceiver(ConnectResult.OK, response));
+        on(ADI_ID_ADD_RECEIVER, RES_ID_ANY, response -> onAddReceiver(ConnectResult.RECEIVER_ERROR, null));
+        on(API_ID_DISCONNECT, RES_ID_ANY, this::innerDisconnect);
+
+        this.router.register(DATA_KEY_HR, DataRouter.columns(HR_WIDTH));
+        this.router.register(DATA_KEY_RRI, DataRouter.columns(RRI_WIDTH));
+        this.router.register(DATA_KEY_ACC, DataRouter.columns(ACC_WIDTH));
+        this.router.register(DATA_KEY_ECG, DataRouter.columns(ECG_WIDTH));
+        // 心拍数は列に入れるだけにして、輪に書いて配るのは専用のスレッドで
+        this.router.subscribe(DATA_KEY_HR, block -> {
+            for (int i = 0; i < block.getCount(); i++) {
+                this.dispatcher.offer(block.getDate(i), (int) block.getValue(i, 0), block.getReceived());
+            }
+        });
+
         this.core.setAPICallback(this::callback);
     }
 
+    /**
+     * 心拍数の受け取り手を全て外す。以後は使えない
+     */
+    void close() {
+        this.dispatcher.stop();
+        this.bus.close();
+        this.subscriberExecutor.shutdown();
+    }
+
+    /**
+     * @return 心拍数の受け渡しの統計
+     */
+    Map<String, Object> getDispatchStats() {
+        final Map<String, Object> stats = this.bus.getStats();
+        stats.put(KEY_QUEUE, this.dispatcher.getStats());
+        stats.put(KEY_BUFFERING, this.buffering);
+        stats.put(KEY_PAUSED, DataKeys.format(this.pausedDataKeys));
+        stats.put(KEY_CALLBACKS, this.receiverCalls);
+        stats.put(KEY_DATA_KEYS, DataKeys.format(this.availableDataKeys));
+        stats.put(KEY_DECODE_ERRORS, this.router.getErrors());
+        return stats;
+    }
+
+    /**
+     * データキーの読み取り方を登録する。同じデータキーには上書きする
+     *
+     * @param dataKey データキー
+     * @param decoder 読み取り方
+     */
+    void registerDecoder(String dataKey, DataRouter.Decoder decoder) {
+        this.router.register(dataKey, decoder);
+    }
+
+    /**
+     * データの受け取り手を加える。受け取り手は SDK のスレッドで呼ばれるので、すぐに戻ること。
+     * 新しいデータキーならレシーバーを登録し直す
+     *
+     * @param dataKey  データキー。読み取り方を登録済みであること
+     * @param receiver 受け取り手
+     */
+    void subscribeData(String dataKey, DataRouter.Receiver receiver) {
+        if (this.router.subscribe(dataKey, receiver) && this.connection != null) {
+            reregisterReceiver(result -> Log.d(LOG_TAG, "Receiver for " + dataKey + " was registered with " + result));
+        }
+    }
+
+    /**
+     * データの受け取り手を外す
+     *
+     * @param dataKey  データキー
+     * @param receiver 受け取り手
+     */
+    void unsubscribeData(String dataKey, DataRouter.Receiver receiver) {
+        if (this.router.unsubscribe(dataKey, receiver) && this.connection != null) {
+            reregisterReceiver(result -> Log.d(LOG_TAG, "Receiver without " + dataKey + " was registered with " + result));
+        }
+    }
+
+    /**
+     * 接続中のセンサーでデータキーを利用できるか調べる
+     *
+     * @param dataKey データキー
+     * @return 利用できるなら true。まだ分からなければ false
+     */
+    boolean isAvailable(String dataKey) {
+        return (this.availableDataKeys & DataKeys.of(dataKey)) != 0;
+    }
+
+    /**
+     * データをまとめて受け取る間隔と、受け取らないデータキーを変える。
+     * 間隔が長いほど呼び出しが減り、受け取らないデータキーがあるとセンサーが送る量が減って電池が持つ。
+     * レシーバーを登録済みなら 1 度だけ登録し直す
+     *
+     * @param buffering      間隔（ミリ秒）。0 なら SDK に任せる
+     * @param pausedDataKeys 受け取り手がいても受け取らないデータキーのビット集合
+     * @param callback       登録し直した結果を受け取るコールバック
+     */
+    void setReceiving(long buffering, long pausedDataKeys, ConnectCallback callback) {
+        if (buffering < 0) {
+            throw new IllegalArgumentException("negative buffering " + buffering);
+        } else if (buffering == this.buffering && pausedDataKeys == this.pausedDataKeys) {
+            callback.call(ConnectResult.OK);
+            return;
+        }
+        this.buffering = buffering;
+        this.pausedDataKeys = pausedDataKeys;
+        Log.d(LOG_TAG, "Data buffering was changed to " + buffering + " ms without " + DataKeys.format(pausedDataKeys));
+        if (this.connection == null) {
+            // 次の登録から使う
+            callback.call(ConnectResult.OK);
+            return;
+        }
+        reregisterReceiver(callback);
+    }
+
+    private static int handlerKey(int apiId, int responseId) {
+        return (apiId << 16) | (responseId & RES_ID_ANY);
+    }
+
+    private void on(int apiId, int responseId, ResponseHandler handler) {
+        this.handlers.put(handlerKey(apiId, responseId), handler);
+    }
+
     void setDisconnectCallback(Runnable callback) {
         this.disconnectCallback = callback;
     }
 
-    void setHeartrateReceiver(Runnable setCallback, HeartrateReceiver receiver) {
-        this.setReceiverCallback = setCallback;
-        this.heartrateReceiver = receiver;
+    /**
+     * こちらから切ったのではない切断を受け取るコールバックを設定する。
+     * 切断を受け取るコールバックの後に呼ばれる
+     *
+     * @param callback コールバック
+     */
+    void setLostCallback(Runnable callback) {
+        this.lostCallback = callback;
+    }
+
+    /**
+     * 心拍数のレシーバーを登録できたことを受け取るコールバックを設定する
+     *
+     * @param callback コールバック
+     */
+    void setReceiverCallback(Runnable callback) {
+        this.setReceiverCallback = callback;
+    }
+
+    /**
+     * 心拍数の受け取り手を加える。受け取り手はそれぞれ専用のスレッドで呼ばれる
+     *
+     * @param name     受け取り手の名前
+     * @param receiver 受け取り手
+     * @return 受け取りの登録
+     */
+    SampleBus.Subscription subscribe(String name, HeartrateReceiver receiver) {
+        return this.bus.subscribe(name, receiver::receive);
+    }
+
+    /**
+     * 心拍数の受け取り手を外す
+     *
+     * @param subscription 受け取りの登録
+     */
+    void unsubscribe(SampleBus.Subscription subscription) {
+        this.bus.unsubscribe(subscription);
     }
 
     private void callback(int apiId, int responseId, String response) {
         Log.d(LOG_TAG, "apiId=" + apiId + ",responseId=" + responseId + ",response=" + response);
 
-        switch (apiId) {
-            case API_ID_GET_STATUS:
-                // 状態の取得
-                final Map<Pair<String, String>, Pair<String, Set<String>>> status;
-                switch (responseId) {
-                    case RES_ID_SUCCESS:
-                        status = Status.parse(response);
-                        break;
-                    default:
-                        status = null;
-                }
-                final InnerStatusCallback statusCallback = this.statusCallback;
-                if (statusCallback != null) {
-                    statusCallback.call(status);
-                }
-                break;
-
-            case API_ID_GET_AVAILABLE_SENSOR:
-                // センサーを探した
-                final List<SensorInfo> sensors;
-                switch (responseId) {
-                    case RES_ID_SUCCESS:
-                        sensors = new ArrayList<>();
-                        for (String line : response.split(ROW_SEPARATOR, -1)) {
-                            final String l = line.trim();
-                            if (l.isEmpty()) {
-                                continue;
-                            }
-                            Log.d(LOG_TAG, "Raw sensor " + l + " was found");
-                            final SensorInfo sensor;
-                            try {
-                                sensor = SensorInfo.parse(l);
-                            } catch (IllegalArgumentException e) {
-                                Log.w(LOG_TAG, e.toString());
-                                continue;
-                            }
-                            if (sensor.getMode().equals(MODE_REALTIME) && sensor.getDataKeys().contains(DATA_KEY_HR)) {
-                                sensors.add(sensor);
-                            }
-                        }
-                        break;
-                    default:
-                        sensors = Collections.emptyList();
-                }
-                final InnerSearchCallback searchCallback = this.searchCallback;
-                if (searchCallback != null) {
-                    searchCallback.call(sensors);
-                }
-                break;
-
-            case API_ID_CONNECT:
-                // センサーにつなげた
-                final ConnectResult result;
-                final String session;
-                switch (responseId) {
-                    case RES_ID_SENSOR_CONNECT:
-                        result = ConnectResult.OK;
-                        session = response;
-                        break;
-                    case RES_ID_SENSOR_CONNECT_FAILURE:
-                        result = ConnectResult.NOT_FOUND;
-                        session = null;
-                        break;
-                    case RES_ID_SENSOR_UNAUTHORIZED:
-                        result = ConnectResult.INVALID_PINCODE;
-                        session = null;
-                        break;
-                    case RES_ID_SENSOR_DISCONNECT_NOTICE:
-                        result = ConnectResult.NOT_FOUND;
-                        session = response;
-                        innerDisconnect(session);
-                        break;
-                    default:
-                        result = ConnectResult.NOT_FOUND;
-                        session = null;
-                }
-                final InnerConnectCallback connectCallback = this.connectCallback;
-                if (connectCallback != null) {
-                    connectCallback.call(result, session);
-                }
-                break;
-
-            case ADI_ID_ADD_RECEIVER:
-                // レシーバーを登録した
-                final ConnectResult result1;
-                final String connection;
-                switch (responseId) {
-                    case RES_ID_SUCCESS:
-                        result1 = ConnectResult.OK;
-                        connection = response;
-                        break;
-                    default:
-                        result1 = ConnectResult.RECEIVER_ERROR;
-                        connection = null;
-                }
-                final InnerAddReceiverCallback addReceiverCallback = this.addReceiverCallback;
-                if (addReceiverCallback != null) {
-                    addReceiverCallback.call(result1, connection);
-                }
-                break;
+        ResponseHandler handler = this.handlers.get(handlerKey(apiId, responseId));
+        if (handler == null) {
+            handler = this.handlers.get(handlerKey(apiId, RES_ID_ANY));
+            if (handler == null) {
+                return;
+            }
+        }
+        handler.call(response);
+    }
+
+    private void onStatus(List<SessionStatus> status) {
+        // 状態の取得
+        final InnerStatusCallback statusCallback = this.statusCallback;
+        if (statusCallback != null) {
+            statusCallback.call(status);
+        }
+    }
+
+    private void onSearch(List<SensorInfo> sensors) {
+        // センサーを探した
+        final InnerSearchCallback searchCallback = this.searchCallback;
+        if (searchCallback != null) {
+            searchCallback.call(sensors);
+        }
+    }
+
+    private void onConnect(ConnectResult result, String session) {
+        // センサーにつなげた
+        final InnerConnectCallback connectCallback = this.connectCallback;
+        if (connectCallback != null) {
+            connectCallback.call(result, session);
+        }
+    }
+
+    private void onAvailableData(long dataKeys) {
+        // 利用できるデータを調べた
+        final InnerAvailableDataCallback availableDataCallback = this.availableDataCallback;
+        if (availableDataCallback != null) {
+            availableDataCallback.call(dataKeys);
+        }
+    }
+
+    private void onAddReceiver(ConnectResult result, String connection) {
+        // レシーバーを登録した
+        final InnerAddReceiverCallback addReceiverCallback = this.addReceiverCallback;
+        if (addReceiverCallback != null) {
+            addReceiverCallback.call(result, connection);
+        }
+    }
+
+    /**
+     * 利用できるデータキーを読み取る
+     *
+     * @param response 応答
+     * @return データキーのビット集合
+     */
+    private static long parseAvailableData(String response) {
+        long dataKeys = 0;
+        final ResponseScanner scanner = new ResponseScanner(response);
+        while (scanner.nextRow()) {
+            try {
+                dataKeys |= scanner.getDataKeys(AVAILABLE_DATA_KEY_COLUMN);
+            } catch (IllegalArgumentException e) {
+                Log.w(LOG_TAG, e.toString());
+            }
+        }
+        return dataKeys;
+    }
 
-            case API_ID_DISCONNECT:
-                innerDisconnect(response);
-                break;
-            default:
+    /**
+     * 見つかったセンサーのうち、心拍数をリアルタイムで取れるものを読み取る
+     *
+     * @param response 応答
+     * @return センサー
+     */
+    private static List<SensorInfo> parseSensors(String response) {
+        final List<SensorInfo> sensors = new ArrayList<>();
+        final ResponseScanner scanner = new ResponseScanner(response);
+        while (scanner.nextRow()) {
+            final SensorInfo sensor;
+            try {
+                sensor = SensorInfo.read(scanner);
+            } catch (IllegalArgumentException e) {
+                Log.w(LOG_TAG, e.toString());
+                continue;
+            }
+            Log.d(LOG_TAG, "Raw sensor " + sensor + " was found");
+            if (sensor.getMode().equals(MODE_REALTIME) && sensor.hasDataKeys(DATA_KEYS_HR)) {
+                sensors.add(sensor);
+            }
         }
+        return sensors;
     }
 
     private void innerDisconnect(String session) {
         final Runnable callback;
+        final Runnable lostCallback;
         synchronized (this) {
             if (this.session == null || !session.equals(this.session.first)) {
                 return;
             }
+            final boolean lost = !session.equals(this.requestedDisconnect);
             this.session = null;
             this.connection = null;
+            this.requestedDisconnect = null;
+            this.availableDataKeys = 0;
             callback = this.disconnectCallback;
+            lostCallback = lost ? this.lostCallback : null;
         }
+        runCallback(callback);
+        runCallback(lostCallback);
+    }
+
+    private static void runCallback(Runnable callback) {
         if (callback != null) {
             try {
                 callback.run();
@@ -350,15 +585,17 @@ class HitoeWrapper {
         this.statusCallback = status -> {
             try {
                 String sensorId = null;
-                for (Map.Entry<Pair<String, String>, Pair<String, Set<String>>> entry : status.entrySet()) {
-                    if (entry.getKey().second.isEmpty() || entry.getKey().first.isEmpty()) {
-                        continue;
-                    } else if (!entry.getValue().second.contains(DATA_KEY_HR)) {
-                        continue;
+                if (status != null) {
+                    for (SessionStatus session : status) {
+                        if (session.getConnectionId().isEmpty() || session.getSessionId().isEmpty()) {
+                            continue;
+                        } else if (!session.hasDataKeys(DATA_KEYS_HR)) {
+                            continue;
+                        }
+                        // 接続してた
+                        sensorId = session.getSensorId();
+                        break;
                     }
-                    // 接続してた
-                    sensorId = entry.getValue().first;
-                    break;
                 }
                 callback.call(sensorId);
             } finally {
@@ -404,8 +641,8 @@ class HitoeWrapper {
         if (this.session != null) {
             if (this.session.second.equals(sensor.getId())) {
                 // もう接続してる
-                if (this.connection == null && this.heartrateReceiver != null) {
-                    setHeartrateReceiver(callback);
+                if (this.connection == null) {
+                    addDataReceiver(callback);
                     return;
                 }
                 callback.call(ConnectResult.OK);
@@ -427,7 +664,7 @@ class HitoeWrapper {
                 }
                 this.session = new Pair<>(session, sensor.getId());
                 this.connection = null;
-                setHeartrateReceiver(callback);
+                queryAvailableData(() -> addDataReceiver(callback));
             } finally {
                 this.connectCallback = null;
             }
@@ -452,6 +689,9 @@ class HitoeWrapper {
             }
         }
         if (this.session != null) {
+            synchronized (this) {
+                this.requestedDisconnect = this.session.first;
+            }
             final int responseId = this.core.disconnect(this.session.first);
             if (responseId != RES_ID_SUCCESS) {
                 throw new RuntimeException("Cannot disconnect " + this.session.first);
@@ -460,7 +700,68 @@ class HitoeWrapper {
         callback.run();
     }
 
-    private void setHeartrateReceiver(ConnectCallback callback) {
+    /**
+     * データのレシーバーを登録し直す
+     *
+     * @param callback 結果を受け取るコールバック
+     */
+    void reregisterReceiver(ConnectCallback callback) {
+        if (this.session == null) {
+            callback.call(ConnectResult.NOT_FOUND);
+            return;
+        }
+        final String connection = this.connection;
+        if (connection != null) {
+            this.connection = null;
+            final int responseId = this.core.removeReceiver(connection);
+            if (responseId != RES_ID_SUCCESS) {
+                // 既に外れていても登録はやり直す
+                Log.w(LOG_TAG, "Cannot remove receiver " + connection);
+            }
+        }
+        Log.d(LOG_TAG, "Re-register data receiver on " + this.session.first);
+        addDataReceiver(callback);
+    }
+
+    /**
+     * 接続中のセンサーで利用できるデータを調べる。調べられなくても then は呼ぶ
+     *
+     * @param then 調べた後の処理
+     */
+    private void queryAvailableData(Runnable then) {
+        this.availableDataCallback = dataKeys -> {
+            try {
+                this.availableDataKeys = dataKeys;
+                Log.d(LOG_TAG, "Available data keys are " + DataKeys.format(dataKeys));
+                then.run();
+            } finally {
+                this.availableDataCallback = null;
+            }
+        };
+        final int responseId = this.core.getAvailableData(this.session.first);
+        if (responseId != RES_ID_SUCCESS) {
+            // 受け取りたいものをそのまま登録する
+            Log.w(LOG_TAG, "Cannot get available data on " + this.session.first);
+            this.availableDataCallback = null;
+            this.availableDataKeys = 0;
+            then.run();
+        }
+    }
+
+    /**
+     * 受け取り手のいるデータキーのうち、止めておらず利用できるものをまとめて 1 つのレシーバーで登録する
+     *
+     * @param callback 結果を受け取るコールバック
+     */
+    private void addDataReceiver(ConnectCallback callback) {
+        final long available = this.availableDataKeys;
+        final long dataKeys = this.router.getSubscribedKeys() & ~this.pausedDataKeys & (available != 0 ? available : -1L);
+        if (dataKeys == 0) {
+            Log.w(LOG_TAG, "No subscribed data is available on " + this.session.first);
+            callback.call(ConnectResult.RECEIVER_ERROR);
+            return;
+        }
+
         this.addReceiverCallback = (result, connection) -> {
             try {
                 this.connection = connection;
@@ -473,22 +774,24 @@ class HitoeWrapper {
                 this.addReceiverCallback = null;
             }
         };
-        final int responseId = this.core.addReceiver(this.session.first, new String[]{DATA_KEY_HR}, (connection, responseId1, dataKey, data) -> {
-            final String[] rows = data.split(ROW_SEPARATOR);
-            final String[] columns = rows[rows.length - 1].split(COLUMN_SEPARATOR); // 最新の値だけ使う
-            if (columns.length < DATA_HR_COLUMN_NUMBER) {
-                return;
-            }
-            final HeartrateReceiver receiver = this.heartrateReceiver;
-            if (receiver == null) {
-                return;
+        final String[] keys = DataKeys.toArray(dataKeys);
+        final long buffering = this.buffering;
+        final StringBuilder param = new StringBuilder();
+        if (buffering > 0) {
+            for (String key : keys) {
+                if (param.length() > 0) {
+                    param.append(RECEIVER_PARAM_SEPARATOR);
+                }
+                param.append(key).append(RECEIVER_PARAM_INTERVAL_SUFFIX).append('=').append(buffering);
             }
-            long date = Long.parseLong(columns[DATE_HR_TIMESTAMP_COLUMN]);
-            int heartrate = (int) Double.parseDouble(columns[DATA_HR_BPM_COLUMN]);
-            receiver.receive(date, heartrate);
-        }, "", "");
+        }
+        final int responseId = this.core.addReceiver(this.session.first, keys, (connection, responseId1, dataKey, data) -> {
+            this.receiverCalls++;
+            // まとめて届いた分を古い順に全て読んで配る
+            this.router.dispatch(dataKey, data, SystemClock.elapsedRealtime());
+        }, "", param.toString());
         if (responseId != RES_ID_SUCCESS) {
-            throw new RuntimeException("Cannot add heartrate receiver on " + this.session.first);
+            throw new RuntimeException("Cannot add data receiver on " + this.session.first);
         }
     }
 
@@ -497,28 +800,65 @@ class HitoeWrapper {
      */
     private static class Status {
         /**
-         * 状態を読み取る
+         * 状態を読み取る。読めない行は飛ばす
          *
          * @param str 状態を表す文字列
-         * @return (セッション ID, コネクション ID) -> (センサー ID, データキー)
+         * @return セッションごとの状態
          */
-        static Map<Pair<String, String>, Pair<String, Set<String>>> parse(String str) {
-            final Map<Pair<String, String>, Pair<String, Set<String>>> status = new HashMap<>();
-            for (String line : str.split(ROW_SEPARATOR)) {
-                final String l = line.trim();
-                if (l.isEmpty()) {
+        static List<SessionStatus> parse(String str) {
+            final List<SessionStatus> status = new ArrayList<>();
+            final ResponseScanner scanner = new ResponseScanner(str);
+            while (scanner.nextRow()) {
+                if (scanner.getColumnCount() != STATUS_COLUMN_NUMBER) {
+                    Log.w(LOG_TAG, "Invalid status " + scanner.getRow());
                     continue;
                 }
-                final String[] tokens = l.split(COLUMN_SEPARATOR, -1);
-                if (tokens.length != STATUS_COLUMN_NUMBER) {
-                    throw new IllegalArgumentException("invalid status " + l + " [" + l.length() + "]");
+                try {
+                    status.add(new SessionStatus(scanner.getString(STATUS_SESSION_COLUMN), scanner.getString(STATUS_ID_COLUMN),
+                            scanner.getString(STATUS_CONNECTION_COLUMN), scanner.getDataKeys(STATUS_DATAKEYS_COLUMN)));
+                } catch (IllegalArgumentException e) {
+                    Log.w(LOG_TAG, e.toString());
                 }
-                status.put(new Pair<>(tokens[STATUS_SESSION_COLUMN], tokens[STATUS_CONNECTION_COLUMN]), new Pair<>(tokens[STATUS_ID_COLUMN], new HashSet<>(Arrays.asList(tokens[STATUS_DATAKEYS_COLUMN].split(DATAKEYS_SEPARATOR)))));
             }
             return status;
         }
     }
 
+    /**
+     * セッションの状態
+     */
+    private static final class SessionStatus {
+
+        private final String sessionId;
+        private final String sensorId;
+        private final String connectionId;
+        private final long dataKeys;
+
+        private SessionStatus(@NonNull String sessionId, @NonNull String sensorId, @NonNull String connectionId, long dataKeys) {
+            this.sessionId = sessionId;
+            this.sensorId = sensorId;
+            this.connectionId = connectionId;
+            this.dataKeys = dataKeys;
+        }
+
+        String getSessionId() {
+            return sessionId;
+        }
+
+        String getSensorId() {
+            return sensorId;
+        }
+
+        String getConnectionId() {
+            return connectionId;
+        }
+
+        boolean hasDataKeys(long dataKeys) {
+            return (this.dataKeys & dataKeys) == dataKeys;
+        }
+
+    }
+
     /**
      * センサー
      */
@@ -528,14 +868,15 @@ class HitoeWrapper {
         private final String id;
         private final String address;
         private final String mode;
-        private final Set<String> dataKeys;
+        // DataKeys のビット集合
+        private final long dataKeys;
 
-        private SensorInfo(@NonNull String type, @NonNull String id, @NonNull String address, @NonNull String mode, @NonNull Collection<String> dataKeys) {
+        private SensorInfo(@NonNull String type, @NonNull String id, @NonNull String address, @NonNull String mode, long dataKeys) {
             this.type = type;
             this.id = id;
             this.address = address;
             this.mode = mode;
-            this.dataKeys = new HashSet<>(dataKeys);
+            this.dataKeys = dataKeys;
         }
 
         @Override
@@ -544,7 +885,7 @@ class HitoeWrapper {
             if (o == null || getClass() != o.getClass()) return false;
 
             SensorInfo that = (SensorInfo) o;
-            return type.equals(that.type) && id.equals(that.id) && address.equals(that.address) && mode.equals(that.mode) && dataKeys.equals(that.dataKeys);
+            return type.equals(that.type) && id.equals(that.id) && address.equals(that.address) && mode.equals(that.mode) && dataKeys == that.dataKeys;
         }
 
         @Override
@@ -553,7 +894,7 @@ class HitoeWrapper {
             result = 31 * result + id.hashCode();
             result = 31 * result + address.hashCode();
             result = 31 * result + mode.hashCode();
-            result = 31 * result + dataKeys.hashCode();
+            result = 31 * result + (int) (dataKeys ^ (dataKeys >>> 32));
             return result;
         }
 
@@ -573,30 +914,39 @@ class HitoeWrapper {
             return mode;
         }
 
-        Set<String> getDataKeys() {
+        long getDataKeys() {
             return dataKeys;
         }
 
+        boolean hasDataKeys(long dataKeys) {
+            return (this.dataKeys & dataKeys) == dataKeys;
+        }
+
         @Override
         public String toString() {
-            final List<String> list = new ArrayList<>(this.dataKeys);
-            Collections.sort(list);
-            StringBuilder dataKeysStr = new StringBuilder();
-            for (String dataKey : list) {
-                if (dataKeysStr.length() > 0) {
-                    dataKeysStr.append("|");
-                }
-                dataKeysStr.append(dataKey);
-            }
-            return this.type + "," + this.id + "," + this.address + "," + this.mode + "," + dataKeysStr.toString();
+            return this.type + "," + this.id + "," + this.address + "," + this.mode + "," + DataKeys.format(this.dataKeys);
         }
 
         static SensorInfo parse(String str) {
-            final String[] tokens = str.split(COLUMN_SEPARATOR, -1);
-            if (tokens.length != INFO_COLUMN_NUMBER) {
+            final ResponseScanner scanner = new ResponseScanner(str);
+            if (!scanner.nextRow()) {
                 throw new IllegalArgumentException("invalid sensor info " + str);
             }
-            return new SensorInfo(tokens[INFO_TYPE_COLUMN], tokens[INFO_ID_COLUMN], tokens[INFO_ADDRESS_COLUMN], tokens[INFO_MODE_COLUMN], Arrays.asList(tokens[INFO_DATAKEYS_COLUMN].split(DATAKEYS_SEPARATOR)));
+            return read(scanner);
+        }
+
+        /**
+         * 今の行をセンサーとして読み取る
+         *
+         * @param scanner センサーの行まで進めた走査
+         * @return センサー
+         */
+        static SensorInfo read(ResponseScanner scanner) {
+            if (scanner.getColumnCount() != INFO_COLUMN_NUMBER) {
+                throw new IllegalArgumentException("invalid sensor info " + scanner.getRow());
+            }
+            return new SensorInfo(scanner.getString(INFO_TYPE_COLUMN), scanner.getString(INFO_ID_COLUMN), scanner.getString(INFO_ADDRESS_COLUMN),
+                    scanner.getString(INFO_MODE_COLUMN), scanner.getDataKeys(INFO_DATAKEYS_COLUMN));
         }
 
     }
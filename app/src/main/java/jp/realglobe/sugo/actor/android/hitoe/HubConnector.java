@@ -0,0 +1,298 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * sugo-hub との接続を保つ。
+ * 切れたりつながらなかったりしたらつなぎ直し、つながらない URL は次の URL に切り替える。
+ * 全ての URL を試してもつながらなければ、上限付きで倍々に延ばした時間のうちの乱数の時間だけ待つので、
+ * hub が再起動しても全端末が一斉につなぎに行くことはない。
+ * 処理は全て scheduler のスレッドで行う
+ */
+final class HubConnector {
+
+    private static final String LOG_TAG = HubConnector.class.getName();
+
+    // つながるのを待つ時間
+    static final long CONNECT_TIMEOUT = 10_000;
+    // 待ち時間の初期値と上限
+    static final long BASE_DELAY = 1_000;
+    static final long MAX_DELAY = 60_000;
+    // 次の URL に切り替えるまでの待ち時間の上限
+    static final long FAILOVER_DELAY = 500;
+
+    // 統計のキー
+    private static final String KEY_SERVER = "server";
+    private static final String KEY_CONNECTED = "connected";
+    private static final String KEY_ATTEMPTS = "attempts";
+    private static final String KEY_SUCCESS_RATE = "successRate";
+    private static final String KEY_DISCONNECTS = "disconnects";
+    private static final String KEY_LAST_RECONNECT_TIME = "lastReconnectTime";
+    private static final String KEY_AVERAGE_RECONNECT_TIME = "averageReconnectTime";
+
+    interface Dialer {
+        /**
+         * 接続を始める。
+         * つながったら onConnected を、切れたら onDisconnected を呼ぶこと
+         *
+         * @param server sugo-hub の URL
+         */
+        void call(String server);
+    }
+
+    interface Hangup {
+        /**
+         * 今の接続を捨てる
+         */
+        void call();
+    }
+
+    private final Scheduler scheduler;
+    private final Dialer dialer;
+    private final Hangup hangup;
+    private final Random random = new Random();
+
+    private final Runnable dialTask = this::dial;
+    private final Runnable timeoutTask = this::onTimeout;
+
+    private List<String> servers = new ArrayList<>();
+    private boolean running;
+    private boolean connected;
+    // 接続を試している最中か
+    private boolean dialing;
+    // 今試している URL の位置
+    private int serverIndex;
+    // 今の周回で失敗した数
+    private int failed;
+    // 全ての URL で失敗した周回の数
+    private int rounds;
+    // 接続が切れた時刻。切れていなければ負
+    private long lost = -1;
+
+    // 統計
+    private int attempts;
+    private int successes;
+    private int disconnects;
+    private long lastReconnectTime = -1;
+    private long totalReconnectTime;
+    private int reconnects;
+
+    /**
+     * @param scheduler 時刻と処理の実行
+     * @param dialer  接続を始める処理
+     * @param hangup  接続を捨てる処理
+     */
+    HubConnector(Scheduler scheduler, Dialer dialer, Hangup hangup) {
+        this.scheduler = scheduler;
+        this.dialer = dialer;
+        this.hangup = hangup;
+    }
+
+    /**
+     * 接続を始める。scheduler のスレッドから呼ぶこと
+     *
+     * @param servers sugo-hub の URL。先頭から順に試す
+     */
+    void start(List<String> servers) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("no servers");
+        }
+        stop();
+        synchronized (this) {
+            this.servers = new ArrayList<>(servers);
+            this.running = true;
+            this.serverIndex = 0;
+            this.failed = 0;
+            this.rounds = 0;
+            this.lost = -1;
+        }
+        dial();
+    }
+
+    /**
+     * @return 接続を保とうとしている最中か
+     */
+    synchronized boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * 接続をやめる。scheduler のスレッドから呼ぶこと
+     */
+    void stop() {
+        synchronized (this) {
+            if (!this.running) {
+                return;
+            }
+            this.running = false;
+            this.connected = false;
+            this.dialing = false;
+        }
+        this.scheduler.cancel(this.dialTask);
+        this.scheduler.cancel(this.timeoutTask);
+        this.hangup.call();
+    }
+
+    /**
+     * つながったことを伝える
+     */
+    void onConnected() {
+        this.scheduler.post(() -> {
+            synchronized (this) {
+                if (!this.running || !this.dialing) {
+                    // 時間切れで捨てた接続
+                    return;
+                }
+                this.dialing = false;
+                this.connected = true;
+                this.successes++;
+                this.failed = 0;
+                this.rounds = 0;
+                if (this.lost >= 0) {
+                    this.lastReconnectTime = this.scheduler.now() - this.lost;
+                    this.totalReconnectTime += this.lastReconnectTime;
+                    this.reconnects++;
+                    this.lost = -1;
+                }
+            }
+            this.scheduler.cancel(this.timeoutTask);
+            Log.d(LOG_TAG, "Connected to " + this.servers.get(this.serverIndex));
+        });
+    }
+
+    /**
+     * 切れたことを伝える。つながる前に切れたら、時間切れを待たずに失敗として扱う
+     */
+    void onDisconnected() {
+        this.scheduler.post(() -> {
+            final boolean failed;
+            synchronized (this) {
+                failed = this.running && !this.connected && this.dialing;
+            }
+            if (failed) {
+                this.scheduler.cancel(this.timeoutTask);
+                fail("Connection failed");
+                return;
+            }
+            synchronized (this) {
+                if (!this.running || !this.connected) {
+                    return;
+                }
+                this.connected = false;
+                this.disconnects++;
+                this.lost = this.scheduler.now();
+            }
+            Log.w(LOG_TAG, "Disconnected from " + this.servers.get(this.serverIndex));
+            this.hangup.call();
+            // つながっていた URL から試し直す
+            this.scheduler.postDelayed(this.dialTask, backoff(0));
+        });
+    }
+
+    private void dial() {
+        final String server;
+        synchronized (this) {
+            if (!this.running) {
+                return;
+            }
+            this.attempts++;
+            this.dialing = true;
+            server = this.servers.get(this.serverIndex);
+        }
+        Log.d(LOG_TAG, "Connecting to " + server);
+        this.dialer.call(server);
+        this.scheduler.postDelayed(this.timeoutTask, CONNECT_TIMEOUT);
+    }
+
+    private void onTimeout() {
+        synchronized (this) {
+            if (!this.running || !this.dialing) {
+                return;
+            }
+        }
+        fail("Connection timed out");
+    }
+
+    /**
+     * 今の URL への接続に失敗したので、次の URL か、周回が終わっていれば待ってから先頭の URL を試す
+     *
+     * @param reason ログに残す理由
+     */
+    private void fail(String reason) {
+        final long delay;
+        synchronized (this) {
+            this.dialing = false;
+            this.serverIndex = (this.serverIndex + 1) % this.servers.size();
+            this.failed++;
+            if (this.failed < this.servers.size()) {
+                // 周回の途中ならすぐに次の URL へ
+                delay = (long) (this.random.nextDouble() * FAILOVER_DELAY);
+            } else {
+                this.failed = 0;
+                this.rounds++;
+                delay = backoff(this.rounds);
+            }
+        }
+        Log.w(LOG_TAG, reason + ", next attempt in " + delay + " ms");
+        this.hangup.call();
+        this.scheduler.postDelayed(this.dialTask, delay);
+    }
+
+    /**
+     * 待ち時間を決める
+     *
+     * @param rounds 全ての URL で失敗した周回の数
+     * @return 0 から、BASE_DELAY を rounds 回倍にしたもの（MAX_DELAY まで）までの乱数
+     */
+    private long backoff(int rounds) {
+        final long cap = Math.min(MAX_DELAY, BASE_DELAY << Math.min(rounds, 16));
+        return (long) (this.random.nextDouble() * cap);
+    }
+
+    /**
+     * @return 今の接続先の URL。始めていなければ null
+     */
+    synchronized String getServer() {
+        return this.servers.isEmpty() ? null : this.servers.get(this.serverIndex);
+    }
+
+    /**
+     * 統計を返す
+     *
+     * @return 今の URL、つながっているか、試した数、成功率、切れた数、つなぎ直しにかかった時間
+     */
+    synchronized Map<String, Object> getStats() {
+        final Map<String, Object> stats = new HashMap<>();
+        stats.put(KEY_SERVER, getServer());
+        stats.put(KEY_CONNECTED, this.connected);
+        stats.put(KEY_ATTEMPTS, this.attempts);
+        stats.put(KEY_SUCCESS_RATE, this.attempts > 0 ? (double) this.successes / this.attempts : null);
+        stats.put(KEY_DISCONNECTS, this.disconnects);
+        stats.put(KEY_LAST_RECONNECT_TIME, this.lastReconnectTime >= 0 ? this.lastReconnectTime : null);
+        stats.put(KEY_AVERAGE_RECONNECT_TIME, this.reconnects > 0 ? (double) this.totalReconnectTime / this.reconnects : null);
+        return stats;
+    }
+
+}
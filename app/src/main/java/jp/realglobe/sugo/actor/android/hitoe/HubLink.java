@@ -0,0 +1,305 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Map;
+
+import jp.realglobe.sugo.actor.Actor;
+import jp.realglobe.sugo.actor.Emitter;
+
+/**
+ * 1 つの通報先への経路。
+ * 自分の actor の接続と送信待ちの列を持ち、他の通報先とは独立につないで送る
+ */
+final class HubLink {
+
+    private static final String LOG_TAG = HubLink.class.getName();
+
+    // 送信データのキー
+    private static final String KEY_TRACE = "trace";
+
+    // 統計のキー
+    private static final String KEY_QUEUE = "queue";
+    private static final String KEY_LAST_LATENCY = "lastLatency";
+    private static final String KEY_AVERAGE_LATENCY = "averageLatency";
+
+    // 送り終えてから接続をやめるときに、送り終えるのを待つ最大の時間（ミリ秒）
+    private static final long FINISH_TIMEOUT = 5 * 60_000;
+
+    interface ActorFactory {
+        /**
+         * actor を作る
+         *
+         * @return actor
+         */
+        Actor newActor();
+
+        /**
+         * actor に reporter モジュールを登録する
+         *
+         * @param actor actor
+         * @return reporter モジュールの emitter
+         */
+        Emitter addModule(Actor actor);
+    }
+
+    interface SentListener {
+        /**
+         * 報告を emitter に渡したことを受け取る。hub に届いたかどうかは分からない
+         *
+         * @param link    送り出した経路
+         * @param message 報告
+         * @param latency 送信待ちに入れてから emitter に渡すまでの時間（ミリ秒）
+         */
+        void call(HubLink link, Outbox.Message message, long latency);
+    }
+
+    private final Scheduler scheduler;
+    private final ActorFactory factory;
+    private final SentListener sentListener;
+    private final Outbox outbox;
+    private final HubConnector connector;
+
+    private Actor actor;
+    private volatile Emitter emitter;
+
+    // 送信待ちを送り終えたら接続をやめるか
+    private volatile boolean finishing;
+    private final Runnable finishTask = this::stop;
+
+    // 送信待ちに入れてから送るまでの時間
+    private long lastLatency = -1;
+    private long totalLatency;
+    private long sent;
+
+    /**
+     * @param scheduler    接続を管理する時刻と処理の実行
+     * @param factory      actor を作る処理
+     * @param policy       定期報告の間引き方
+     * @param capacity     溜めておく定期報告の最大数
+     * @param sentListener 送ったことを受け取る処理。要らなければ null
+     */
+    HubLink(Scheduler scheduler, ActorFactory factory, Outbox.Policy policy, int capacity, @Nullable SentListener sentListener) {
+        this.scheduler = scheduler;
+        this.factory = factory;
+        this.sentListener = sentListener;
+        this.outbox = new Outbox(this::send, policy, capacity);
+        this.connector = new HubConnector(scheduler, this::dial, this::hangup);
+    }
+
+    /**
+     * 接続を始める。既に接続を保っていれば、そのまま使い続ける。scheduler のスレッドから呼ぶこと
+     *
+     * @param servers sugo-hub の URL。先頭から順に試す
+     */
+    void start(List<String> servers) {
+        this.finishing = false;
+        this.scheduler.cancel(this.finishTask);
+        if (!this.connector.isRunning()) {
+            this.connector.start(servers);
+        }
+    }
+
+    /**
+     * 接続をやめる。送信待ちは捨てずに残し、次に start したら送る。scheduler のスレッドから呼ぶこと
+     */
+    void stop() {
+        this.finishing = false;
+        this.scheduler.cancel(this.finishTask);
+        this.connector.stop();
+    }
+
+    /**
+     * 送信待ちを送り終えたら接続をやめる。
+     * FINISH_TIMEOUT のうちに送り終えなければ諦める。scheduler のスレッドから呼ぶこと
+     */
+    void finish() {
+        if (this.outbox.isEmpty()) {
+            stop();
+            return;
+        }
+        this.finishing = true;
+        this.scheduler.cancel(this.finishTask);
+        this.scheduler.postDelayed(this.finishTask, FINISH_TIMEOUT);
+    }
+
+    private void onDrained() {
+        if (this.finishing && this.outbox.isEmpty()) {
+            stop();
+        }
+    }
+
+    /**
+     * @return 接続を保とうとしている最中か
+     */
+    boolean isRunning() {
+        return this.connector.isRunning();
+    }
+
+    /**
+     * 定期報告の間引き方を変える
+     *
+     * @param policy   定期報告の間引き方
+     * @param capacity 溜めておく定期報告の最大数
+     */
+    void configure(Outbox.Policy policy, int capacity) {
+        this.outbox.configure(policy, capacity);
+    }
+
+    /**
+     * 報告を送信待ちに入れる
+     *
+     * @param message 報告
+     */
+    void offer(Outbox.Message message) {
+        this.outbox.offer(message);
+    }
+
+    /**
+     * @return 今の接続先の URL
+     */
+    @Nullable
+    String getServer() {
+        return this.connector.getServer();
+    }
+
+    /**
+     * 送信待ちの統計を返す
+     *
+     * @return 送信待ちの統計
+     */
+    Map<String, Object> getQueueStats() {
+        return this.outbox.getStats();
+    }
+
+    /**
+     * 接続の統計を返す
+     *
+     * @return 接続の統計と、送信待ちに入れてから送るまでの時間
+     */
+    Map<String, Object> getStats() {
+        final Map<String, Object> stats = this.connector.getStats();
+        synchronized (this) {
+            stats.put(KEY_LAST_LATENCY, this.lastLatency >= 0 ? this.lastLatency : null);
+            stats.put(KEY_AVERAGE_LATENCY, this.sent > 0 ? (double) this.totalLatency / this.sent : null);
+        }
+        return stats;
+    }
+
+    /**
+     * 接続の統計に送信待ちの統計を加えたものを返す
+     *
+     * @return 統計
+     */
+    Map<String, Object> getAllStats() {
+        final Map<String, Object> stats = getStats();
+        stats.put(KEY_QUEUE, getQueueStats());
+        return stats;
+    }
+
+    /**
+     * sugo-hub への接続を始める
+     *
+     * @param server sugo-hub の URL
+     */
+    private synchronized void dial(String server) {
+        final Actor actor = this.factory.newActor();
+        this.actor = actor;
+        this.emitter = this.factory.addModule(actor);
+        actor.setOnConnect(() -> {
+            synchronized (this) {
+                if (this.actor != actor) {
+                    // 捨てた接続
+                    return;
+                }
+                this.connector.onConnected();
+                this.outbox.setConnected(true);
+            }
+        });
+        actor.setOnDisconnect(() -> {
+            synchronized (this) {
+                if (this.actor == actor) {
+                    // 報告はつなぎ直すまで溜めておく
+                    this.outbox.setConnected(false);
+                    this.connector.onDisconnected();
+                }
+            }
+        });
+        actor.connect(server);
+    }
+
+    /**
+     * sugo-hub への接続を捨てる
+     */
+    private void hangup() {
+        final Actor actor;
+        synchronized (this) {
+            actor = this.actor;
+            if (actor == null) {
+                return;
+            }
+            this.actor = null;
+            this.emitter = null;
+            this.outbox.setConnected(false);
+        }
+        // 切れたことの通知を受けるスレッドを待たせないようにロックの外で
+        actor.disconnect();
+    }
+
+    /**
+     * 溜まっていた報告を送る
+     *
+     * @param message 報告
+     * @return 送れたら true。接続を捨てた後なら false で、報告は次につながるまで送信待ちに残る
+     */
+    private boolean send(Outbox.Message message) {
+        final Emitter emitter = this.emitter;
+        if (emitter == null) {
+            // 捨てた接続
+            return false;
+        }
+        final LatencyTrace trace = message.getTrace();
+        if (trace != null) {
+            message.getData().put(KEY_TRACE, trace.markEmitted());
+        }
+        emitter.emit(message.getEvent(), message.getData());
+        Log.d(LOG_TAG, "Sent report to " + getServer());
+        if (this.finishing && this.outbox.isEmpty()) {
+            this.scheduler.post(this::onDrained);
+        }
+
+        if (trace == null) {
+            return true;
+        }
+        final long latency = SystemClock.elapsedRealtime() - trace.getEnqueued();
+        synchronized (this) {
+            this.lastLatency = latency;
+            this.totalLatency += latency;
+            this.sent++;
+        }
+        if (this.sentListener != null) {
+            this.sentListener.call(this, message, latency);
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,100 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 通報 1 件分の処理段階ごとの時刻。
+ * センサーの時刻以外は端末起動からの単調増加時刻（SystemClock.elapsedRealtime のミリ秒）で記録し、
+ * 送信直前の UNIX 時間を添えて受信側で実時刻に換算できるようにする
+ */
+final class LatencyTrace {
+
+    // 送信データのキー
+    private static final String KEY_SENSOR = "sensor";
+    private static final String KEY_DECODED = "decoded";
+    private static final String KEY_DETECTED = "detected";
+    private static final String KEY_SCHEDULED = "scheduled";
+    private static final String KEY_ENQUEUED = "enqueued";
+    private static final String KEY_EMITTED = "emitted";
+    private static final String KEY_CLOCK = "clock";
+
+    private final long sensor;
+    private final long decoded;
+    private final long detected;
+    private final long scheduled;
+    private volatile long enqueued;
+
+    /**
+     * @param sensor    センサーが心拍数を測定した UNIX 時間（ミリ秒）
+     * @param decoded   心拍数を受け取った時刻
+     * @param detected  異常を検知した時刻
+     * @param scheduled 報告する予定だった時刻
+     */
+    LatencyTrace(long sensor, long decoded, long detected, long scheduled) {
+        this.sensor = sensor;
+        this.decoded = decoded;
+        this.detected = detected;
+        this.scheduled = scheduled;
+    }
+
+    /**
+     * 経路ごとに時刻を記録できるように、送信待ちにする前までの時刻を写したものを作る
+     *
+     * @return 写し
+     */
+    LatencyTrace copy() {
+        return new LatencyTrace(this.sensor, this.decoded, this.detected, this.scheduled);
+    }
+
+    /**
+     * 送信待ちにした時刻を記録する。報告 1 件につき、送信待ちに入れるときに 1 回だけ呼ぶ
+     */
+    void markEnqueued() {
+        this.enqueued = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return 送信待ちにした時刻
+     */
+    long getEnqueued() {
+        return this.enqueued;
+    }
+
+    /**
+     * 送信する時刻を添えて、送信データに載せる形にする
+     *
+     * @return 送信データ
+     */
+    Map<String, Object> markEmitted() {
+        final long emitted = SystemClock.elapsedRealtime();
+        final Map<String, Object> data = new HashMap<>();
+        data.put(KEY_SENSOR, this.sensor);
+        data.put(KEY_DECODED, this.decoded);
+        data.put(KEY_DETECTED, this.detected);
+        data.put(KEY_SCHEDULED, this.scheduled);
+        data.put(KEY_ENQUEUED, this.enqueued);
+        data.put(KEY_EMITTED, emitted);
+        data.put(KEY_CLOCK, System.currentTimeMillis());
+        return data;
+    }
+
+}
@@ -0,0 +1,183 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 直近の移動の軌跡を、決まった数の点に間引きながら持つ。
+ * 最後の点はその前の点から十分に離れるまでは仮の点として置き換え続け、まっすぐ進んでいれば間の点を捨てる。
+ * それでも数を超えたら、前後の点と作る三角形が最も小さい点から捨てる（Visvalingam 法）。
+ * 古すぎる点は捨てるが、最新の点は常に残す
+ */
+final class LocationTrack {
+
+    // 持つ点の最大数
+    static final int CAPACITY = 20;
+    // 軌跡に残す期間
+    static final long DURATION = 10 * 60_000;
+    // 最後の点を仮の点とみなす、その前の点からの距離（m）
+    static final double MIN_DISTANCE = 10;
+    // 前後の点と作る三角形がこれより小さければ、まっすぐ進んでいるとみなす面積（m^2）
+    static final double MIN_AREA = 200;
+
+    // 緯度 1 度あたりの距離（m）
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    private final int capacity;
+    private final long duration;
+    // 古い順の点
+    private final long[] dates;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private int size;
+
+    LocationTrack() {
+        this(CAPACITY, DURATION);
+    }
+
+    /**
+     * @param capacity 持つ点の最大数
+     * @param duration 軌跡に残す期間（ミリ秒）
+     */
+    LocationTrack(int capacity, long duration) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("too small capacity " + capacity);
+        } else if (duration <= 0) {
+            throw new IllegalArgumentException("non-positive duration " + duration);
+        }
+        this.capacity = capacity;
+        this.duration = duration;
+        // 捨てる点を選ぶ前に 1 つ多く持てるように
+        this.dates = new long[capacity + 1];
+        this.latitudes = new double[capacity + 1];
+        this.longitudes = new double[capacity + 1];
+    }
+
+    /**
+     * 点を加える
+     *
+     * @param date      測位したミリ秒単位の UNIX 時間
+     * @param latitude  緯度
+     * @param longitude 経度
+     */
+    synchronized void add(long date, double latitude, double longitude) {
+        if (this.size > 0 && date < this.dates[this.size - 1]) {
+            // 遅れて届いた古い位置は使わない
+            return;
+        }
+        if (this.size >= 2 && distance(this.size - 2, this.latitudes[this.size - 1], this.longitudes[this.size - 1]) < MIN_DISTANCE) {
+            // 最後の点はまだ前の点からほとんど動いていないので、最新の時刻と位置で置き換える
+            set(this.size - 1, date, latitude, longitude);
+        } else {
+            set(this.size++, date, latitude, longitude);
+            if (this.size >= 3 && area(this.size - 2) < MIN_AREA) {
+                // まっすぐ進んでいる
+                remove(this.size - 2);
+            }
+        }
+        expire(date);
+        while (this.size > this.capacity) {
+            remove(smallest());
+        }
+    }
+
+    private void set(int index, long date, double latitude, double longitude) {
+        this.dates[index] = date;
+        this.latitudes[index] = latitude;
+        this.longitudes[index] = longitude;
+    }
+
+    private void remove(int index) {
+        final int moved = this.size - index - 1;
+        System.arraycopy(this.dates, index + 1, this.dates, index, moved);
+        System.arraycopy(this.latitudes, index + 1, this.latitudes, index, moved);
+        System.arraycopy(this.longitudes, index + 1, this.longitudes, index, moved);
+        this.size--;
+    }
+
+    private void expire(long now) {
+        int expired = 0;
+        while (expired < this.size - 1 && now - this.dates[expired] > this.duration) {
+            expired++;
+        }
+        for (int i = 0; i < expired; i++) {
+            remove(0);
+        }
+    }
+
+    /**
+     * @return 前後の点と作る三角形が最も小さい、両端以外の点の位置
+     */
+    private int smallest() {
+        int smallest = 1;
+        double min = Double.MAX_VALUE;
+        for (int i = 1; i < this.size - 1; i++) {
+            final double area = area(i);
+            if (area < min) {
+                min = area;
+                smallest = i;
+            }
+        }
+        return smallest;
+    }
+
+    /**
+     * 点と前後の点が作る三角形の面積（m^2）。狭い範囲なので平面とみなす
+     */
+    private double area(int index) {
+        final double scale = Math.cos(Math.toRadians(this.latitudes[index]));
+        final double x1 = (this.longitudes[index - 1] - this.longitudes[index]) * scale;
+        final double y1 = this.latitudes[index - 1] - this.latitudes[index];
+        final double x2 = (this.longitudes[index + 1] - this.longitudes[index]) * scale;
+        final double y2 = this.latitudes[index + 1] - this.latitudes[index];
+        return Math.abs(x1 * y2 - x2 * y1) / 2 * METERS_PER_DEGREE * METERS_PER_DEGREE;
+    }
+
+    /**
+     * 点までの距離（m）。狭い範囲なので平面とみなす
+     */
+    private double distance(int index, double latitude, double longitude) {
+        final double scale = Math.cos(Math.toRadians(latitude));
+        final double x = (longitude - this.longitudes[index]) * scale;
+        final double y = latitude - this.latitudes[index];
+        return Math.sqrt(x * x + y * y) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * 軌跡を返す
+     *
+     * @return 古い順の [UNIX 時間, 緯度, 経度] の列
+     */
+    synchronized List<List<Number>> get() {
+        final List<List<Number>> points = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            points.add(Arrays.<Number>asList(this.dates[i], this.latitudes[i], this.longitudes[i]));
+        }
+        return points;
+    }
+
+    /**
+     * @return 持っている点の数
+     */
+    synchronized int size() {
+        return this.size;
+    }
+
+}
@@ -0,0 +1,198 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.os.Bundle;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.support.v4.app.ActivityCompat;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationListener;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.List;
+
+/**
+ * 現在位置を追う。
+ * 普段は省電力で粗く測位して最後の位置を保持しておき、異常の兆候があれば高精度・短間隔に切り替える。
+ * 得た位置は間引いた軌跡にも残す
+ */
+class LocationTracker {
+
+    private static final String LOG_TAG = LocationTracker.class.getName();
+
+    // 省電力時
+    private static final long LOW_POWER_INTERVAL = 60_000;
+    private static final long LOW_POWER_FASTEST_INTERVAL = 10_000;
+    // 高精度時
+    private static final long HIGH_ACCURACY_INTERVAL = 2_000;
+    private static final long HIGH_ACCURACY_FASTEST_INTERVAL = 1_000;
+
+    interface WarningCallback {
+        /**
+         * 警告を受け取る
+         *
+         * @param warning 警告文
+         */
+        void call(String warning);
+    }
+
+    private final Context context;
+    private final GoogleApiClient client;
+    private final LocationListener listener;
+
+    // 最後に得た位置
+    private volatile Location location;
+    // 直近の軌跡
+    private final LocationTrack track = new LocationTrack();
+    // 高精度にしているか
+    private boolean escalated;
+
+    LocationTracker(Context context, WarningCallback warningCallback) {
+        this.context = context;
+        this.listener = location -> {
+            this.location = location;
+            this.track.add(location.getTime(), location.getLatitude(), location.getLongitude());
+            Log.d(LOG_TAG, "Location changed to " + location);
+        };
+        this.client = new GoogleApiClient.Builder(context)
+                .addApi(LocationServices.API)
+                .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
+                    @Override
+                    public void onConnected(@Nullable Bundle bundle) {
+                        request();
+                        Log.d(LOG_TAG, "Location monitor started");
+                    }
+
+                    @Override
+                    public void onConnectionSuspended(int i) {
+                        Log.d(LOG_TAG, "Location monitor suspended");
+                    }
+                })
+                .addOnConnectionFailedListener(connectionResult -> {
+                    final String warning = "Location detection error: " + connectionResult;
+                    warningCallback.call(warning);
+                    Log.w(LOG_TAG, warning);
+                })
+                .build();
+    }
+
+    /**
+     * 測位を始める
+     */
+    void start() {
+        if (!(this.client.isConnecting() || this.client.isConnected())) {
+            this.client.connect();
+        } else {
+            // 許可が後から得られた場合のために要求し直す
+            request();
+        }
+    }
+
+    /**
+     * 測位を止める
+     */
+    void stop() {
+        this.client.disconnect();
+    }
+
+    /**
+     * 高精度・短間隔にする。どのスレッドから呼んでもよい
+     */
+    synchronized void escalate() {
+        if (this.escalated) {
+            return;
+        }
+        this.escalated = true;
+        request();
+        Log.d(LOG_TAG, "Location monitor escalated");
+    }
+
+    /**
+     * 省電力に戻す。どのスレッドから呼んでもよい
+     */
+    synchronized void relax() {
+        if (!this.escalated) {
+            return;
+        }
+        this.escalated = false;
+        request();
+        Log.d(LOG_TAG, "Location monitor relaxed");
+    }
+
+    /**
+     * 最後に得た位置を返す
+     *
+     * @return 最後に得た位置。まだ無ければ null
+     */
+    @Nullable
+    Location getLocation() {
+        return this.location;
+    }
+
+    /**
+     * 直近の軌跡を返す
+     *
+     * @return 古い順の [UNIX 時間, 緯度, 経度] の列
+     */
+    List<List<Number>> getTrack() {
+        return this.track.get();
+    }
+
+    /**
+     * 今のモードで位置の更新を要求する。
+     * 同じリスナーで要求し直すと前の要求は置き換えられる。
+     * 心拍数や加速度を受け取るスレッドには Looper が無いので、位置はメインスレッドで受け取る
+     */
+    private synchronized void request() {
+        if (!this.client.isConnected()) {
+            return;
+        }
+        if (ActivityCompat.checkSelfPermission(this.context, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED &&
+                ActivityCompat.checkSelfPermission(this.context, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        if (this.location == null) {
+            // 最初の報告に位置を載せられるように、既に分かっている位置を使う
+            this.location = LocationServices.FusedLocationApi.getLastLocation(this.client);
+            if (this.location != null) {
+                this.track.add(this.location.getTime(), this.location.getLatitude(), this.location.getLongitude());
+            }
+        }
+        final LocationRequest request;
+        if (this.escalated) {
+            request = LocationRequest.create()
+                    .setInterval(HIGH_ACCURACY_INTERVAL)
+                    .setFastestInterval(HIGH_ACCURACY_FASTEST_INTERVAL)
+                    .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+        } else {
+            request = LocationRequest.create()
+                    .setInterval(LOW_POWER_INTERVAL)
+                    .setFastestInterval(LOW_POWER_FASTEST_INTERVAL)
+                    .setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
+        }
+        LocationServices.FusedLocationApi.requestLocationUpdates(this.client, request, this.listener, Looper.getMainLooper());
+    }
+
+}
@@ -21,23 +21,22 @@ import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.media.Ringtone;
 import android.media.RingtoneManager;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.CountDownTimer;
 import android.os.Handler;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
-import android.util.Pair;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -45,19 +44,23 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationServices;
-
+import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import jp.ne.docomo.smt.dev.hitoetransmitter.sdk.HitoeSdkAPIImpl;
 import jp.realglobe.sugo.actor.Actor;
@@ -67,49 +70,148 @@ public class MainActivity extends AppCompatActivity {
 
     private static final String LOG_TAG = MainActivity.class.getName();
 
-    private static final long LOCATION_INTERVAL = 10_000;
+    // グラフに描く期間と刻み幅
+    private static final long CHART_WINDOW = 5 * 60_000;
+    private static final long CHART_STEP = 1_000;
+    // 過去の心拍数を置く場所
+    private static final String HISTORY_DIRECTORY = "history";
+    private static final String HISTORY_PREFIX = "heartrate";
+    // 心拍数の受け取り手の名前
+    private static final String SUBSCRIBER_DETECTOR = "detector";
+    private static final String SUBSCRIBER_UI = "ui";
+    private static final String SUBSCRIBER_HISTORY = "history";
+    // 心電図からの心拍数を報告に載せる、R 波からの時間
+    private static final long ECG_BEAT_TIMEOUT = 5_000;
+    // 心拍数の流れを調べる間隔
+    private static final long WATCHDOG_INTERVAL = 500;
+    // 平常時の要約で心拍数をまとめる期間の長さ
+    private static final long SUMMARY_RESOLUTION = 60_000;
+    // 警告中にしたときの最初の報告に遡って加える心拍数の期間
+    private static final long BACKFILL_DURATION = 3 * 60_000;
 
     // 送信データのキー
     private static final String KEY_HEART_RATE = "heartRate";
     private static final String KEY_LOCATION = "location";
     private static final String KEY_DATE = "date";
     private static final String KEY_ID = "id";
-
-    // 状態
-    private enum State {
-        MAIN,
-        WARNING,
-        EMERGENCY,
-    }
+    private static final String KEY_HEART_RATES = "heartRates";
+    private static final String KEY_SEQUENCE = "seq";
+    private static final String KEY_SIGNAL = "signal";
+    private static final String KEY_CAUSE = "cause";
+    private static final String KEY_ECG_HEART_RATE = "ecgHeartRate";
+    private static final String KEY_SUMMARIES = "summaries";
+    private static final String KEY_BATTERY = "battery";
+    private static final String KEY_SKETCH = "sketch";
+    private static final String KEY_TRACK = "track";
+
+    // 平常時の要約のイベント名
+    private static final String EVENT_SUMMARY = "summary";
+
+    // 心拍センサーの状態
+    private static final String SIGNAL_OK = "ok";
+    private static final String SIGNAL_DISCONNECTED = "disconnected";
+    private static final String SIGNAL_LOST = "lost";
+    private static final String CAUSE_HEARTRATE = "heartrate";
+    private static final String CAUSE_FALL = "fall";
+    private static final String CAUSE_TIMER = "timer";
+
+    // 状態報告のキー
+    private static final String KEY_STATE = "state";
+    private static final String KEY_REPORT_INTERVAL = "reportInterval";
+    private static final String KEY_HEART_RATE_LOWER = "heartRateLower";
+    private static final String KEY_HEART_RATE_UPPER = "heartRateUpper";
+    private static final String KEY_ABNORMAL_DURATION = "abnormalDuration";
+    private static final String KEY_FIDELITY = "fidelity";
+    private static final String KEY_TIME = "time";
+    private static final String KEY_QUEUE = "queue";
+    private static final String KEY_HUB = "hub";
+    private static final String KEY_FANOUT = "fanout";
+    private static final String KEY_HUBS = "hubs";
+    private static final String KEY_SENSOR = "sensor";
+    private static final String KEY_SIGNAL_STATS = "signal";
+    private static final String KEY_DISPATCH = "dispatch";
+    private static final String KEY_FALL = "fall";
+    private static final String KEY_ECG = "ecg";
 
     private final int permissionRequestCode = (int) (Integer.MAX_VALUE * Math.random());
 
     private Vibrator vibrator;
     private Ringtone ringtone;
-    private GoogleApiClient googleApiClient;
+    private LocationTracker locationTracker;
+    private HeartrateDetector detector;
+    private final FallDetector fallDetector = new FallDetector();
+    // 最新の転倒度
+    private volatile float fallScore;
+    // 今受け取りを止めている生データのデータキーのビット集合
+    private long pausedDataKeys;
+    // 心電図の R 波の検出
+    private final RPeakDetector rPeakDetector = new RPeakDetector(HitoeWrapper.ECG_SAMPLE_RATE, this::onBeat);
+    // 直近の R 波の時刻と瞬時心拍数
+    private volatile long beatDate;
+    private volatile float beatHeartrate;
     private static HitoeWrapper hitoe;
+    // 切れた心拍センサーへのつなぎ直し
+    private SensorReconnector sensorReconnector;
+    // 心拍数の流れの見張り
+    private StallWatchdog watchdog;
+    private final Runnable watchdogTask = this::checkSignal;
+
+    // 時刻と処理の実行。状態の移り変わりも報告も見張りもこのスレッドで行う
+    private Scheduler scheduler;
+    // ファイルを読むなど、scheduler のスレッドを待たせたくない処理を行う
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    // 状態の移り変わり
+    private AlertStateMachine alert;
 
-    private Handler handler;
-    private Handler timer;
-    private CountDownTimer callTimer;
-
-    private State state = State.MAIN;
-
-    // 現在位置
-    private volatile Location location;
     // hitoe の準備が終わっているか
     private boolean hitoeReady;
     // 計測した心拍数
-    private volatile Pair<Long, Integer> heartrate;
-    // 心拍数を表示する部品
-    private volatile TextView heartrateView;
+    private volatile HeartrateSample heartrate;
+    // 心拍数の表示
+    private HeartrateDisplay heartrateDisplay;
+    // グラフに描く心拍数
+    private final HeartrateSeries heartrateSeries = new HeartrateSeries(CHART_WINDOW, CHART_STEP);
+    // 問い合わせに答えるための過去の心拍数
+    private HeartrateHistory history;
+    // 前回の要約から後の心拍数の分布
+    private final QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_K);
     // 通報の識別番号
     private int reportId = Math.abs((int) System.nanoTime());
 
     // 警告文の表示場所
     private TextView warningView;
 
-    private Actor actor;
+    // 通報先
+    private HubLink hub;
+    // 異常発生中に並行して報告を送る通報先
+    private final List<HubLink> emergencyHubs = new CopyOnWriteArrayList<>();
+    // 同報をやめた後、送り残しを送っている通報先
+    private final List<HubLink> finishingHubs = new ArrayList<>();
+    // 並行して送った報告が最初にどこかで送り出されるまで
+    private final DeliveryTracker delivery = new DeliveryTracker();
+    private HubLink.ActorFactory actorFactory;
+    // 前回の報告のイベント名
+    private String lastEvent;
+    // 報告の通し番号
+    private long sequence;
+
+    // 報告する心拍数の細かさ
+    private volatile ReporterModule.Fidelity fidelity = ReporterModule.Fidelity.ADAPTIVE;
+    // 前回報告した心拍数の刻みの通し番号
+    private long reportedIndex = -1;
+    // 前回の要約に含めた期間の終わり（ミリ秒単位の UNIX 時間）。まだ送っていなければ負
+    private long summarized = -1;
+
+    // 設定値
+    private volatile Config config;
+    // hub から変えた報告間隔。設定を読み直しても上に重ねる。変えていなければ負
+    private long remoteReportInterval = -1;
+    // hub から変えた異常検知の閾値。設定を読み直しても上に重ねる
+    private boolean remoteThresholds;
+    private int remoteHeartrateLower;
+    private int remoteHeartrateUpper;
+    private long remoteAbnormalDuration;
+    private SharedPreferences.OnSharedPreferenceChangeListener configListener;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -122,64 +224,104 @@ public class MainActivity extends AppCompatActivity {
             preferences.edit().putString(getString(R.string.key_actor_suffix), String.valueOf(Math.abs((new Random(System.nanoTime())).nextInt()))).apply();
         }
 
+        this.config = loadConfig(preferences);
+        this.configListener = (sharedPreferences, key) -> {
+            if (!Config.isKey(this, key)) {
+                // センサー情報など、設定値に関わらない書き込み
+                return;
+            }
+            final Config config;
+            try {
+                config = Config.load(this, sharedPreferences);
+            } catch (IllegalArgumentException e) {
+                // 不正な値では置き換えない
+                Log.w(LOG_TAG, "Invalid config was ignored: " + e.getMessage());
+                return;
+            }
+            synchronized (this) {
+                // 利用者が同じ項目を変えたら、hub から変えた値よりそちらを優先する
+                if (key.equals(getString(R.string.key_report_interval))) {
+                    this.remoteReportInterval = -1;
+                } else if (key.equals(getString(R.string.key_heartrate_lower)) || key.equals(getString(R.string.key_heartrate_upper))
+                        || key.equals(getString(R.string.key_abnormal_duration))) {
+                    this.remoteThresholds = false;
+                }
+                final Config overlaid;
+                try {
+                    overlaid = overlayRemote(config);
+                } catch (IllegalArgumentException e) {
+                    Log.w(LOG_TAG, "Invalid config was ignored: " + e.getMessage());
+                    return;
+                }
+                applyConfig(overlaid);
+            }
+        };
+        preferences.registerOnSharedPreferenceChangeListener(this.configListener);
+
+        this.history = new HeartrateHistory(new File(getFilesDir(), HISTORY_DIRECTORY), HISTORY_PREFIX);
+        this.heartrateDisplay = new HeartrateDisplay();
         this.vibrator = (Vibrator) getSystemService(VIBRATOR_SERVICE);
         this.ringtone = RingtoneManager.getRingtone(this, RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM));
-        this.googleApiClient = new GoogleApiClient.Builder(this)
-                .addApi(LocationServices.API)
-                .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
-                    @Override
-                    public void onConnected(@Nullable Bundle bundle) {
-                        if (ActivityCompat.checkSelfPermission(MainActivity.this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED &&
-                                ActivityCompat.checkSelfPermission(MainActivity.this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-                            return;
-                        }
-                        LocationServices.FusedLocationApi.requestLocationUpdates(
-                                MainActivity.this.googleApiClient,
-                                LocationRequest.create()
-                                        .setInterval(LOCATION_INTERVAL)
-                                        .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY),
-                                location -> {
-                                    MainActivity.this.location = location;
-                                    Log.d(LOG_TAG, "Location changed to " + location);
-                                });
-                        Log.d(LOG_TAG, "Location monitor started");
-                    }
-
-                    @Override
-                    public void onConnectionSuspended(int i) {
-                        Log.d(LOG_TAG, "Location monitor suspended");
-                    }
-                })
-                .addOnConnectionFailedListener(connectionResult -> {
-                    final String warning = "Location detection error: " + connectionResult;
-                    MainActivity.this.warningView.post(() -> setWarning(warning));
-                    Log.w(LOG_TAG, warning);
-                })
-                .build();
+        this.locationTracker = new LocationTracker(this, warning -> MainActivity.this.warningView.post(() -> setWarning(warning)));
+        this.detector = new HeartrateDetector(this.config.getHeartrateLower(), this.config.getHeartrateUpper(), this.config.getAbnormalDuration());
+        this.watchdog = new StallWatchdog(this.config.getSignalTimeout());
         hitoe = new HitoeWrapper(HitoeSdkAPIImpl.getInstance(this.getApplicationContext()));
-        hitoe.setHeartrateReceiver(() -> {
+        hitoe.setReceiverCallback(() -> {
+            this.sensorReconnector.onConnected();
             synchronized (this) {
                 // メイン画面から hitoe の準備画面に移るためのボタンを消す
                 if (!this.hitoeReady) {
                     this.hitoeReady = true;
-                    handler.post(() -> {
+                    this.watchdog.start(this.scheduler.now());
+                    this.scheduler.post(() -> {
                         synchronized (this) {
                             if (this.hitoeReady) {
                                 this.disableHitoeSetting();
+                                this.scheduler.cancel(this.watchdogTask);
+                                this.scheduler.postDelayed(this.watchdogTask, WATCHDOG_INTERVAL);
                             }
                         }
                     });
                 }
             }
-        }, (date, heartrate) -> {
-            this.heartrate = new Pair<>(date, heartrate);
-            this.heartrateView.post(() -> this.heartrateView.setText(String.format(Locale.US, "%d", heartrate)));
+        });
+        // 受け取り手ごとに別のスレッドで受け取るので、遅い処理が他を待たせない
+        hitoe.subscribe(SUBSCRIBER_DETECTOR, (date, heartrate, received) -> {
+            this.watchdog.sample(received, heartrate);
+            // 報告に載せる値は異常検知と同じ順で更新する
+            this.heartrate = new HeartrateSample(date, heartrate, received);
+            detect(date, heartrate);
+        });
+        hitoe.subscribe(SUBSCRIBER_UI, (date, heartrate, received) -> {
+            this.heartrateDisplay.set(heartrate);
+            this.heartrateSeries.add(date, heartrate);
+        });
+        hitoe.subscribe(SUBSCRIBER_HISTORY, (date, heartrate, received) -> {
+            this.history.add(date, heartrate);
+            if (heartrate > 0) {
+                this.sketch.add(heartrate);
+            }
+        });
+        // 加速度は SDK のスレッドで受け取るので、転倒度の更新だけして戻る
+        hitoe.subscribeData(HitoeWrapper.DATA_KEY_ACC, block -> {
+            float score = 0;
+            for (int i = 0; i < block.getCount(); i++) {
+                score = this.fallDetector.update(block.getDate(i), (float) block.getValue(i, 0), (float) block.getValue(i, 1), (float) block.getValue(i, 2));
+            }
+            detectFall(score);
+        });
+        // 心電図も SDK のスレッドで R 波を探すだけにする
+        hitoe.subscribeData(HitoeWrapper.DATA_KEY_ECG, block -> {
+            for (int i = 0; i < block.getCount(); i++) {
+                this.rPeakDetector.update(block.getDate(i), block.getValue(i, 0));
+            }
         });
         hitoe.setDisconnectCallback(() -> {
             synchronized (this) {
                 // メイン画面に hitoe の準備画面に移るためのボタンを出す
                 this.hitoeReady = false;
-                handler.post(() -> {
+                this.watchdog.stop();
+                this.scheduler.post(() -> {
                     synchronized (this) {
                         if (!this.hitoeReady) {
                             this.enableHitoeSetting();
@@ -188,9 +330,16 @@ public class MainActivity extends AppCompatActivity {
                 });
             }
         });
-        this.handler = new Handler();
-        this.timer = new Handler();
-        this.heartrate = new Pair<>(0L, 0);
+        hitoe.setLostCallback(() -> {
+            markGap();
+            reconnectSensor();
+        });
+        this.scheduler = new HandlerScheduler(new Handler());
+        this.alert = new AlertStateMachine(this.scheduler, newAlertListener(), this.config.getDelay(), this.config.getReportInterval(), this.config.getSummaryInterval());
+        this.sensorReconnector = new SensorReconnector(this.scheduler, hitoe::connect, warning -> MainActivity.this.warningView.post(() -> setWarning(warning)));
+        this.actorFactory = newActorFactory();
+        this.hub = newHubLink();
+        this.heartrate = new HeartrateSample(0L, 0, 0L);
 
         // 画面を初期化
         reset();
@@ -199,6 +348,222 @@ public class MainActivity extends AppCompatActivity {
         checkPermission();
     }
 
+    /**
+     * 設定を読み取る。不正な値があれば既定値を使う
+     *
+     * @param preferences 設定
+     * @return 設定値
+     */
+    private Config loadConfig(SharedPreferences preferences) {
+        try {
+            return Config.load(this, preferences);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Invalid config was replaced with defaults: " + e.getMessage());
+            return Config.load(this, null);
+        }
+    }
+
+    /**
+     * 設定から読んだ値に、hub から変えた値を重ねる
+     *
+     * @param config 設定から読んだ値
+     * @return hub から変えた値を重ねた設定値
+     * @throws IllegalArgumentException 重ねた結果が不正だった
+     */
+    private synchronized Config overlayRemote(Config config) {
+        if (this.remoteReportInterval > 0) {
+            config = config.withReportInterval(this.remoteReportInterval);
+        }
+        if (this.remoteThresholds) {
+            config = config.withHeartrateThresholds(this.remoteHeartrateLower, this.remoteHeartrateUpper, this.remoteAbnormalDuration);
+        }
+        return config;
+    }
+
+    /**
+     * 設定値を差し替えて、動いている部品に反映する
+     *
+     * @param config 新しい設定値
+     */
+    private synchronized void applyConfig(Config config) {
+        this.config = config;
+        this.detector.setThresholds(config.getHeartrateLower(), config.getHeartrateUpper(), config.getAbnormalDuration());
+        applyReceiving();
+        this.hub.configure(config.getOutboxPolicy(), config.getOutboxCapacity());
+        for (HubLink link : this.emergencyHubs) {
+            link.configure(config.getOutboxPolicy(), config.getOutboxCapacity());
+        }
+        // hub から変えられることもあるので、状態の移り変わりのスレッドで反映する
+        this.scheduler.post(() -> {
+            this.alert.setDelay(config.getDelay());
+            this.alert.setReportInterval(config.getReportInterval());
+            this.alert.setSummaryInterval(config.getSummaryInterval());
+        });
+        Log.d(LOG_TAG, "Config was changed to " + config);
+    }
+
+    /**
+     * 心拍数の異常を調べる。
+     * 異常の兆候があれば測位を高精度にし、異常とみなしたら警告中にする
+     *
+     * @param date      ミリ秒単位の UNIX 時間
+     * @param heartrate 心拍数
+     */
+    private void detect(long date, int heartrate) {
+        if (heartrate <= 0) {
+            // 測定できていない値では測位を切り替えない
+            return;
+        }
+        final float score = this.detector.update(date, heartrate);
+        if (score >= 1) {
+            this.locationTracker.escalate();
+            if (this.alert.getState() != AlertStateMachine.State.MAIN) {
+                return;
+            }
+            this.scheduler.post(() -> {
+                if (this.alert.warn(CAUSE_HEARTRATE)) {
+                    Log.d(LOG_TAG, "Abnormal heartrate " + heartrate + " was detected");
+                }
+            });
+        } else if (score > 0) {
+            this.locationTracker.escalate();
+        } else if (this.alert.getState() == AlertStateMachine.State.MAIN && this.fallScore == 0) {
+            // 衝撃の後なら転倒の検知に任せる
+            this.locationTracker.relax();
+        }
+    }
+
+    /**
+     * 心電図の R 波を受け取る
+     *
+     * @param date      R 波のミリ秒単位の UNIX 時間
+     * @param heartrate 瞬時心拍数。最初の R 波では 0
+     */
+    private void onBeat(long date, float heartrate) {
+        if (heartrate <= 0) {
+            return;
+        }
+        this.beatHeartrate = heartrate;
+        this.beatDate = date;
+    }
+
+    /**
+     * 転倒度に応じて、衝撃の後は測位を高精度にし、転倒とみなしたら警告中にする
+     *
+     * @param score 転倒度
+     */
+    private void detectFall(float score) {
+        this.fallScore = score;
+        if (score >= 1) {
+            this.locationTracker.escalate();
+            if (this.alert.getState() != AlertStateMachine.State.MAIN) {
+                return;
+            }
+            this.scheduler.post(() -> {
+                if (this.alert.warn(CAUSE_FALL)) {
+                    Log.d(LOG_TAG, "Fall was detected");
+                }
+            });
+        } else if (score > 0) {
+            this.locationTracker.escalate();
+        }
+    }
+
+    /**
+     * 状態に合わせて心拍数をまとめて受け取る間隔と、受け取る生データを切り替える。
+     * 平常時はまとめて受け取って呼び出しを減らし、設定に無い生データは止める。
+     * 警告中と救助要請中は全て届きしだい受け取る
+     */
+    private synchronized void applyReceiving() {
+        final boolean main = this.alert.getState() == AlertStateMachine.State.MAIN;
+        final long buffering = main ? this.config.getMainBuffering() : 0;
+        final Config.RawData rawData = main ? this.config.getMainRawData() : Config.RawData.ALL;
+        long paused = 0;
+        if (rawData == Config.RawData.NONE) {
+            paused |= DataKeys.of(HitoeWrapper.DATA_KEY_ACC);
+        }
+        if (rawData != Config.RawData.ALL) {
+            paused |= DataKeys.of(HitoeWrapper.DATA_KEY_ECG);
+        }
+        // 止めていた間の値とつながらないように、受け取り直すものは途切れた扱いにする
+        final long resumed = this.pausedDataKeys & ~paused;
+        if ((resumed & DataKeys.of(HitoeWrapper.DATA_KEY_ACC)) != 0) {
+            this.fallDetector.reset();
+        }
+        if ((resumed & DataKeys.of(HitoeWrapper.DATA_KEY_ECG)) != 0) {
+            this.rPeakDetector.reset();
+        }
+        this.pausedDataKeys = paused;
+        // まとめて届く間は間が空くので、その分だけ信号喪失の判定を待つ
+        this.watchdog.setTimeout(this.config.getSignalTimeout() + buffering);
+        final long pausedKeys = paused;
+        try {
+            hitoe.setReceiving(buffering, pausedKeys, result -> Log.d(LOG_TAG, "Buffering " + buffering + " ms without " + DataKeys.format(pausedKeys) + " was applied with " + result));
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Cannot change data receiving: " + e);
+        }
+    }
+
+    /**
+     * 心拍数が途切れたことを記録する
+     */
+    private void markGap() {
+        // 値無しを入れてグラフを途切れさせる。
+        // グラフは hitoe の時刻で並ぶので、端末の時計ではなく最後の値の時刻から経った分を足して決める
+        final HeartrateSample last = this.heartrate;
+        if (last.getDate() > 0) {
+            this.heartrateSeries.add(last.getDate() + Math.max(0, this.scheduler.now() - last.getDecoded()), 0);
+        }
+        // 途切れる前後の異常を続けて数えない
+        this.detector.reset();
+        Log.d(LOG_TAG, "Heartrate stream was interrupted");
+    }
+
+    /**
+     * 心拍数の流れが止まっていないか調べて、止まっていたらレシーバーを登録し直す
+     */
+    private synchronized void checkSignal() {
+        if (!this.hitoeReady) {
+            return;
+        }
+        final long now = this.scheduler.now();
+        final StallWatchdog.Condition condition = this.watchdog.check(now);
+        if (condition != null) {
+            Log.w(LOG_TAG, "Heartrate signal was lost: " + condition);
+            markGap();
+            this.watchdog.rearm(now);
+            try {
+                hitoe.reregisterReceiver(result -> Log.d(LOG_TAG, "Receiver re-registration ended with " + result));
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, "Receiver re-registration failed: " + e);
+            }
+        }
+        this.scheduler.postDelayed(this.watchdogTask, WATCHDOG_INTERVAL);
+    }
+
+    /**
+     * 前回の心拍センサーにつなぎ直し始める
+     */
+    private void reconnectSensor() {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        final String sensorStr = preferences.getString(getString(R.string.key_hitoe_sensor), null);
+        if (sensorStr == null) {
+            return;
+        }
+        final HitoeWrapper.SensorInfo sensor;
+        try {
+            sensor = HitoeWrapper.SensorInfo.parse(sensorStr);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Last sensor info is broken");
+            return;
+        }
+        final String pincode = preferences.getString(getString(R.string.key_prefix_hitoe_pincode) + sensor.toString(), null);
+        if (pincode == null) {
+            return;
+        }
+        this.sensorReconnector.start(sensor, pincode);
+    }
+
     private synchronized void setWarning(String warning) {
         this.warningView.setText(warning);
     }
@@ -272,6 +637,7 @@ public class MainActivity extends AppCompatActivity {
         final String message;
         if (allowed) {
             message = "心拍数の測定と救助要請への位置情報の付加が可能です";
+            this.locationTracker.start();
             synchronized (this) {
                 if (!this.hitoeReady) {
                     enableHitoeSetting();
@@ -283,12 +649,40 @@ public class MainActivity extends AppCompatActivity {
         Toast.makeText(this, message, Toast.LENGTH_LONG).show();
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        this.heartrateDisplay.resume();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        this.heartrateDisplay.pause();
+        this.history.flush();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(this.configListener);
         reset();
+        this.alert.stop();
+        this.hub.stop();
+        synchronized (this) {
+            for (HubLink link : this.finishingHubs) {
+                link.stop();
+            }
+        }
+        this.locationTracker.stop();
+        this.sensorReconnector.stop();
+        this.scheduler.cancel(this.watchdogTask);
+        this.watchdog.stop();
         hitoe.disconnect(() -> {
         });
+        hitoe.close();
+        this.worker.shutdown();
+        this.history.close();
     }
 
     @Override
@@ -343,17 +737,70 @@ public class MainActivity extends AppCompatActivity {
     /**
      * 初期状態に戻す
      */
-    private synchronized void reset() {
+    private void reset() {
+        this.alert.reset();
+    }
+
+    /**
+     * 状態の移り変わりに合わせて画面と通報先を操作する処理を作る
+     *
+     * @return 状態の変化を受け取る処理
+     */
+    private AlertStateMachine.Listener newAlertListener() {
+        return new AlertStateMachine.Listener() {
+            @Override
+            public void onStateChanged(AlertStateMachine.State state) {
+                switch (state) {
+                    case MAIN:
+                        showMain();
+                        break;
+                    case WARNING:
+                        showWarning();
+                        break;
+                    case EMERGENCY:
+                        showEmergency();
+                        break;
+                }
+            }
+
+            @Override
+            public void onCountdown(long remaining) {
+                final TextView view = (TextView) findViewById(R.id.text_counter_count);
+                if (view == null) {
+                    return;
+                }
+                view.setText(String.format(Locale.US, "%d", (int) Math.ceil(remaining / 1_000.0)));
+            }
+
+            @Override
+            public void onReportStarted() {
+                startReport();
+            }
+
+            @Override
+            public void onReport(long scheduled) {
+                report(scheduled);
+            }
+
+            @Override
+            public void onSummary(long scheduled) {
+                summarize();
+            }
+        };
+    }
+
+    /**
+     * 初期状態の画面にして、警告中や異常発生中に始めたことをやめる
+     */
+    private synchronized void showMain() {
         setContentView(R.layout.activity_main);
-        this.state = State.MAIN;
-        this.timer.removeCallbacksAndMessages(null);
-        if (this.callTimer != null) {
-            this.callTimer.cancel();
-            this.callTimer = null;
-        }
+        applyReceiving();
         this.vibrator.cancel();
         this.ringtone.stop();
-        this.googleApiClient.disconnect();
+        this.detector.reset();
+        this.fallDetector.reset();
+        this.fallScore = 0;
+        this.locationTracker.relax();
         final Button hitoeSettingButton = (Button) findViewById(R.id.button_hitoe_setting);
         hitoeSettingButton.setOnClickListener(v -> startActivity(new Intent(this, HitoeSettingActivity.class)));
         if (this.hitoeReady) {
@@ -361,19 +808,27 @@ public class MainActivity extends AppCompatActivity {
         } else {
             enableHitoeSetting();
         }
-        this.heartrateView = (TextView) findViewById(R.id.text_heartrate_value);
-        this.heartrateView.setText(String.format(Locale.US, "%d", heartrate.second));
+        bindHeartrateViews();
 
-        if (this.actor != null) {
-            this.actor.disconnect();
-            this.actor = null;
+        // 送信待ちの報告は送り終えるまで残す。平常時の要約を送るならそのままつないでおく
+        if (this.config.getSummaryInterval() <= 0) {
+            this.hub.finish();
         }
+        stopFanout();
 
         relayWarningView();
 
         Log.d(LOG_TAG, "Mode was reset");
     }
 
+    /**
+     * 心拍数を表示する部品を今の画面のものにする
+     */
+    private void bindHeartrateViews() {
+        this.heartrateDisplay.setView((TextView) findViewById(R.id.text_heartrate_value));
+        ((HeartrateChartView) findViewById(R.id.chart_heartrate)).setSeries(this.heartrateSeries);
+    }
+
     private synchronized void relayWarningView() {
         final TextView old = this.warningView;
         this.warningView = (TextView) findViewById(R.id.text_warning);
@@ -383,53 +838,20 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * 警告中にする
+     * 警告中の画面にして、利用者の注意を引く
      */
-    private synchronized void warn() {
-        if (this.state != State.MAIN) {
-            // 初期状態からのみ
-            return;
-        }
-
-        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-        final long delay = Long.parseLong(sharedPreferences.getString(getString(R.string.key_delay), getString(R.string.default_delay)));
-
+    private synchronized void showWarning() {
         setContentView(R.layout.activity_warning);
-        this.state = State.WARNING;
-        this.timer.removeCallbacksAndMessages(null);
-        if (this.callTimer != null) {
-            this.callTimer.cancel();
-        }
-        this.callTimer = new CountDownTimer(1_000L * delay, 100) {
-            @Override
-            public void onTick(long l) {
-                final TextView view = (TextView) findViewById(R.id.text_counter_count);
-                if (view == null) {
-                    return;
-                }
-                view.setText(String.format(Locale.US, "%d", (int) Math.ceil(l / 1_000.0)));
-            }
-
-            @Override
-            public void onFinish() {
-                call();
-            }
-        };
-        this.callTimer.start();
+        applyReceiving();
 
         this.vibrator.vibrate(new long[]{500, 1_000}, 0);
         this.ringtone.play();
-        if (!(this.googleApiClient.isConnecting() || this.googleApiClient.isConnected())) {
-            this.googleApiClient.connect();
-        }
+        this.locationTracker.escalate();
 
         findViewById(R.id.button_call).setOnClickListener(view -> callAfterDialog());
         findViewById(R.id.button_stop).setOnClickListener(view -> (new CancelDialog()).show(getFragmentManager(), "dialog"));
 
-        this.heartrateView = (TextView) findViewById(R.id.text_heartrate_value);
-        this.heartrateView.setText(String.format(Locale.US, "%d", heartrate.second));
-
-        startReport();
+        bindHeartrateViews();
 
         relayWarningView();
 
@@ -446,10 +868,8 @@ public class MainActivity extends AppCompatActivity {
             return (new AlertDialog.Builder(activity))
                     .setTitle("異常はありませんか？")
                     .setPositiveButton("異常無し", (dialog, which) -> {
-                        synchronized (activity) {
-                            if (activity.state == State.WARNING) {
-                                activity.reset();
-                            }
+                        if (activity.alert.getState() == AlertStateMachine.State.WARNING) {
+                            activity.reset();
                         }
                     })
                     .create();
@@ -459,26 +879,23 @@ public class MainActivity extends AppCompatActivity {
     /**
      * 異常発生中にする
      */
-    private synchronized void call() {
-        if (this.state == State.EMERGENCY) {
-            return;
-        }
+    private void call() {
+        this.alert.call();
+    }
+
+    /**
+     * 異常発生中の画面にして、同報先への報告を始める
+     */
+    private synchronized void showEmergency() {
         setContentView(R.layout.activity_emergency);
-        this.state = State.EMERGENCY;
-        this.timer.removeCallbacksAndMessages(null);
-        if (this.callTimer != null) {
-            this.callTimer.cancel();
-            this.callTimer = null;
-        }
+        applyReceiving();
         this.vibrator.cancel();
         this.ringtone.stop();
-        if (!(this.googleApiClient.isConnecting() || this.googleApiClient.isConnected())) {
-            this.googleApiClient.connect();
-        }
-        this.heartrateView = (TextView) findViewById(R.id.text_heartrate_value);
-        this.heartrateView.setText(String.format(Locale.US, "%d", heartrate.second));
+        this.locationTracker.escalate();
+        bindHeartrateViews();
 
-        startReport();
+        // 最初の報告から同報先にも送るように
+        startFanout();
 
         relayWarningView();
 
@@ -509,15 +926,8 @@ public class MainActivity extends AppCompatActivity {
     /**
      * 異常検知イベントを発生させるタイマーを作動させる
      */
-    private synchronized void startEventTimer() {
-        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-        final long delay = 1_000 * Long.parseLong(sharedPreferences.getString(getString(R.string.key_timer), getString(R.string.default_timer)));
-
-        this.timer.removeCallbacksAndMessages(null);
-        this.timer.postDelayed(() -> {
-            warn();
-            Log.d(LOG_TAG, "Dummy emergency was triggered");
-        }, delay);
+    private void startEventTimer() {
+        this.alert.startTimer(CAUSE_TIMER, this.config.getTimer());
         Log.d(LOG_TAG, "Event timer started");
     }
 
@@ -525,48 +935,322 @@ public class MainActivity extends AppCompatActivity {
      * サーバーへの報告を始める
      */
     private synchronized void startReport() {
-        if (this.actor != null) {
-            Log.d(LOG_TAG, "Already connecting");
-            return;
-        }
         this.reportId++;
-        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-        final String server = sharedPreferences.getString(getString(R.string.key_server), getString(R.string.default_server));
-        final String actorKey = getString(R.string.actor_prefix) + sharedPreferences.getString(getString(R.string.key_actor_suffix), getString(R.string.default_actor_suffix));
-        final long interval = 1_000L * Long.parseLong(sharedPreferences.getString(getString(R.string.key_report_interval), getString(R.string.default_report_interval)));
+        this.lastEvent = null;
+        if (this.fidelity == ReporterModule.Fidelity.ADAPTIVE) {
+            // 最初の報告に直前の心拍数も載せる
+            this.reportedIndex = this.heartrateSeries.getHead() - BACKFILL_DURATION / this.heartrateSeries.getStep();
+        }
+        // 平常時の要約でつながっていればそのまま使う。つながるまでの報告は送信待ちに溜まる
+        this.hub.start(this.config.getServers());
+    }
 
-        this.actor = new Actor(actorKey, getString(R.string.module), null);
-        final Emitter emitter;
-        try {
-            emitter = actor.addModule(getString(R.string.module), getPackageManager().getPackageInfo(this.getPackageName(), 0).versionName, getString(R.string.description), new Object());
-        } catch (PackageManager.NameNotFoundException e) {
-            throw new RuntimeException(e);
+    /**
+     * 平常時の要約を送る。
+     * 前回の要約から後の、終わった期間ごとの心拍数の最小、最大、平均、個数を送る。
+     * 過去の心拍数はファイルから読むので、要約は worker で作り、送信待ちに入れるのだけ scheduler のスレッドに戻す
+     */
+    private synchronized void summarize() {
+        this.hub.start(this.config.getServers());
+        final long now = System.currentTimeMillis();
+        final long to = now - now % SUMMARY_RESOLUTION;
+        final long periods = Math.min(HeartrateHistory.MAX_BUCKETS - 1, Math.max(1, this.config.getSummaryInterval() / SUMMARY_RESOLUTION));
+        // 途切れていても遡るのは 1 回分の要約まで
+        final long oldest = to - SUMMARY_RESOLUTION * periods;
+        final long from = Math.max(oldest, this.summarized);
+        this.summarized = to;
+        final String signal = getSignal();
+
+        this.worker.execute(() -> {
+            final Map<String, Object> data = buildSummary(now, from, to, signal);
+            this.scheduler.post(() -> {
+                synchronized (this) {
+                    data.put(KEY_SEQUENCE, ++this.sequence);
+                }
+                this.hub.offer(new Outbox.Message(EVENT_SUMMARY, data, false, null));
+            });
+        });
+    }
+
+    /**
+     * 要約を作る。worker で呼ぶ
+     *
+     * @param now    要約した時刻（ミリ秒単位の UNIX 時間）
+     * @param from   要約する期間の始まり（ミリ秒単位の UNIX 時間）
+     * @param to     要約する期間の終わり（ミリ秒単位の UNIX 時間）
+     * @param signal 心拍センサーの状態
+     * @return 要約。通し番号はまだ入っていない
+     */
+    private Map<String, Object> buildSummary(long now, long from, long to, String signal) {
+        final Map<String, Object> data = new HashMap<>();
+        final HeartrateSample heartrate = this.heartrate;
+        data.put(KEY_DATE, (new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZZZZ", Locale.US)).format(new Date(now)));
+        data.put(KEY_HEART_RATE, heartrate.getHeartrate());
+        data.put(KEY_SIGNAL, signal);
+        data.put(KEY_SUMMARIES, from < to ? this.history.query(from, to, SUMMARY_RESOLUTION) : Collections.emptyList());
+        data.put(KEY_SKETCH, this.sketch.flush());
+        final Integer battery = getBatteryLevel();
+        if (battery != null) {
+            data.put(KEY_BATTERY, battery);
+        }
+        data.put(KEY_LOCATION, getLocationValue());
+        return data;
+    }
+
+    /**
+     * @return 電池残量（%）。分からなければ null
+     */
+    @Nullable
+    private Integer getBatteryLevel() {
+        final Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return null;
+        }
+        final int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        final int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level < 0 || scale <= 0) {
+            return null;
         }
-        actor.setOnConnect(() -> report(emitter, interval));
-        actor.connect(server);
+        return Math.round(100f * level / scale);
     }
 
-    private synchronized void report(Emitter emitter, long interval) {
-        if (this.actor == null) {
-            // 終了
+    /**
+     * @return 報告に載せる心拍センサーの状態
+     */
+    private String getSignal() {
+        if (!this.hitoeReady) {
+            return SIGNAL_DISCONNECTED;
+        } else if (this.watchdog.getCondition() != StallWatchdog.Condition.OK) {
+            return SIGNAL_LOST;
+        } else {
+            return SIGNAL_OK;
+        }
+    }
+
+    /**
+     * @return 報告に載せる緯度、経度、高度。分からなければ 0
+     */
+    private List<? extends Number> getLocationValue() {
+        final Location curLocation = this.locationTracker.getLocation();
+        if (curLocation != null) {
+            return Arrays.asList(curLocation.getLatitude(), curLocation.getLongitude(), curLocation.getAltitude());
+        } else {
+            return Arrays.asList(0, 0, 0);
+        }
+    }
+
+    /**
+     * 異常発生中の報告を他の通報先にも並行して送り始める
+     */
+    private synchronized void startFanout() {
+        if (!this.emergencyHubs.isEmpty()) {
             return;
         }
+        for (String server : this.config.getEmergencyServers()) {
+            final HubLink link = newHubLink();
+            link.start(Collections.singletonList(server));
+            this.emergencyHubs.add(link);
+        }
+    }
 
+    /**
+     * 他の通報先への同報をやめる。送り残しは送り終えてから接続をやめる
+     */
+    private synchronized void stopFanout() {
+        for (Iterator<HubLink> iterator = this.finishingHubs.iterator(); iterator.hasNext(); ) {
+            if (!iterator.next().isRunning()) {
+                iterator.remove();
+            }
+        }
+        for (HubLink link : this.emergencyHubs) {
+            link.finish();
+            this.finishingHubs.add(link);
+        }
+        this.emergencyHubs.clear();
+    }
+
+    /**
+     * 通報先への経路を作る
+     *
+     * @return 通報先への経路
+     */
+    private HubLink newHubLink() {
+        return new HubLink(this.scheduler, this.actorFactory, this.config.getOutboxPolicy(), this.config.getOutboxCapacity(),
+                (link, message, latency) -> {
+                    final Object sequence = message.getData().get(KEY_SEQUENCE);
+                    if (sequence instanceof Long) {
+                        this.delivery.emitted(link.getServer(), (Long) sequence, latency);
+                    }
+                });
+    }
+
+    /**
+     * reporter モジュールを登録した actor を作る処理を作る
+     *
+     * @return actor を作る処理
+     */
+    private HubLink.ActorFactory newActorFactory() {
+        return new HubLink.ActorFactory() {
+            @Override
+            public Actor newActor() {
+                return new Actor(MainActivity.this.config.getActorKey(), getString(R.string.module), null);
+            }
+
+            @Override
+            public Emitter addModule(Actor actor) {
+                try {
+                    return actor.addModule(getString(R.string.module), getPackageManager().getPackageInfo(getPackageName(), 0).versionName, getString(R.string.description), newReporterModule());
+                } catch (PackageManager.NameNotFoundException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * サーバーに報告する
+     *
+     * @param scheduled この報告の予定時刻（scheduler の時刻）
+     */
+    private synchronized void report(long scheduled) {
         final Map<String, Object> data = new HashMap<>();
-        final Pair<Long, Integer> heartrate = this.heartrate;
+        final HeartrateSample heartrate = this.heartrate;
+        final LatencyTrace trace = new LatencyTrace(heartrate.getDate(), heartrate.getDecoded(), this.alert.getDetected(), scheduled);
         data.put(KEY_ID, this.reportId);
-        data.put(KEY_DATE, (new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZZZZ", Locale.US)).format(new Date(heartrate.first)));
-        data.put(KEY_HEART_RATE, heartrate.second);
-        final Location curLocation = this.location;
-        if (curLocation != null) {
-            data.put(KEY_LOCATION, Arrays.asList(curLocation.getLatitude(), curLocation.getLongitude(), curLocation.getAltitude()));
-        } else {
-            data.put(KEY_LOCATION, Arrays.asList(0, 0, 0));
+        data.put(KEY_SEQUENCE, ++this.sequence);
+        data.put(KEY_DATE, (new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZZZZ", Locale.US)).format(new Date(heartrate.getDate())));
+        data.put(KEY_HEART_RATE, heartrate.getHeartrate());
+        if (System.currentTimeMillis() - this.beatDate < ECG_BEAT_TIMEOUT) {
+            data.put(KEY_ECG_HEART_RATE, Math.round(this.beatHeartrate));
+        }
+        final String cause = this.alert.getCause();
+        if (cause != null) {
+            data.put(KEY_CAUSE, cause);
+        }
+        data.put(KEY_SIGNAL, getSignal());
+        if (this.fidelity != ReporterModule.Fidelity.LATEST) {
+            data.put(KEY_HEART_RATES, collectHeartrates());
         }
-        emitter.emit(this.state.name().toLowerCase(), data);
-        Log.d(LOG_TAG, "Sent report");
+        data.put(KEY_LOCATION, getLocationValue());
+        final AlertStateMachine.State state = this.alert.getState();
+        if (state == AlertStateMachine.State.EMERGENCY) {
+            // 救助に向かう人がどちらへ動いていたか分かるように
+            data.put(KEY_TRACK, this.locationTracker.getTrack());
+        }
+        final String event = state.name().toLowerCase();
+        final boolean transition = !event.equals(this.lastEvent);
+        this.lastEvent = event;
+        if (state == AlertStateMachine.State.EMERGENCY && !this.emergencyHubs.isEmpty()) {
+            // 送った先ごとに trace を書き込むので、データも trace も別々にする
+            this.delivery.offered(this.sequence);
+            for (HubLink link : this.emergencyHubs) {
+                link.offer(new Outbox.Message(event, new HashMap<>(data), transition, trace.copy()));
+            }
+        }
+        this.hub.offer(new Outbox.Message(event, data, transition, trace));
+    }
 
-        this.handler.postDelayed(() -> report(emitter, interval), interval);
+    /**
+     * 前回の報告から後の心拍数を集める
+     *
+     * @return [UNIX 時間, 心拍数] の列
+     */
+    private List<List<Number>> collectHeartrates() {
+        final long head = this.heartrateSeries.getHead();
+        final long from = Math.max(this.reportedIndex + 1, head - this.heartrateSeries.capacity() + 1);
+        final List<List<Number>> heartrates = new ArrayList<>();
+        for (long i = from; i <= head; i++) {
+            final float value = this.heartrateSeries.get(i);
+            if (!Float.isNaN(value)) {
+                heartrates.add(Arrays.asList(i * this.heartrateSeries.getStep(), (int) value));
+            }
+        }
+        this.reportedIndex = head;
+        return heartrates;
+    }
+
+    /**
+     * hub から呼び出せる reporter モジュールを作る
+     *
+     * @return reporter モジュール
+     */
+    private ReporterModule newReporterModule() {
+        return new ReporterModule(new ReporterModule.Controller() {
+            @Override
+            public void setReportInterval(long interval) {
+                synchronized (MainActivity.this) {
+                    final Config config = MainActivity.this.config.withReportInterval(interval);
+                    MainActivity.this.remoteReportInterval = interval;
+                    applyConfig(config);
+                }
+            }
+
+            @Override
+            public void setDetectionThresholds(int lower, int upper, long duration) {
+                synchronized (MainActivity.this) {
+                    final Config config = MainActivity.this.config.withHeartrateThresholds(lower, upper, duration);
+                    MainActivity.this.remoteThresholds = true;
+                    MainActivity.this.remoteHeartrateLower = lower;
+                    MainActivity.this.remoteHeartrateUpper = upper;
+                    MainActivity.this.remoteAbnormalDuration = duration;
+                    applyConfig(config);
+                }
+            }
+
+            @Override
+            public void setFidelity(ReporterModule.Fidelity fidelity) {
+                synchronized (MainActivity.this) {
+                    if (MainActivity.this.fidelity != fidelity) {
+                        MainActivity.this.fidelity = fidelity;
+                        // 切り替えた時点から集める
+                        MainActivity.this.reportedIndex = MainActivity.this.heartrateSeries.getHead();
+                    }
+                }
+                Log.d(LOG_TAG, "Fidelity was changed to " + fidelity);
+            }
+
+            @Override
+            public Map<String, Object> getStatus() {
+                final Config config = MainActivity.this.config;
+                final Map<String, Object> status = new HashMap<>();
+                status.put(KEY_STATE, MainActivity.this.alert.getState().name().toLowerCase());
+                status.put(KEY_REPORT_INTERVAL, config.getReportInterval() / 1_000.0);
+                status.put(KEY_HEART_RATE_LOWER, config.getHeartrateLower());
+                status.put(KEY_HEART_RATE_UPPER, config.getHeartrateUpper());
+                status.put(KEY_ABNORMAL_DURATION, config.getAbnormalDuration() / 1_000.0);
+                status.put(KEY_FIDELITY, MainActivity.this.fidelity.name().toLowerCase());
+                status.put(KEY_TIME, System.currentTimeMillis());
+                status.put(KEY_QUEUE, MainActivity.this.hub.getQueueStats());
+                status.put(KEY_HUB, MainActivity.this.hub.getStats());
+                status.put(KEY_FANOUT, getFanoutStats());
+                status.put(KEY_SENSOR, MainActivity.this.sensorReconnector.getStats());
+                status.put(KEY_SIGNAL_STATS, MainActivity.this.watchdog.getStats());
+                status.put(KEY_DISPATCH, hitoe.getDispatchStats());
+                status.put(KEY_FALL, MainActivity.this.fallDetector.getStats());
+                status.put(KEY_ECG, MainActivity.this.rPeakDetector.getStats());
+                return status;
+            }
+
+            @Override
+            public List<List<Number>> getHistory(long from, long to, long resolution) {
+                return MainActivity.this.history.query(from, to, resolution);
+            }
+        });
+    }
+
+    /**
+     * 並行して送った報告の統計を返す
+     *
+     * @return 最初に届くまでの統計と、通報先ごとの統計
+     */
+    private Map<String, Object> getFanoutStats() {
+        final Map<String, Object> stats = this.delivery.getStats();
+        final List<Map<String, Object>> hubs = new ArrayList<>();
+        for (HubLink link : this.emergencyHubs) {
+            hubs.add(link.getAllStats());
+        }
+        stats.put(KEY_HUBS, hubs);
+        return stats;
     }
 
     /**
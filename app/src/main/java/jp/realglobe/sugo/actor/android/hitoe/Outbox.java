@@ -0,0 +1,350 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 送信待ちの報告を溜める上限付きの列。
+ * つながっている間だけ送り出し、つながっていない間に溜まった定期報告は方針に従って間引く。
+ * 状態の変わり目の報告は間引かず、溜まっている定期報告より先に送る
+ */
+final class Outbox {
+
+    // 統計のキー
+    private static final String KEY_DEPTH = "depth";
+    private static final String KEY_MAX_DEPTH = "maxDepth";
+    private static final String KEY_SENT = "sent";
+    private static final String KEY_COALESCED = "coalesced";
+    private static final String KEY_DROPPED = "dropped";
+    private static final String KEY_URGENT_DEPTH = "urgentDepth";
+    private static final String KEY_URGENT_LATENCY = "urgentLatency";
+    private static final String KEY_COUNT = "count";
+    private static final String KEY_P50 = "p50";
+    private static final String KEY_P95 = "p95";
+    private static final String KEY_P99 = "p99";
+    private static final String KEY_MAX = "max";
+
+    // 遅延の分布を出すために覚えておく、状態の変わり目の報告の数
+    private static final int LATENCY_SAMPLES = 256;
+
+    /**
+     * 定期報告の間引き方
+     */
+    enum Policy {
+        // イベントごとに最新の 1 つだけ残す
+        COALESCE,
+        // 上限を超えたら古いものから捨てる
+        DROP_OLDEST,
+    }
+
+    interface Sender {
+        /**
+         * 報告を送る
+         *
+         * @param message 報告
+         * @return 送れたら true。送り先が無くて送れなければ false で、報告は列の先頭に戻り、次につながるまで待つ
+         */
+        boolean call(Message message);
+    }
+
+    /**
+     * 報告
+     */
+    static final class Message {
+        private final String event;
+        private final Map<String, Object> data;
+        private final boolean transition;
+        private final LatencyTrace trace;
+        // 送信待ちに入れた時刻（ナノ秒）
+        private long offered;
+
+        /**
+         * @param event      イベント名
+         * @param data       送るデータ
+         * @param transition 状態の変わり目の報告なら true
+         * @param trace      経過時間の記録。無ければ null
+         */
+        Message(String event, Map<String, Object> data, boolean transition, @Nullable LatencyTrace trace) {
+            this.event = event;
+            this.data = data;
+            this.transition = transition;
+            this.trace = trace;
+        }
+
+        String getEvent() {
+            return this.event;
+        }
+
+        Map<String, Object> getData() {
+            return this.data;
+        }
+
+        boolean isTransition() {
+            return this.transition;
+        }
+
+        @Nullable
+        LatencyTrace getTrace() {
+            return this.trace;
+        }
+    }
+
+    private final Sender sender;
+    // 状態の変わり目の報告
+    private final ArrayDeque<Message> urgent = new ArrayDeque<>();
+    // 定期報告
+    private final ArrayDeque<Message> routine = new ArrayDeque<>();
+
+    private Policy policy;
+    // 溜めておく定期報告の最大数
+    private int capacity;
+
+    private boolean connected;
+    // 送り出している最中か
+    private boolean draining;
+
+    private int maxDepth;
+    private long sent;
+    private long coalesced;
+    private long dropped;
+    // 状態の変わり目の報告を送信待ちに入れてから送るまでの時間（ナノ秒）の直近の記録
+    private final long[] urgentLatencies = new long[LATENCY_SAMPLES];
+    private long urgentSent;
+
+    /**
+     * @param sender   送り先
+     * @param policy   定期報告の間引き方
+     * @param capacity 溜めておく定期報告の最大数
+     */
+    Outbox(Sender sender, Policy policy, int capacity) {
+        this.sender = sender;
+        configure(policy, capacity);
+    }
+
+    /**
+     * 間引き方を変える
+     *
+     * @param policy   定期報告の間引き方
+     * @param capacity 溜めておく定期報告の最大数
+     */
+    synchronized void configure(Policy policy, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("non-positive capacity " + capacity);
+        }
+        this.policy = policy;
+        this.capacity = capacity;
+        trim();
+    }
+
+    /**
+     * 接続状態を伝える。つながったら溜まっているものを送り出す
+     *
+     * @param connected つながっているなら true
+     */
+    void setConnected(boolean connected) {
+        synchronized (this) {
+            this.connected = connected;
+        }
+        if (connected) {
+            drain();
+        }
+    }
+
+    /**
+     * 報告を入れる。つながっていればそのまま送り出す
+     *
+     * @param message 報告
+     */
+    void offer(Message message) {
+        final LatencyTrace trace = message.getTrace();
+        if (trace != null) {
+            // 報告を作る時間は含めず、列に入れた時刻を記録する
+            trace.markEnqueued();
+        }
+        synchronized (this) {
+            message.offered = System.nanoTime();
+            if (message.isTransition()) {
+                this.urgent.addLast(message);
+            } else {
+                if (this.policy == Policy.COALESCE) {
+                    removeRoutine(message.getEvent());
+                }
+                this.routine.addLast(message);
+                trim();
+            }
+            this.maxDepth = Math.max(this.maxDepth, depth());
+        }
+        drain();
+    }
+
+    /**
+     * @return 溜まっているものが無いか
+     */
+    synchronized boolean isEmpty() {
+        return depth() == 0;
+    }
+
+    /**
+     * 統計を返す
+     *
+     * @return 溜まっている数、溜まった数の最大、送った数、まとめた数、捨てた数、状態の変わり目の報告の遅延の分布
+     */
+    synchronized Map<String, Object> getStats() {
+        final Map<String, Object> stats = new HashMap<>();
+        stats.put(KEY_DEPTH, depth());
+        stats.put(KEY_URGENT_DEPTH, this.urgent.size());
+        stats.put(KEY_MAX_DEPTH, this.maxDepth);
+        stats.put(KEY_SENT, this.sent);
+        stats.put(KEY_COALESCED, this.coalesced);
+        stats.put(KEY_DROPPED, this.dropped);
+        stats.put(KEY_URGENT_LATENCY, getUrgentLatency());
+        return stats;
+    }
+
+    /**
+     * 状態の変わり目の報告を送信待ちに入れてから送るまでの時間の分布を返す
+     *
+     * @return 記録した数と、直近の記録のミリ秒単位の 50, 95, 99 パーセンタイルと最大
+     */
+    private Map<String, Object> getUrgentLatency() {
+        final Map<String, Object> latency = new HashMap<>();
+        latency.put(KEY_COUNT, this.urgentSent);
+        final int n = (int) Math.min(this.urgentSent, LATENCY_SAMPLES);
+        if (n == 0) {
+            return latency;
+        }
+        final long[] sorted = Arrays.copyOf(this.urgentLatencies, n);
+        Arrays.sort(sorted);
+        latency.put(KEY_P50, percentile(sorted, 0.50));
+        latency.put(KEY_P95, percentile(sorted, 0.95));
+        latency.put(KEY_P99, percentile(sorted, 0.99));
+        latency.put(KEY_MAX, sorted[n - 1] / 1e6);
+        return latency;
+    }
+
+    private static double percentile(long[] sorted, double rank) {
+        final int index = (int) Math.ceil(rank * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private int depth() {
+        return this.urgent.size() + this.routine.size();
+    }
+
+    /**
+     * つながっている間、溜まっているものを状態の変わり目の報告から古い順に送る
+     */
+    private void drain() {
+        synchronized (this) {
+            if (this.draining) {
+                // 送り出している方に任せる
+                return;
+            }
+            this.draining = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                final Message message;
+                synchronized (this) {
+                    if (!this.connected || depth() == 0) {
+                        // 空だと見たのと同じロックの中で降りるので、その後に入ったものは入れた側が送り出す
+                        this.draining = false;
+                        done = true;
+                        return;
+                    }
+                    message = this.urgent.isEmpty() ? this.routine.pollFirst() : this.urgent.pollFirst();
+                }
+                // 送り先の処理はロックの外で
+                final boolean delivered = this.sender.call(message);
+                synchronized (this) {
+                    if (!delivered) {
+                        requeue(message);
+                        this.connected = false;
+                        this.draining = false;
+                        done = true;
+                        return;
+                    }
+                    this.sent++;
+                    if (message.isTransition()) {
+                        this.urgentLatencies[(int) (this.urgentSent % LATENCY_SAMPLES)] = System.nanoTime() - message.offered;
+                        this.urgentSent++;
+                    }
+                }
+            }
+        } finally {
+            if (!done) {
+                // 送り先で例外が出た
+                synchronized (this) {
+                    this.draining = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * 送れなかった報告を列の先頭に戻す。
+     * 定期報告をまとめる方針で、同じイベントの新しい定期報告が既にあれば戻さない
+     */
+    private void requeue(Message message) {
+        if (message.isTransition()) {
+            this.urgent.addFirst(message);
+            return;
+        }
+        if (this.policy == Policy.COALESCE) {
+            for (Message other : this.routine) {
+                if (other.getEvent().equals(message.getEvent())) {
+                    this.coalesced++;
+                    return;
+                }
+            }
+        }
+        this.routine.addFirst(message);
+        trim();
+    }
+
+    /**
+     * 同じイベントの定期報告を取り除く
+     */
+    private void removeRoutine(String event) {
+        for (Iterator<Message> iterator = this.routine.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().getEvent().equals(event)) {
+                iterator.remove();
+                this.coalesced++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 上限を超えた分の定期報告を古いものから捨てる
+     */
+    private void trim() {
+        while (this.routine.size() > this.capacity) {
+            this.routine.pollFirst();
+            this.dropped++;
+        }
+    }
+
+}
@@ -0,0 +1,289 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 心拍数の分位点を近似する、併合できる要約（KLL）。
+ * 値を段に積み、段が容量に達したら並べて 1 つおきに上の段へ送る。i 段目の値は 2^i 個分の重みを持つ。
+ * 上の段ほど容量を大きく、下の段ほど小さくするので、値の数によらず持つ値はおよそ 3k 個に収まり、
+ * 1 つの値ごとの更新はならして定数時間で済む。
+ * 同じ k の要約どうしは段ごとに値を合わせて詰め直せば併合できるので、端末ごとの要約から全体の分位点を求められる
+ */
+final class QuantileSketch {
+
+    // 最上段の容量の既定値。順位の誤差はおよそ 1.7 / k
+    static final int DEFAULT_K = 32;
+    // 1 段下がるごとの容量の比
+    private static final double DECAY = 2.0 / 3.0;
+    // 段の容量の最小
+    private static final int MIN_CAPACITY = 2;
+
+    // 直列化したときのキー
+    private static final String KEY_K = "k";
+    private static final String KEY_COUNT = "n";
+    private static final String KEY_MIN = "min";
+    private static final String KEY_MAX = "max";
+    private static final String KEY_LEVELS = "levels";
+
+    private final int k;
+    // 段ごとの値。0 段目が最下段
+    private int[][] levels;
+    private int[] sizes;
+    // 段ごとの容量。段が増えるたびに計算し直す
+    private int[] capacities;
+    private long count;
+    private int min;
+    private int max;
+    // 詰めるときに上へ送る側を交互に変える
+    private boolean odd;
+
+    /**
+     * @param k 最上段の容量
+     */
+    QuantileSketch(int k) {
+        if (k < MIN_CAPACITY) {
+            throw new IllegalArgumentException("too small k " + k);
+        }
+        this.k = k;
+        clear();
+    }
+
+    private void clear() {
+        this.levels = new int[][]{new int[this.k]};
+        this.sizes = new int[1];
+        this.capacities = capacities(1);
+        this.count = 0;
+        this.min = Integer.MAX_VALUE;
+        this.max = Integer.MIN_VALUE;
+    }
+
+    private int[] capacities(int height) {
+        final int[] capacities = new int[height];
+        for (int level = 0; level < height; level++) {
+            final int depth = height - 1 - level;
+            capacities[level] = Math.max(MIN_CAPACITY, (int) Math.ceil(this.k * Math.pow(DECAY, depth)));
+        }
+        return capacities;
+    }
+
+    /**
+     * 値を加える
+     *
+     * @param value 値
+     */
+    synchronized void add(int value) {
+        this.count++;
+        this.min = Math.min(this.min, value);
+        this.max = Math.max(this.max, value);
+        append(0, value);
+        if (this.sizes[0] >= this.capacities[0]) {
+            compress();
+        }
+    }
+
+    /**
+     * 他の要約を併合する
+     *
+     * @param other 同じ k の要約
+     */
+    void merge(QuantileSketch other) {
+        final int[][] levels;
+        final int[] sizes;
+        final long count;
+        final int min;
+        final int max;
+        synchronized (other) {
+            if (other.k != this.k) {
+                throw new IllegalArgumentException("k " + other.k + " differs from " + this.k);
+            }
+            levels = other.levels.clone();
+            sizes = other.sizes.clone();
+            count = other.count;
+            min = other.min;
+            max = other.max;
+            for (int i = 0; i < levels.length; i++) {
+                levels[i] = Arrays.copyOf(levels[i], sizes[i]);
+            }
+        }
+        synchronized (this) {
+            for (int i = 0; i < levels.length; i++) {
+                for (int j = 0; j < sizes[i]; j++) {
+                    append(i, levels[i][j]);
+                }
+            }
+            this.count += count;
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+            compress();
+        }
+    }
+
+    private void append(int level, int value) {
+        while (level >= this.levels.length) {
+            addLevel();
+        }
+        if (this.sizes[level] == this.levels[level].length) {
+            this.levels[level] = Arrays.copyOf(this.levels[level], 2 * this.levels[level].length);
+        }
+        this.levels[level][this.sizes[level]++] = value;
+    }
+
+    private void addLevel() {
+        this.levels = Arrays.copyOf(this.levels, this.levels.length + 1);
+        this.levels[this.levels.length - 1] = new int[this.k];
+        this.sizes = Arrays.copyOf(this.sizes, this.sizes.length + 1);
+        this.capacities = capacities(this.levels.length);
+    }
+
+    /**
+     * 容量に達した段が無くなるまで詰める。
+     * 段が増えると下の段の容量が減るので、詰めたら最下段から見直す
+     */
+    private void compress() {
+        for (int level = 0; level < this.levels.length; level++) {
+            if (this.sizes[level] >= this.capacities[level]) {
+                compact(level);
+                level = -1;
+            }
+        }
+    }
+
+    /**
+     * 段を並べて、1 つおきに上の段へ送る。数が奇数なら最大の値だけ残す
+     */
+    private void compact(int level) {
+        if (level + 1 == this.levels.length) {
+            addLevel();
+        }
+        final int[] items = this.levels[level];
+        final int size = this.sizes[level];
+        Arrays.sort(items, 0, size);
+        this.odd = !this.odd;
+        final int even = size & ~1;
+        for (int i = this.odd ? 1 : 0; i < even; i += 2) {
+            append(level + 1, items[i]);
+        }
+        if (size != even) {
+            items[0] = items[size - 1];
+        }
+        this.sizes[level] = size - even;
+    }
+
+    /**
+     * 分位点を返す
+     *
+     * @param fraction 0 以上 1 以下の割合
+     * @return 分位点の近似。値が無ければ NaN
+     */
+    synchronized double quantile(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction out of range " + fraction);
+        } else if (this.count == 0) {
+            return Double.NaN;
+        } else if (fraction == 0) {
+            return this.min;
+        } else if (fraction == 1) {
+            return this.max;
+        }
+        // 値と重みをまとめて並べる
+        int total = 0;
+        for (int size : this.sizes) {
+            total += size;
+        }
+        final long[] weighted = new long[total];
+        long weight = 0;
+        int n = 0;
+        for (int i = 0; i < this.levels.length; i++) {
+            for (int j = 0; j < this.sizes[i]; j++) {
+                // 値を上位、段を下位に詰めて、値の順に並ぶようにする
+                weighted[n++] = ((long) this.levels[i][j] << 8) | i;
+            }
+            weight += (long) this.sizes[i] << i;
+        }
+        Arrays.sort(weighted);
+        final double target = fraction * weight;
+        long cumulative = 0;
+        for (long entry : weighted) {
+            cumulative += 1L << (entry & 0xff);
+            if (cumulative >= target) {
+                return entry >> 8;
+            }
+        }
+        return this.max;
+    }
+
+    /**
+     * @return 加えた値の数
+     */
+    synchronized long getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return 持っている値の数
+     */
+    synchronized int getRetained() {
+        int retained = 0;
+        for (int size : this.sizes) {
+            retained += size;
+        }
+        return retained;
+    }
+
+    /**
+     * 直列化する。levels の i 番目が i 段目の値で、それぞれ 2^i 個分の重みを持つ
+     *
+     * @return k、値の数、最小、最大、段ごとの値
+     */
+    synchronized Map<String, Object> toMap() {
+        final Map<String, Object> map = new HashMap<>();
+        map.put(KEY_K, this.k);
+        map.put(KEY_COUNT, this.count);
+        if (this.count > 0) {
+            map.put(KEY_MIN, this.min);
+            map.put(KEY_MAX, this.max);
+        }
+        final List<List<Integer>> levels = new ArrayList<>();
+        for (int i = 0; i < this.levels.length; i++) {
+            final List<Integer> items = new ArrayList<>();
+            for (int j = 0; j < this.sizes[i]; j++) {
+                items.add(this.levels[i][j]);
+            }
+            levels.add(items);
+        }
+        map.put(KEY_LEVELS, levels);
+        return map;
+    }
+
+    /**
+     * 直列化して空にする。期間ごとの要約を切り出すのに使う
+     *
+     * @return toMap と同じ
+     */
+    synchronized Map<String, Object> flush() {
+        final Map<String, Object> map = toMap();
+        clear();
+        return map;
+    }
+
+}
@@ -0,0 +1,357 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 心電図から R 波を検出する。Pan-Tompkins 法に沿って、
+ * 帯域通過、微分、2 乗、移動窓積分を通した値の山を、適応的な閾値で R 波か雑音かに振り分ける。
+ * 値は 1 つずつ入れ、作っておいた配列だけで処理する
+ */
+final class RPeakDetector {
+
+    // 各段の長さ（秒）。200 Hz で元の方法と同じ長さになる
+    private static final double LOW_PASS_LENGTH = 0.03;
+    private static final double HIGH_PASS_LENGTH = 0.16;
+    private static final double INTEGRATION_LENGTH = 0.15;
+    // R 波の後、次の R 波を探さない時間（秒）
+    private static final double REFRACTORY = 0.2;
+    // 閾値を学ぶ時間（秒）
+    private static final double LEARNING = 2;
+    // 平均の何倍 R 波が無ければ見逃した山を探し直すか
+    private static final double SEARCH_BACK_FACTOR = 1.66;
+    // 探し直しで拾えるようにする最長の R 波間隔（秒）。30 bpm
+    private static final double MAX_INTERVAL = 2;
+    // R 波間隔の平均を取る数
+    private static final int INTERVALS = 8;
+
+    // 統計のキー
+    private static final String KEY_BEATS = "beats";
+    private static final String KEY_SEARCH_BACKS = "searchBacks";
+    private static final String KEY_LEARNING = "learning";
+    private static final String KEY_LAST_INTERVAL = "lastInterval";
+    private static final String KEY_HEART_RATE = "heartRate";
+
+    interface Listener {
+        /**
+         * R 波を受け取る
+         *
+         * @param date      R 波のミリ秒単位の UNIX 時間
+         * @param heartrate 前の R 波からの瞬時心拍数。最初の R 波では 0
+         */
+        void call(long date, float heartrate);
+    }
+
+    /**
+     * 長さ固定の移動和
+     */
+    private static final class MovingSum {
+        private final double[] values;
+        private int next;
+        private double sum;
+
+        MovingSum(int length) {
+            this.values = new double[length];
+        }
+
+        /**
+         * 値を足して、一番古い値を除いた和を返す
+         */
+        double add(double value) {
+            this.sum += value - this.values[this.next];
+            this.values[this.next] = value;
+            this.next++;
+            if (this.next == this.values.length) {
+                this.next = 0;
+                // 丸め誤差が溜まらないように 1 周ごとに足し直す
+                double sum = 0;
+                for (double v : this.values) {
+                    sum += v;
+                }
+                this.sum = sum;
+            }
+            return this.sum;
+        }
+
+        /**
+         * 全て 0 に戻す
+         */
+        void clear() {
+            Arrays.fill(this.values, 0);
+            this.next = 0;
+            this.sum = 0;
+        }
+
+        /**
+         * @param age 何個前か
+         * @return 値
+         */
+        double get(int age) {
+            final int index = this.next - 1 - age;
+            return this.values[index < 0 ? index + this.values.length : index];
+        }
+    }
+
+    private final Listener listener;
+    private final double sampleRate;
+    private final MovingSum lowPass1;
+    private final MovingSum lowPass2;
+    private final MovingSum highPass;
+    private final int highPassLength;
+    private final MovingSum integration;
+    private final int integrationLength;
+    // 微分のための帯域通過後の値
+    private final double[] filtered = new double[5];
+    private final int refractory;
+    private final int learning;
+    // 入れた値から帯域通過後の値までの遅れ
+    private final int bandDelay;
+    // R 波の位置を引くための、直近の値の時刻と帯域通過後の値
+    private final long[] dates;
+    private final double[] bands;
+
+    // 入れた値の数
+    private long index;
+
+    // 閾値の元になる R 波と雑音の山の高さ
+    private double signalPeak;
+    private double noisePeak;
+    private double learningMax;
+    private double learningSum;
+
+    // 今の山
+    private double peakValue;
+    private long peakIndex = -1;
+    // 前の R 波以降で一番高い雑音の山
+    private double candidateValue;
+    private long candidateIndex = -1;
+
+    // 前の R 波の移動窓積分の山の位置と、R 波そのものの位置
+    private long lastBeat = -1;
+    private long lastBeatSample = -1;
+    private long lastBeatDate;
+    // 直近の R 波間隔（値の数）
+    private final long[] intervals = new long[INTERVALS];
+    private int intervalCount;
+    private long intervalSum;
+
+    private long beats;
+    private long searchBacks;
+    private long lastInterval = -1;
+    private float heartrate;
+
+    /**
+     * @param sampleRate 心電図の標本化周波数（Hz）
+     * @param listener   R 波を受け取る
+     */
+    RPeakDetector(double sampleRate, Listener listener) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("non-positive sample rate " + sampleRate);
+        }
+        this.listener = listener;
+        this.sampleRate = sampleRate;
+        final int lowPassLength = samples(LOW_PASS_LENGTH);
+        this.lowPass1 = new MovingSum(lowPassLength);
+        this.lowPass2 = new MovingSum(lowPassLength);
+        this.highPassLength = samples(HIGH_PASS_LENGTH);
+        this.highPass = new MovingSum(this.highPassLength + 1);
+        this.integrationLength = samples(INTEGRATION_LENGTH);
+        this.integration = new MovingSum(this.integrationLength);
+        this.refractory = samples(REFRACTORY);
+        this.learning = samples(LEARNING);
+        this.bandDelay = (lowPassLength - 1) + this.highPassLength / 2;
+        // 探し直す山は最長の R 波間隔の SEARCH_BACK_FACTOR 倍まで遡るので、その分と各段の遅れを持っておく
+        this.dates = new long[Integer.highestOneBit(this.bandDelay + this.integrationLength + 2 + samples(SEARCH_BACK_FACTOR * MAX_INTERVAL)) << 1];
+        this.bands = new double[this.dates.length];
+    }
+
+    private int samples(double seconds) {
+        return Math.max(1, (int) Math.round(seconds * this.sampleRate));
+    }
+
+    /**
+     * 心電図の値を入れる
+     *
+     * @param date  ミリ秒単位の UNIX 時間
+     * @param value 心電図の値
+     */
+    synchronized void update(long date, double value) {
+        this.dates[(int) (this.index & (this.dates.length - 1))] = date;
+
+        // 低域通過: 長さの等しい移動和 2 段
+        final double low = this.lowPass2.add(this.lowPass1.add(value));
+        // 高域通過: 中央の値から移動平均を引く
+        final double mean = this.highPass.add(low) / (this.highPassLength + 1);
+        final double band = this.highPass.get(this.highPassLength / 2) - mean;
+        // 微分
+        System.arraycopy(this.filtered, 0, this.filtered, 1, this.filtered.length - 1);
+        this.filtered[0] = band;
+        this.bands[(int) (this.index & (this.bands.length - 1))] = band;
+        final double slope = (2 * this.filtered[0] + this.filtered[1] - this.filtered[3] - 2 * this.filtered[4]) / 8;
+        // 2 乗して移動窓積分
+        final double integrated = this.integration.add(slope * slope) / this.integrationLength;
+
+        final long index = this.index++;
+        if (index < this.learning) {
+            this.learningMax = Math.max(this.learningMax, integrated);
+            this.learningSum += integrated;
+            if (index == this.learning - 1) {
+                this.signalPeak = 0.25 * this.learningMax;
+                this.noisePeak = 0.5 * this.learningSum / this.learning;
+            }
+            return;
+        }
+
+        if (integrated > this.peakValue) {
+            this.peakValue = integrated;
+            this.peakIndex = index;
+        } else if (this.peakIndex >= 0 && integrated < this.peakValue / 2) {
+            // 山を越えた
+            classify(this.peakValue, this.peakIndex);
+            this.peakValue = integrated;
+            this.peakIndex = -1;
+        } else if (this.peakIndex < 0) {
+            // 谷を辿る
+            this.peakValue = integrated;
+        }
+        searchBack(index);
+    }
+
+    private double threshold() {
+        return this.noisePeak + 0.25 * (this.signalPeak - this.noisePeak);
+    }
+
+    private void classify(double value, long index) {
+        if (value > threshold() && (this.lastBeat < 0 || index - this.lastBeat >= this.refractory)) {
+            this.signalPeak = 0.125 * value + 0.875 * this.signalPeak;
+            beat(index);
+            return;
+        }
+        this.noisePeak = 0.125 * value + 0.875 * this.noisePeak;
+        if (value > this.candidateValue && (this.lastBeat < 0 || index - this.lastBeat >= this.refractory)) {
+            this.candidateValue = value;
+            this.candidateIndex = index;
+        }
+    }
+
+    /**
+     * R 波が長く無ければ、見逃した山のうち一番高いものを低い閾値で拾い直す
+     */
+    private void searchBack(long index) {
+        if (this.intervalCount == 0 || this.candidateIndex < 0) {
+            return;
+        }
+        final double average = (double) this.intervalSum / this.intervalCount;
+        if (index - this.lastBeat <= SEARCH_BACK_FACTOR * average) {
+            return;
+        }
+        if (this.candidateValue > threshold() / 2) {
+            this.signalPeak = 0.25 * this.candidateValue + 0.75 * this.signalPeak;
+            this.searchBacks++;
+            beat(this.candidateIndex);
+        } else {
+            this.candidateIndex = -1;
+            this.candidateValue = 0;
+        }
+    }
+
+    private void beat(long peakIndex) {
+        this.candidateIndex = -1;
+        this.candidateValue = 0;
+        // 移動窓積分の窓の中で帯域通過後の値が一番大きいところを R 波とする
+        final long from = peakIndex - this.integrationLength - 2;
+        if (from - this.bandDelay < 0 || this.index - (from - this.bandDelay) > this.bands.length) {
+            // 時刻が分からないほど古い。R 波としては数えずに、前の R 波からの探し直しを続ける
+            return;
+        }
+        this.lastBeat = peakIndex;
+        final int mask = this.bands.length - 1;
+        long best = peakIndex;
+        for (long i = from; i <= peakIndex; i++) {
+            if (Math.abs(this.bands[(int) (i & mask)]) > Math.abs(this.bands[(int) (best & mask)])) {
+                best = i;
+            }
+        }
+        final long sample = best - this.bandDelay;
+        final long date = this.dates[(int) (sample & mask)];
+        float heartrate = 0;
+        if (this.lastBeatSample >= 0) {
+            final long interval = sample - this.lastBeatSample;
+            final int slot = (int) (this.beats % INTERVALS);
+            if (this.intervalCount == INTERVALS) {
+                this.intervalSum -= this.intervals[slot];
+            } else {
+                this.intervalCount++;
+            }
+            this.intervals[slot] = interval;
+            this.intervalSum += interval;
+            this.lastInterval = date - this.lastBeatDate;
+            heartrate = (float) (60 * this.sampleRate / interval);
+        }
+        this.lastBeatSample = sample;
+        this.lastBeatDate = date;
+        this.heartrate = heartrate;
+        this.beats++;
+        this.listener.call(date, heartrate);
+    }
+
+    /**
+     * 途切れた後に、閾値を学ぶところからやり直す。統計の数は残す
+     */
+    synchronized void reset() {
+        this.lowPass1.clear();
+        this.lowPass2.clear();
+        this.highPass.clear();
+        this.integration.clear();
+        Arrays.fill(this.filtered, 0);
+        this.index = 0;
+        this.signalPeak = 0;
+        this.noisePeak = 0;
+        this.learningMax = 0;
+        this.learningSum = 0;
+        this.peakValue = 0;
+        this.peakIndex = -1;
+        this.candidateValue = 0;
+        this.candidateIndex = -1;
+        this.lastBeat = -1;
+        this.lastBeatSample = -1;
+        this.lastBeatDate = 0;
+        Arrays.fill(this.intervals, 0);
+        this.intervalCount = 0;
+        this.intervalSum = 0;
+        this.heartrate = 0;
+    }
+
+    /**
+     * 統計を返す
+     *
+     * @return R 波の数、探し直して拾った数、閾値を学んでいる最中か、直近の R 波間隔（ミリ秒）、直近の瞬時心拍数
+     */
+    synchronized Map<String, Object> getStats() {
+        final Map<String, Object> stats = new HashMap<>();
+        stats.put(KEY_BEATS, this.beats);
+        stats.put(KEY_SEARCH_BACKS, this.searchBacks);
+        stats.put(KEY_LEARNING, this.index < this.learning);
+        stats.put(KEY_LAST_INTERVAL, this.lastInterval >= 0 ? this.lastInterval : null);
+        stats.put(KEY_HEART_RATE, this.heartrate);
+        return stats;
+    }
+
+}
@@ -0,0 +1,158 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * sugo-hub 経由で呼び出せる reporter モジュールの中身。
+ * public なメソッドが呼び出し側から見える
+ */
+public class ReporterModule {
+
+    // getHistory の返り値のキー
+    private static final String KEY_FROM = "from";
+    private static final String KEY_TO = "to";
+    private static final String KEY_RESOLUTION = "resolution";
+    private static final String KEY_BUCKETS = "buckets";
+
+    /**
+     * 報告する心拍数の細かさ
+     */
+    enum Fidelity {
+        // 最新の値だけ
+        LATEST,
+        // 前回の報告からの全ての値
+        FULL,
+        // 警告中と異常発生中は前回の報告からの全ての値で、最初の報告には直前の値も遡って加える
+        ADAPTIVE,
+    }
+
+    interface Controller {
+        /**
+         * 報告間隔を変える
+         *
+         * @param interval 報告間隔（ミリ秒）
+         */
+        void setReportInterval(long interval);
+
+        /**
+         * 異常検知の閾値を変える
+         *
+         * @param lower    心拍数の正常範囲の下限
+         * @param upper    心拍数の正常範囲の上限
+         * @param duration 異常とみなすまでの時間（ミリ秒）
+         */
+        void setDetectionThresholds(int lower, int upper, long duration);
+
+        /**
+         * 報告する心拍数の細かさを変える
+         *
+         * @param fidelity 細かさ
+         */
+        void setFidelity(Fidelity fidelity);
+
+        /**
+         * 今の状態を返す
+         *
+         * @return 今の状態
+         */
+        Map<String, Object> getStatus();
+
+        /**
+         * 過去の心拍数を期間ごとにまとめて返す
+         *
+         * @param from       始まり（ミリ秒単位の UNIX 時間）
+         * @param to         終わり（ミリ秒単位の UNIX 時間）
+         * @param resolution まとめる期間の長さ（ミリ秒）
+         * @return 期間ごとの [始まり, 最小, 最大, 平均, 個数]
+         */
+        List<List<Number>> getHistory(long from, long to, long resolution);
+    }
+
+    private final Controller controller;
+
+    ReporterModule(Controller controller) {
+        this.controller = controller;
+    }
+
+    /**
+     * 報告間隔を変える
+     *
+     * @param seconds 報告間隔（秒）
+     * @return 変えた後の状態
+     */
+    public Map<String, Object> setReportInterval(Number seconds) {
+        this.controller.setReportInterval(Math.round(1_000 * seconds.doubleValue()));
+        return this.controller.getStatus();
+    }
+
+    /**
+     * 異常検知の閾値を変える
+     *
+     * @param lower    心拍数の正常範囲の下限
+     * @param upper    心拍数の正常範囲の上限
+     * @param duration 異常とみなすまでの時間（秒）
+     * @return 変えた後の状態
+     */
+    public Map<String, Object> setDetectionThresholds(Number lower, Number upper, Number duration) {
+        this.controller.setDetectionThresholds(lower.intValue(), upper.intValue(), Math.round(1_000 * duration.doubleValue()));
+        return this.controller.getStatus();
+    }
+
+    /**
+     * 報告する心拍数の細かさを変える
+     *
+     * @param fidelity "latest"、"full"、"adaptive" のいずれか
+     * @return 変えた後の状態
+     */
+    public Map<String, Object> setFidelity(String fidelity) {
+        this.controller.setFidelity(Fidelity.valueOf(fidelity.toUpperCase(Locale.US)));
+        return this.controller.getStatus();
+    }
+
+    /**
+     * 過去の心拍数を期間ごとにまとめて返す
+     *
+     * @param from       始まり（ミリ秒単位の UNIX 時間）
+     * @param to         終わり（ミリ秒単位の UNIX 時間）。これ自体は含まない
+     * @param resolution まとめる期間の長さ（秒）
+     * @return 問い合わせ内容と、値のある期間ごとの [始まり, 最小, 最大, 平均, 個数]
+     */
+    public Map<String, Object> getHistory(Number from, Number to, Number resolution) {
+        final long resolutionMillis = Math.round(1_000 * resolution.doubleValue());
+        final Map<String, Object> history = new HashMap<>();
+        history.put(KEY_FROM, from.longValue());
+        history.put(KEY_TO, to.longValue());
+        history.put(KEY_RESOLUTION, resolution);
+        history.put(KEY_BUCKETS, this.controller.getHistory(from.longValue(), to.longValue(), resolutionMillis));
+        return history;
+    }
+
+    /**
+     * 生存確認
+     *
+     * @return 今の状態
+     */
+    public Map<String, Object> ping() {
+        return this.controller.getStatus();
+    }
+
+}
@@ -0,0 +1,303 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.Arrays;
+
+/**
+ * HitoeSdkAPI の応答を 1 回の走査で行と列に切り分ける。
+ * 正規表現も途中の文字列も使わず、列の位置だけを覚える。
+ * reset で次の応答に移れるので、何度届くデータには 1 つを使い回す
+ */
+final class ResponseScanner {
+
+    private static final char COLUMN_SEPARATOR = ',';
+
+    // 使い回す ID 文字列の数
+    private static final int POOL_SIZE = 32;
+    // その場で小数にする仮数の最大桁数。これ以下なら double で正確に表せる
+    private static final int MAX_FAST_DIGITS = 15;
+    // double で正確に表せる 10 の累乗
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+    // 最近出てきた ID 文字列
+    private static final String[] pool = new String[POOL_SIZE];
+    private static int poolNext;
+
+    private String text;
+    // 次の行の始まり
+    private int position;
+    // 今の行の列の始まりと終わり
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int columnCount;
+
+    ResponseScanner() {
+        this("");
+    }
+
+    /**
+     * @param text 応答
+     */
+    ResponseScanner(String text) {
+        this.text = text;
+    }
+
+    /**
+     * 別の応答を先頭から読み直す
+     *
+     * @param text 応答
+     */
+    void reset(String text) {
+        this.text = text;
+        this.position = 0;
+        this.columnCount = 0;
+    }
+
+    /**
+     * 次の空でない行に進む。行の前後の空白は無視する
+     *
+     * @return 次の行があれば true
+     */
+    boolean nextRow() {
+        final int length = this.text.length();
+        while (this.position < length) {
+            int start = this.position;
+            int end = start;
+            while (end < length && this.text.charAt(end) != '\n' && this.text.charAt(end) != '\r') {
+                end++;
+            }
+            this.position = end + 1;
+            while (start < end && this.text.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && this.text.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            if (start < end) {
+                split(start, end);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void split(int start, int end) {
+        this.columnCount = 0;
+        int columnStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i < end && this.text.charAt(i) != COLUMN_SEPARATOR) {
+                continue;
+            }
+            if (this.columnCount == this.starts.length) {
+                this.starts = Arrays.copyOf(this.starts, 2 * this.columnCount);
+                this.ends = Arrays.copyOf(this.ends, 2 * this.columnCount);
+            }
+            this.starts[this.columnCount] = columnStart;
+            this.ends[this.columnCount] = i;
+            this.columnCount++;
+            columnStart = i + 1;
+        }
+    }
+
+    /**
+     * @return 今の行の列の数
+     */
+    int getColumnCount() {
+        return this.columnCount;
+    }
+
+    /**
+     * @return 今の行
+     */
+    String getRow() {
+        return this.text.substring(this.starts[0], this.ends[this.columnCount - 1]);
+    }
+
+    /**
+     * 列を文字列として返す。最近出てきた文字列と同じなら、それを使い回す
+     *
+     * @param column 列番号
+     * @return 文字列
+     */
+    String getString(int column) {
+        checkColumn(column);
+        return intern(this.text, this.starts[column], this.ends[column]);
+    }
+
+    /**
+     * 列を | 区切りのデータキーとして返す
+     *
+     * @param column 列番号
+     * @return データキーのビット集合
+     */
+    long getDataKeys(int column) {
+        checkColumn(column);
+        return DataKeys.parse(this.text, this.starts[column], this.ends[column]);
+    }
+
+    /**
+     * 列を整数として返す
+     *
+     * @param column 列番号
+     * @return 整数
+     */
+    long getLong(int column) {
+        checkColumn(column);
+        final int start = this.starts[column];
+        final int end = this.ends[column];
+        final boolean negative = start < end && this.text.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            throw new IllegalArgumentException("not a number in column " + column + " of " + getRow());
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            final char c = this.text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("not a number in column " + column + " of " + getRow());
+            }
+            value = 10 * value + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * 列を小数として返す。
+     * 桁の少ない普通の書き方ならその場で読み、それ以外は Double.parseDouble に任せる
+     *
+     * @param column 列番号
+     * @return 小数
+     */
+    double getDouble(int column) {
+        checkColumn(column);
+        final int start = this.starts[column];
+        final int end = this.ends[column];
+        final double value = parseFast(this.text, start, end);
+        if (!Double.isNaN(value)) {
+            return value;
+        }
+        try {
+            return Double.parseDouble(this.text.substring(start, end));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number in column " + column + " of " + getRow());
+        }
+    }
+
+    /**
+     * [+-]?数字*(.数字*)?([eE][+-]?数字+)? の形で、仮数が MAX_FAST_DIGITS 桁以下、
+     * 10 の指数が POWERS_OF_TEN に収まるものを読む。
+     * 正確な仮数と正確な 10 の累乗の 1 回の掛け算か割り算なので、Double.parseDouble と同じ値になる
+     *
+     * @return 小数。その場で読めなければ NaN
+     */
+    private static double parseFast(String text, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            final char c = text.charAt(i);
+            if (c == '.' && !point) {
+                point = true;
+                continue;
+            } else if (c < '0' || c > '9') {
+                break;
+            }
+            digits++;
+            if (mantissa == 0 && c == '0') {
+                // 先頭の 0 は桁に数えない
+            } else if (++significant > MAX_FAST_DIGITS) {
+                return Double.NaN;
+            } else {
+                mantissa = 10 * mantissa + (c - '0');
+            }
+            if (point) {
+                exponent--;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        if (i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+                negativeExponent = text.charAt(i) == '-';
+                i++;
+            }
+            if (i == end || end - i > 3) {
+                return Double.NaN;
+            }
+            int explicit = 0;
+            for (; i < end; i++) {
+                final char c = text.charAt(i);
+                if (c < '0' || c > '9') {
+                    return Double.NaN;
+                }
+                explicit = 10 * explicit + (c - '0');
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (i != end) {
+            return Double.NaN;
+        }
+        final double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            value = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return Double.NaN;
+        }
+        return negative ? -value : value;
+    }
+
+    private void checkColumn(int column) {
+        if (column < 0 || column >= this.columnCount) {
+            throw new IllegalArgumentException("no column " + column + " in " + getRow());
+        }
+    }
+
+    private static synchronized String intern(String text, int start, int end) {
+        final int length = end - start;
+        if (length == 0) {
+            return "";
+        }
+        for (String str : pool) {
+            if (str != null && str.length() == length && str.regionMatches(0, text, start, length)) {
+                return str;
+            }
+        }
+        final String str = text.substring(start, end);
+        pool[poolNext] = str;
+        poolNext = (poolNext + 1) % POOL_SIZE;
+        return str;
+    }
+
+}
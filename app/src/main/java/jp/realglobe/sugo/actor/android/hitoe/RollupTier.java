@@ -0,0 +1,375 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 一定の期間ごとにまとめた値（最小、最大、合計、個数）をファイルに環状に保持する。
+ * レコードは固定長で時刻順に並ぶので、先頭時刻の二分探索で範囲を引ける。
+ * 書き込みはブロック単位にまとめ、まとめ終えたレコードはより粗い段に渡す
+ */
+final class RollupTier implements Closeable {
+
+    interface Consumer {
+        /**
+         * まとめた値を受け取る
+         *
+         * @param start 期間の始まり（ミリ秒単位の UNIX 時間）
+         * @param min   最小値
+         * @param max   最大値
+         * @param sum   合計
+         * @param count 個数
+         */
+        void accept(long start, float min, float max, double sum, int count);
+    }
+
+    private static final int MAGIC = 0x48525453;
+    private static final int VERSION = 1;
+
+    // ヘッダ: magic(4) version(4) resolution(8) capacity(4) start(4) size(4) 予約(4)
+    static final int HEADER_SIZE = 32;
+    // レコード: start(8) min(4) max(4) sum(8) count(4)
+    static final int RECORD_SIZE = 28;
+    // まとめて書き込むレコード数
+    static final int BLOCK_RECORDS = 64;
+    // 書き込みを待たせる最大の時間幅（ミリ秒）
+    private static final long MAX_PENDING_AGE = 60_000;
+
+    private final long resolution;
+    private final int capacity;
+    private final FileChannel channel;
+
+    // ファイル上の環状バッファの最古の位置と個数
+    private int start;
+    private int size;
+
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer probe = ByteBuffer.allocate(8);
+    // 書き込み待ちのレコード
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_RECORDS * RECORD_SIZE);
+    private int pending;
+    // 最後に書いた（書き込み待ちを含む）レコードの始まり
+    private long lastStart = Long.MIN_VALUE;
+    // 読み出し用
+    private final ByteBuffer readBlock = ByteBuffer.allocate(BLOCK_RECORDS * RECORD_SIZE);
+
+    // まとめている途中の期間
+    private long openStart;
+    private float openMin;
+    private float openMax;
+    private double openSum;
+    private int openCount;
+
+    // より粗い段
+    private RollupTier next;
+
+    private RollupTier(long resolution, int capacity, FileChannel channel) {
+        this.resolution = resolution;
+        this.capacity = capacity;
+        this.channel = channel;
+    }
+
+    /**
+     * ファイルを開く。形式が合わなければ空にする
+     *
+     * @param file       ファイル
+     * @param resolution まとめる期間の長さ（ミリ秒）
+     * @param capacity   保持するレコード数
+     * @return 段
+     * @throws IOException 入出力エラー
+     */
+    static RollupTier open(File file, long resolution, int capacity) throws IOException {
+        if (resolution <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("invalid resolution " + resolution + " or capacity " + capacity);
+        }
+        final FileChannel channel = (new RandomAccessFile(file, "rw")).getChannel();
+        final RollupTier tier = new RollupTier(resolution, capacity, channel);
+        try {
+            if (!tier.readHeader()) {
+                channel.truncate(0);
+                tier.start = 0;
+                tier.size = 0;
+                tier.writeHeader();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return tier;
+    }
+
+    void setNext(RollupTier next) {
+        this.next = next;
+    }
+
+    long getResolution() {
+        return this.resolution;
+    }
+
+    /**
+     * 値を 1 つ入れる
+     *
+     * @param date  ミリ秒単位の UNIX 時間
+     * @param value 値
+     * @throws IOException 入出力エラー
+     */
+    void add(long date, float value) throws IOException {
+        merge(date, value, value, value, 1);
+    }
+
+    /**
+     * 細かい段でまとめた値を入れる
+     *
+     * @throws IOException 入出力エラー
+     */
+    void merge(long date, float min, float max, double sum, int count) throws IOException {
+        final long bucket = floor(date, this.resolution);
+        if (this.openCount > 0) {
+            if (bucket < this.openStart) {
+                // 遅れて来たものは捨てる
+                return;
+            } else if (bucket > this.openStart) {
+                closeBucket();
+            }
+        } else if (bucket < this.lastStart) {
+            // 開き直しや時計の戻りで、書いたレコードより前になったものは捨てる。
+            // 同じ期間なら別のレコードとして続けるので、始まりの順は崩れない
+            return;
+        }
+        if (this.openCount == 0) {
+            this.openStart = bucket;
+            this.openMin = min;
+            this.openMax = max;
+            this.openSum = 0;
+        } else {
+            this.openMin = Math.min(this.openMin, min);
+            this.openMax = Math.max(this.openMax, max);
+        }
+        this.openSum += sum;
+        this.openCount += count;
+    }
+
+    private void closeBucket() throws IOException {
+        if (this.pending > 0 && this.openStart - this.block.getLong(0) >= MAX_PENDING_AGE) {
+            flush();
+        }
+        this.block.position(this.pending * RECORD_SIZE);
+        putRecord(this.block, this.openStart, this.openMin, this.openMax, this.openSum, this.openCount);
+        this.pending++;
+        this.lastStart = this.openStart;
+        if (this.pending == BLOCK_RECORDS) {
+            flush();
+        }
+        if (this.next != null) {
+            this.next.merge(this.openStart, this.openMin, this.openMax, this.openSum, this.openCount);
+        }
+        this.openCount = 0;
+    }
+
+    /**
+     * 書き込み待ちのレコードをファイルに書く
+     *
+     * @throws IOException 入出力エラー
+     */
+    void flush() throws IOException {
+        if (this.pending == 0) {
+            return;
+        }
+        final int count = Math.min(this.pending, this.capacity);
+        final int skip = this.pending - count;
+        int slot = (this.start + this.size + skip) % this.capacity;
+        int written = 0;
+        while (written < count) {
+            final int n = Math.min(count - written, this.capacity - slot);
+            this.block.limit((skip + written + n) * RECORD_SIZE);
+            this.block.position((skip + written) * RECORD_SIZE);
+            writeFully(this.block, HEADER_SIZE + (long) slot * RECORD_SIZE);
+            written += n;
+            slot = (slot + n) % this.capacity;
+        }
+        this.block.clear();
+
+        final int total = this.size + this.pending;
+        if (total > this.capacity) {
+            this.start = (this.start + total - this.capacity) % this.capacity;
+            this.size = this.capacity;
+        } else {
+            this.size = total;
+        }
+        this.pending = 0;
+        writeHeader();
+    }
+
+    /**
+     * 最古の値の時刻を返す
+     *
+     * @return 最古の値の時刻。無ければ Long.MAX_VALUE
+     * @throws IOException 入出力エラー
+     */
+    long oldest() throws IOException {
+        if (this.size > 0) {
+            return readStart(0);
+        } else if (this.pending > 0) {
+            return this.block.getLong(0);
+        } else if (this.openCount > 0) {
+            return this.openStart;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * 始まりが from 以上 to 未満のまとめた値を時刻順に渡す
+     *
+     * @throws IOException 入出力エラー
+     */
+    void scan(long from, long to, Consumer consumer) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        for (int i = lowerBound(from); i < this.size; ) {
+            final int slot = (this.start + i) % this.capacity;
+            final int n = Math.min(Math.min(BLOCK_RECORDS, this.size - i), this.capacity - slot);
+            this.readBlock.clear();
+            this.readBlock.limit(n * RECORD_SIZE);
+            readFully(this.readBlock, HEADER_SIZE + (long) slot * RECORD_SIZE);
+            for (int j = 0; j < n; j++) {
+                if (!emit(this.readBlock, j * RECORD_SIZE, to, consumer)) {
+                    return;
+                }
+            }
+            i += n;
+        }
+        for (int j = 0; j < this.pending; j++) {
+            if (this.block.getLong(j * RECORD_SIZE) >= from && !emit(this.block, j * RECORD_SIZE, to, consumer)) {
+                return;
+            }
+        }
+        if (this.openCount > 0 && from <= this.openStart && this.openStart < to) {
+            consumer.accept(this.openStart, this.openMin, this.openMax, this.openSum, this.openCount);
+        }
+    }
+
+    private static boolean emit(ByteBuffer buffer, int offset, long to, Consumer consumer) {
+        final long start = buffer.getLong(offset);
+        if (start >= to) {
+            return false;
+        }
+        consumer.accept(start, buffer.getFloat(offset + 8), buffer.getFloat(offset + 12), buffer.getDouble(offset + 16), buffer.getInt(offset + 24));
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            // まとめている途中の期間も書いておく。粗い段へも渡るので、細かい段から順に閉じる
+            if (this.openCount > 0) {
+                closeBucket();
+            }
+            flush();
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * 始まりが date 以上になる最初のレコードをファイル上で二分探索する
+     *
+     * @return 最古を 0 とした位置
+     */
+    private int lowerBound(long date) throws IOException {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (readStart(mid) < date) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private long readStart(int index) throws IOException {
+        this.probe.clear();
+        readFully(this.probe, HEADER_SIZE + (long) ((this.start + index) % this.capacity) * RECORD_SIZE);
+        return this.probe.getLong(0);
+    }
+
+    private boolean readHeader() throws IOException {
+        if (this.channel.size() < HEADER_SIZE) {
+            return false;
+        }
+        this.header.clear();
+        readFully(this.header, 0);
+        if (this.header.getInt(0) != MAGIC || this.header.getInt(4) != VERSION
+                || this.header.getLong(8) != this.resolution || this.header.getInt(16) != this.capacity) {
+            return false;
+        }
+        final int start = this.header.getInt(20);
+        final int size = this.header.getInt(24);
+        if (start < 0 || start >= this.capacity || size < 0 || size > this.capacity
+                || this.channel.size() < HEADER_SIZE + (long) Math.min(this.capacity, start + size) * RECORD_SIZE) {
+            return false;
+        }
+        this.start = start;
+        this.size = size;
+        if (size > 0) {
+            this.lastStart = readStart(size - 1);
+        }
+        return true;
+    }
+
+    private void writeHeader() throws IOException {
+        this.header.clear();
+        this.header.putInt(MAGIC).putInt(VERSION).putLong(this.resolution).putInt(this.capacity).putInt(this.start).putInt(this.size).putInt(0);
+        this.header.flip();
+        writeFully(this.header, 0);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int n = this.channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("unexpected end of file at " + position);
+            }
+            position += n;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+    }
+
+    private static void putRecord(ByteBuffer buffer, long start, float min, float max, double sum, int count) {
+        buffer.putLong(start).putFloat(min).putFloat(max).putDouble(sum).putInt(count);
+    }
+
+    private static long floor(long value, long unit) {
+        final long r = value % unit;
+        return r < 0 ? value - r - unit : value - r;
+    }
+
+}
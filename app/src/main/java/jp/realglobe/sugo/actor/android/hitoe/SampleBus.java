@@ -0,0 +1,308 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 心拍数の標本を複数の受け取り手に配る。
+ * 書き手は 1 つで、標本は共有の輪の基本型の配列に置く。
+ * 受け取り手はそれぞれ自分の読み位置を持ち、共有の executor の上で輪を独立に読む。
+ * 受け取り手ごとに同時に動くのは 1 つだけなので、受け取る順は配った順のまま。
+ * 書き手は誰も待たず、輪を 1 周以上遅れた受け取り手は追い越された分を読み飛ばして数える
+ */
+final class SampleBus {
+
+    private static final String LOG_TAG = SampleBus.class.getName();
+
+    // 統計のキー
+    private static final String KEY_CAPACITY = "capacity";
+    private static final String KEY_PUBLISHED = "published";
+    private static final String KEY_SUBSCRIBERS = "subscribers";
+    private static final String KEY_DEPTH = "depth";
+    private static final String KEY_DELIVERED = "delivered";
+    private static final String KEY_OVERRUNS = "overruns";
+    private static final String KEY_LAST_LAG = "lastLag";
+    private static final String KEY_MAX_LAG = "maxLag";
+    private static final String KEY_AVERAGE_LAG = "averageLag";
+
+    interface Subscriber {
+        /**
+         * 標本を受け取る
+         *
+         * @param date      ミリ秒単位の UNIX 時間
+         * @param heartrate 心拍数
+         * @param received  標本が届いた単調増加時刻（ミリ秒）
+         */
+        void call(long date, int heartrate, long received);
+    }
+
+    interface Clock {
+        /**
+         * @return 単調増加時刻（ミリ秒）
+         */
+        long now();
+    }
+
+    private final Clock clock;
+    private final Executor executor;
+    private final int mask;
+    private final AtomicLongArray dates;
+    private final AtomicIntegerArray heartrates;
+    private final AtomicLongArray receivedTimes;
+
+    // 書き始めた標本の数。標本を書き換える前に増やす
+    private final AtomicLong claimed = new AtomicLong();
+    // 書き終えた標本の数
+    private final AtomicLong published = new AtomicLong();
+
+    // 書き換え時に配列ごと差し替える
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /**
+     * @param capacity 輪の大きさ。2 の累乗に切り上げる
+     * @param clock    遅れを測る時計
+     * @param executor 受け取り手に渡す処理を動かす
+     */
+    SampleBus(int capacity, Clock clock, Executor executor) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("non-positive capacity " + capacity);
+        }
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.clock = clock;
+        this.executor = executor;
+        this.mask = size - 1;
+        this.dates = new AtomicLongArray(size);
+        this.heartrates = new AtomicIntegerArray(size);
+        this.receivedTimes = new AtomicLongArray(size);
+    }
+
+    /**
+     * 標本を配る。書き手のスレッドからだけ呼ぶこと
+     *
+     * @param date      ミリ秒単位の UNIX 時間
+     * @param heartrate 心拍数
+     * @param received  標本が届いた単調増加時刻（ミリ秒）
+     */
+    void publish(long date, int heartrate, long received) {
+        final long sequence = this.published.get();
+        // 読み手が書き換え中の枠を読んだと気付けるように、先に書き始めを知らせる
+        this.claimed.set(sequence + 1);
+        final int index = (int) (sequence & this.mask);
+        this.dates.lazySet(index, date);
+        this.heartrates.lazySet(index, heartrate);
+        this.receivedTimes.lazySet(index, received);
+        this.published.set(sequence + 1);
+        for (Subscription subscription : this.subscriptions) {
+            subscription.wake();
+        }
+    }
+
+    /**
+     * 受け取り手を加える。加えた後に配られた標本から受け取る
+     *
+     * @param name       受け取り手の名前
+     * @param subscriber 受け取り手
+     * @return 受け取りの登録
+     */
+    synchronized Subscription subscribe(String name, Subscriber subscriber) {
+        final Subscription subscription = new Subscription(name, subscriber);
+        final Subscription[] subscriptions = Arrays.copyOf(this.subscriptions, this.subscriptions.length + 1);
+        subscriptions[subscriptions.length - 1] = subscription;
+        this.subscriptions = subscriptions;
+        return subscription;
+    }
+
+    /**
+     * 受け取り手を外す
+     *
+     * @param subscription 受け取りの登録
+     */
+    synchronized void unsubscribe(Subscription subscription) {
+        final Subscription[] old = this.subscriptions;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] != subscription) {
+                continue;
+            }
+            final Subscription[] subscriptions = new Subscription[old.length - 1];
+            System.arraycopy(old, 0, subscriptions, 0, i);
+            System.arraycopy(old, i + 1, subscriptions, i, old.length - i - 1);
+            this.subscriptions = subscriptions;
+            subscription.stop();
+            return;
+        }
+    }
+
+    /**
+     * 全ての受け取り手を外す
+     */
+    synchronized void close() {
+        for (Subscription subscription : this.subscriptions) {
+            subscription.stop();
+        }
+        this.subscriptions = new Subscription[0];
+    }
+
+    /**
+     * @return 受け取り手がいれば true
+     */
+    boolean hasSubscribers() {
+        return this.subscriptions.length > 0;
+    }
+
+    /**
+     * 統計を返す
+     *
+     * @return 輪の大きさ、配った数、受け取り手ごとの統計
+     */
+    Map<String, Object> getStats() {
+        final Map<String, Object> stats = new HashMap<>();
+        stats.put(KEY_CAPACITY, this.mask + 1);
+        stats.put(KEY_PUBLISHED, this.published.get());
+        final Map<String, Object> subscribers = new HashMap<>();
+        for (Subscription subscription : this.subscriptions) {
+            subscribers.put(subscription.name, subscription.getStats());
+        }
+        stats.put(KEY_SUBSCRIBERS, subscribers);
+        return stats;
+    }
+
+    /**
+     * 受け取りの登録。受け取り手ごとの読み位置を持ち、新しい標本があれば executor で読みに行く
+     */
+    final class Subscription implements Runnable {
+
+        private final String name;
+        private final Subscriber subscriber;
+
+        private volatile boolean running = true;
+        // executor に入れてあるか。入れてある間は他に入れない
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // 次に読む位置。読んでいる処理だけが書く
+        private volatile long cursor;
+
+        // 統計。読んでいる処理だけが書く
+        private volatile long delivered;
+        private volatile long overruns;
+        private volatile long lastLag = -1;
+        private volatile long maxLag;
+        private volatile long totalLag;
+
+        private Subscription(String name, Subscriber subscriber) {
+            this.name = name;
+            this.subscriber = subscriber;
+            this.cursor = SampleBus.this.published.get();
+        }
+
+        private void wake() {
+            if (!this.running || !this.scheduled.compareAndSet(false, true)) {
+                // 読んでいる処理が続けて読む
+                return;
+            }
+            try {
+                SampleBus.this.executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                this.scheduled.set(false);
+                Log.w(LOG_TAG, this.name + ": " + e);
+            }
+        }
+
+        private void stop() {
+            this.running = false;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                while (this.running && this.cursor < SampleBus.this.published.get()) {
+                    next();
+                }
+                this.scheduled.set(false);
+                // 降ろしてから配られた分を取りこぼさないように確かめ直す
+                if (!this.running || this.cursor >= SampleBus.this.published.get() || !this.scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 次の標本を読んで渡す
+         */
+        private void next() {
+            final long capacity = SampleBus.this.mask + 1;
+            final long published = SampleBus.this.published.get();
+            if (published - this.cursor > capacity) {
+                // 追い越された
+                this.overruns += published - this.cursor - capacity;
+                this.cursor = published - capacity;
+            }
+            final int index = (int) (this.cursor & SampleBus.this.mask);
+            final long date = SampleBus.this.dates.get(index);
+            final int heartrate = SampleBus.this.heartrates.get(index);
+            final long received = SampleBus.this.receivedTimes.get(index);
+            if (SampleBus.this.claimed.get() - this.cursor > capacity) {
+                // 読んでいる間に書き換えられた
+                this.overruns++;
+                this.cursor++;
+                return;
+            }
+            this.cursor++;
+
+            final long lag = SampleBus.this.clock.now() - received;
+            this.lastLag = lag;
+            if (lag > this.maxLag) {
+                this.maxLag = lag;
+            }
+            this.totalLag += lag;
+            this.delivered++;
+            try {
+                this.subscriber.call(date, heartrate, received);
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, this.name + ": " + e);
+            }
+        }
+
+        /**
+         * 統計を返す
+         *
+         * @return 溜まっている数、受け取った数、追い越されて読み飛ばした数、届いてから渡すまでの時間（ミリ秒）
+         */
+        Map<String, Object> getStats() {
+            final Map<String, Object> stats = new HashMap<>();
+            final long delivered = this.delivered;
+            stats.put(KEY_DEPTH, Math.min(SampleBus.this.mask + 1, SampleBus.this.published.get() - this.cursor));
+            stats.put(KEY_DELIVERED, delivered);
+            stats.put(KEY_OVERRUNS, this.overruns);
+            stats.put(KEY_LAST_LAG, this.lastLag >= 0 ? this.lastLag : null);
+            stats.put(KEY_MAX_LAG, this.maxLag);
+            stats.put(KEY_AVERAGE_LAG, delivered > 0 ? (double) this.totalLag / delivered : null);
+            return stats;
+        }
+
+    }
+
+}
@@ -0,0 +1,142 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SDK のスレッドから受け取った心拍数を、専用のスレッドで後段に渡す。
+ * SDK のスレッドはロックを使わない列に入れるだけで戻るので、後段が遅くても BLE の受信を止めない
+ */
+final class SampleDispatcher {
+
+    private static final String LOG_TAG = SampleDispatcher.class.getName();
+
+    // 溜めておく標本の数
+    private static final int CAPACITY = 256;
+
+    // 統計のキー
+    private static final String KEY_DEPTH = "depth";
+    private static final String KEY_CAPACITY = "capacity";
+    private static final String KEY_DISPATCHED = "dispatched";
+    private static final String KEY_OVERFLOWS = "overflows";
+    private static final String KEY_LAST_LAG = "lastLag";
+    private static final String KEY_MAX_LAG = "maxLag";
+    private static final String KEY_AVERAGE_LAG = "averageLag";
+
+    private final SampleQueue queue = new SampleQueue(CAPACITY);
+    private final SampleQueue.Consumer consumer;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    // 読み手が眠っているか
+    private volatile boolean waiting;
+
+    // 統計。読み手だけが書く
+    private volatile long dispatched;
+    private volatile long lastLag = -1;
+    private volatile long maxLag;
+    private volatile long totalLag;
+
+    /**
+     * @param consumer 心拍数を受け取る処理。専用のスレッドから呼ばれる
+     */
+    SampleDispatcher(SampleQueue.Consumer consumer) {
+        this.consumer = consumer;
+        this.thread = new Thread(this::loop, "hitoe-dispatch");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * 心拍数を列に入れる。SDK のスレッドから呼ぶ
+     *
+     * @param date      ミリ秒単位の UNIX 時間
+     * @param heartrate 心拍数
+     * @param received  SDK から届いた単調増加時刻（ミリ秒）
+     */
+    void offer(long date, int heartrate, long received) {
+        if (!this.queue.offer(date, heartrate, received)) {
+            return;
+        }
+        if (this.waiting) {
+            LockSupport.unpark(this.thread);
+        }
+    }
+
+    /**
+     * 渡すのをやめてスレッドを終える
+     */
+    void stop() {
+        this.running = false;
+        LockSupport.unpark(this.thread);
+    }
+
+    private void loop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+        while (this.running) {
+            if (this.queue.drain(this::dispatch) > 0) {
+                continue;
+            }
+            this.waiting = true;
+            if (this.queue.size() == 0 && this.running) {
+                LockSupport.park(this);
+            }
+            this.waiting = false;
+        }
+    }
+
+    private void dispatch(long date, int heartrate, long received) {
+        final long lag = SystemClock.elapsedRealtime() - received;
+        this.lastLag = lag;
+        if (lag > this.maxLag) {
+            this.maxLag = lag;
+        }
+        this.totalLag += lag;
+        this.dispatched++;
+        try {
+            this.consumer.call(date, heartrate, received);
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, e.toString());
+        }
+    }
+
+    /**
+     * 統計を返す
+     *
+     * @return 溜まっている数、最大数、渡した数、一杯で捨てた数、届いてから渡すまでの時間（ミリ秒）
+     */
+    Map<String, Object> getStats() {
+        final Map<String, Object> stats = new HashMap<>();
+        final long dispatched = this.dispatched;
+        stats.put(KEY_DEPTH, this.queue.size());
+        stats.put(KEY_CAPACITY, this.queue.getCapacity());
+        stats.put(KEY_DISPATCHED, dispatched);
+        stats.put(KEY_OVERFLOWS, this.queue.getOverflows());
+        stats.put(KEY_LAST_LAG, this.lastLag >= 0 ? this.lastLag : null);
+        stats.put(KEY_MAX_LAG, this.maxLag);
+        stats.put(KEY_AVERAGE_LAG, dispatched > 0 ? (double) this.totalLag / dispatched : null);
+        return stats;
+    }
+
+}
@@ -0,0 +1,135 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 心拍数の標本を受け渡す、書き手 1 つと読み手 1 つ専用のロックを使わない列。
+ * 標本は基本型の配列に置くので、受け渡しでオブジェクトを作らない。
+ * 一杯のときは新しい標本を捨てて数える
+ */
+final class SampleQueue {
+
+    interface Consumer {
+        /**
+         * 標本を受け取る
+         *
+         * @param date      ミリ秒単位の UNIX 時間
+         * @param heartrate 心拍数
+         * @param received  標本が届いた単調増加時刻（ミリ秒）
+         */
+        void call(long date, int heartrate, long received);
+    }
+
+    private final int mask;
+    private final long[] dates;
+    private final int[] heartrates;
+    private final long[] receivedTimes;
+
+    // 次に読む位置。読み手だけが進める
+    private final AtomicLong head = new AtomicLong();
+    // 次に書く位置。書き手だけが進める
+    private final AtomicLong tail = new AtomicLong();
+    // 書き手が最後に見た読む位置
+    private long cachedHead;
+    // 一杯で捨てた数。書き手だけが書く
+    private volatile long overflows;
+
+    /**
+     * @param capacity 最大数。2 の累乗に切り上げる
+     */
+    SampleQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("non-positive capacity " + capacity);
+        }
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.mask = size - 1;
+        this.dates = new long[size];
+        this.heartrates = new int[size];
+        this.receivedTimes = new long[size];
+    }
+
+    /**
+     * 標本を入れる。書き手のスレッドからだけ呼ぶこと
+     *
+     * @param date      ミリ秒単位の UNIX 時間
+     * @param heartrate 心拍数
+     * @param received  標本が届いた単調増加時刻（ミリ秒）
+     * @return 一杯で入れられなかったら false
+     */
+    boolean offer(long date, int heartrate, long received) {
+        final long tail = this.tail.get();
+        if (tail - this.cachedHead > this.mask) {
+            this.cachedHead = this.head.get();
+            if (tail - this.cachedHead > this.mask) {
+                this.overflows++;
+                return false;
+            }
+        }
+        final int index = (int) (tail & this.mask);
+        this.dates[index] = date;
+        this.heartrates[index] = heartrate;
+        this.receivedTimes[index] = received;
+        this.tail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * 溜まっている標本を古い順に渡す。読み手のスレッドからだけ呼ぶこと
+     *
+     * @param consumer 受け取る処理
+     * @return 渡した数
+     */
+    int drain(Consumer consumer) {
+        long head = this.head.get();
+        final long tail = this.tail.get();
+        final int count = (int) (tail - head);
+        for (; head < tail; head++) {
+            final int index = (int) (head & this.mask);
+            final long date = this.dates[index];
+            final int heartrate = this.heartrates[index];
+            final long received = this.receivedTimes[index];
+            // 受け取る処理が遅くても書き手が空きを使えるように先に進める
+            this.head.lazySet(head + 1);
+            consumer.call(date, heartrate, received);
+        }
+        return count;
+    }
+
+    /**
+     * @return 溜まっている数
+     */
+    int size() {
+        return (int) (this.tail.get() - this.head.get());
+    }
+
+    /**
+     * @return 最大数
+     */
+    int getCapacity() {
+        return this.mask + 1;
+    }
+
+    /**
+     * @return 一杯で捨てた数
+     */
+    long getOverflows() {
+        return this.overflows;
+    }
+
+}
@@ -0,0 +1,53 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+/**
+ * 時刻と、時間を置いた処理の実行。
+ * 端末では Handler と SystemClock で、試験や性能測定では仮想時刻で動かす。
+ * 処理は全て 1 つのスレッドで順に行う
+ */
+interface Scheduler {
+
+    /**
+     * @return 単調増加時刻（ミリ秒）
+     */
+    long now();
+
+    /**
+     * 処理をすぐ後に行う
+     *
+     * @param task 処理
+     */
+    void post(Runnable task);
+
+    /**
+     * 処理を時間を置いて行う
+     *
+     * @param task  処理
+     * @param delay 待ち時間（ミリ秒）
+     */
+    void postDelayed(Runnable task, long delay);
+
+    /**
+     * 待っている処理を取り消す
+     *
+     * @param task 処理
+     */
+    void cancel(Runnable task);
+
+}
@@ -0,0 +1,208 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 切れた心拍センサーに、前回のセンサー情報とピンコードで自動的につなぎ直す。
+ * つながるまで間隔を倍々に延ばしながら試し続ける。
+ * 処理は全て scheduler のスレッドで行う
+ */
+final class SensorReconnector {
+
+    private static final String LOG_TAG = SensorReconnector.class.getName();
+
+    // 待ち時間の初期値と上限
+    static final long BASE_DELAY = 2_000;
+    static final long MAX_DELAY = 30_000;
+    // 1 回の接続で結果を待つ時間
+    static final long ATTEMPT_TIMEOUT = 30_000;
+
+    // 統計のキー
+    private static final String KEY_CONNECTED = "connected";
+    private static final String KEY_RECONNECTING = "reconnecting";
+    private static final String KEY_DISCONNECTS = "disconnects";
+    private static final String KEY_ATTEMPTS = "attempts";
+    private static final String KEY_RECONNECTS = "reconnects";
+    private static final String KEY_LAST_RECONNECT_TIME = "lastReconnectTime";
+    private static final String KEY_AVERAGE_RECONNECT_TIME = "averageReconnectTime";
+
+    interface Connector {
+        /**
+         * センサーへの接続を始める。結果は callback に返すこと
+         *
+         * @param sensor   センサー
+         * @param pincode  ピンコード
+         * @param callback 接続結果を受け取るコールバック
+         */
+        void call(HitoeWrapper.SensorInfo sensor, String pincode, HitoeWrapper.ConnectCallback callback);
+    }
+
+    interface WarningCallback {
+        /**
+         * 警告を受け取る
+         *
+         * @param warning 警告文
+         */
+        void call(String warning);
+    }
+
+    private final Scheduler scheduler;
+    private final Connector connector;
+    private final WarningCallback warningCallback;
+
+    private final Runnable attemptTask = this::attempt;
+
+    private HitoeWrapper.SensorInfo sensor;
+    private String pincode;
+    // つなぎ直している最中か
+    private boolean running;
+    // 試した回数。古い試みの結果を見分けるのにも使う
+    private int attempt;
+    // 切れた時刻
+    private long lost;
+
+    // 統計
+    private boolean connected;
+    private int disconnects;
+    private int attempts;
+    private int reconnects;
+    private long lastReconnectTime = -1;
+    private long totalReconnectTime;
+
+    /**
+     * @param scheduler       時刻と処理の実行
+     * @param connector       センサーにつなぐ処理
+     * @param warningCallback つなぎ直せないときの警告を受け取る
+     */
+    SensorReconnector(Scheduler scheduler, Connector connector, WarningCallback warningCallback) {
+        this.scheduler = scheduler;
+        this.connector = connector;
+        this.warningCallback = warningCallback;
+    }
+
+    /**
+     * センサーが切れたのでつなぎ直し始める
+     *
+     * @param sensor  前回のセンサー
+     * @param pincode 前回のピンコード
+     */
+    synchronized void start(HitoeWrapper.SensorInfo sensor, String pincode) {
+        this.connected = false;
+        this.disconnects++;
+        if (this.running) {
+            return;
+        }
+        this.sensor = sensor;
+        this.pincode = pincode;
+        this.running = true;
+        this.attempt = 0;
+        this.lost = this.scheduler.now();
+        Log.d(LOG_TAG, "Start reconnecting to " + sensor);
+        this.scheduler.postDelayed(this.attemptTask, BASE_DELAY);
+    }
+
+    /**
+     * つなぎ直すのをやめる
+     */
+    synchronized void stop() {
+        this.running = false;
+        this.scheduler.cancel(this.attemptTask);
+    }
+
+    /**
+     * センサーがつながったことを伝える。利用者がつないだ場合も含む
+     */
+    synchronized void onConnected() {
+        this.connected = true;
+        if (!this.running) {
+            return;
+        }
+        stop();
+        this.lastReconnectTime = this.scheduler.now() - this.lost;
+        this.totalReconnectTime += this.lastReconnectTime;
+        this.reconnects++;
+        Log.d(LOG_TAG, "Reconnected to " + this.sensor + " in " + this.lastReconnectTime + " ms");
+    }
+
+    private void attempt() {
+        final int attempt;
+        final HitoeWrapper.SensorInfo sensor;
+        final String pincode;
+        synchronized (this) {
+            if (!this.running) {
+                return;
+            }
+            attempt = ++this.attempt;
+            this.attempts++;
+            sensor = this.sensor;
+            pincode = this.pincode;
+            // 結果が来なければ次を試す
+            this.scheduler.postDelayed(this.attemptTask, ATTEMPT_TIMEOUT);
+        }
+        Log.d(LOG_TAG, "Reconnect attempt " + attempt + " to " + sensor);
+        try {
+            this.connector.call(sensor, pincode, result -> this.scheduler.post(() -> onResult(attempt, result)));
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Reconnect attempt failed: " + e);
+            onResult(attempt, HitoeWrapper.ConnectResult.NOT_FOUND);
+        }
+    }
+
+    private synchronized void onResult(int attempt, HitoeWrapper.ConnectResult result) {
+        if (!this.running || attempt != this.attempt) {
+            return;
+        }
+        this.scheduler.cancel(this.attemptTask);
+        switch (result) {
+            case OK:
+                onConnected();
+                return;
+            case INVALID_PINCODE:
+                // 利用者に入れ直してもらうしかない
+                stop();
+                this.warningCallback.call("心拍センサーのピンコードが違うため再接続できません");
+                return;
+            default:
+                final long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt, 16));
+                Log.d(LOG_TAG, "Reconnect attempt " + attempt + " ended with " + result + ", next in " + delay + " ms");
+                this.scheduler.postDelayed(this.attemptTask, delay);
+        }
+    }
+
+    /**
+     * 統計を返す
+     *
+     * @return つながっているか、つなぎ直している最中か、切れた数、試した数、つなぎ直せた数、つなぎ直しにかかった時間
+     */
+    synchronized Map<String, Object> getStats() {
+        final Map<String, Object> stats = new HashMap<>();
+        stats.put(KEY_CONNECTED, this.connected);
+        stats.put(KEY_RECONNECTING, this.running);
+        stats.put(KEY_DISCONNECTS, this.disconnects);
+        stats.put(KEY_ATTEMPTS, this.attempts);
+        stats.put(KEY_RECONNECTS, this.reconnects);
+        stats.put(KEY_LAST_RECONNECT_TIME, this.lastReconnectTime >= 0 ? this.lastReconnectTime : null);
+        stats.put(KEY_AVERAGE_RECONNECT_TIME, this.reconnects > 0 ? (double) this.totalReconnectTime / this.reconnects : null);
+        return stats;
+    }
+
+}
@@ -45,9 +45,19 @@ public class SettingsPreferenceFragment extends PreferenceFragment {
         showDefaultKeys.addAll(Arrays.asList(
                 getString(R.string.key_delay),
                 getString(R.string.key_server),
+                getString(R.string.key_backup_servers),
+                getString(R.string.key_emergency_servers),
                 getString(R.string.key_report_interval),
                 getString(R.string.key_actor_suffix),
-                getString(R.string.key_timer)
+                getString(R.string.key_timer),
+                getString(R.string.key_heartrate_lower),
+                getString(R.string.key_heartrate_upper),
+                getString(R.string.key_abnormal_duration),
+                getString(R.string.key_signal_timeout),
+                getString(R.string.key_main_buffering),
+                getString(R.string.key_summary_interval),
+                getString(R.string.key_outbox_policy),
+                getString(R.string.key_outbox_capacity)
         ));
 
         addPreferencesFromResource(R.xml.activity_settings);
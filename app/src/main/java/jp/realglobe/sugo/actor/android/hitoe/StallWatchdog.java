@@ -0,0 +1,243 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 心拍数の流れが止まっていないか見張る。
+ * 値が来ない、0 ばかり来る、同じ値ばかり来る、のいずれかが続いたら信号を失ったとみなす。
+ * 時刻は単調増加時刻（ミリ秒）を呼び出し側が渡す
+ */
+final class StallWatchdog {
+
+    // 同じ値が続いたら信号を失ったとみなすまでの時間
+    static final long FLAT_DURATION = 20_000;
+    // 値が来る間隔の見積もりに最新の間隔を混ぜる割合
+    private static final double INTERVAL_WEIGHT = 0.1;
+    // 見積もった間隔の何倍来なければ止まったとみなすか。ただし信号を失ったとみなすまでの時間の 2 倍まで
+    private static final double INTERVAL_FACTOR = 3;
+
+    // 統計のキー
+    private static final String KEY_CONDITION = "condition";
+    private static final String KEY_LOSSES = "losses";
+    private static final String KEY_EXPECTED_INTERVAL = "expectedInterval";
+    private static final String KEY_MAX_GAP = "maxGap";
+
+    /**
+     * 信号の状態
+     */
+    enum Condition {
+        OK,
+        // 値が来ない
+        STALLED,
+        // 0 ばかり来る
+        ZERO,
+        // 同じ値ばかり来る
+        FLAT,
+    }
+
+    // 信号を失ったとみなすまでの時間
+    private long timeout;
+
+    // 見張りを始めた時刻。見張っていなければ負
+    private long started = -1;
+    // 最後に値が来た時刻
+    private long lastSample = -1;
+    // 最後に 0 でない値が来た時刻
+    private long lastNonZero = -1;
+    // 最後に値が変わった時刻と、その値
+    private long lastChange = -1;
+    private int lastValue;
+    // 値が来る間隔の見積もり
+    private double expectedInterval;
+
+    private Condition condition = Condition.OK;
+    // 信号を取り戻そうとした後か
+    private boolean rearmed;
+    private int losses;
+    private long maxGap;
+
+    /**
+     * @param timeout 信号を失ったとみなすまでの時間（ミリ秒）
+     */
+    StallWatchdog(long timeout) {
+        setTimeout(timeout);
+    }
+
+    synchronized void setTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("non-positive timeout " + timeout);
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * 見張りを始める
+     *
+     * @param now 今の時刻
+     */
+    synchronized void start(long now) {
+        this.started = now;
+        this.lastSample = -1;
+        this.lastNonZero = now;
+        this.lastChange = now;
+        this.lastValue = 0;
+        this.condition = Condition.OK;
+        this.rearmed = false;
+    }
+
+    /**
+     * 見張りをやめる
+     */
+    synchronized void stop() {
+        this.started = -1;
+        this.condition = Condition.OK;
+    }
+
+    /**
+     * 値が来たことを伝える
+     *
+     * @param now       今の時刻
+     * @param heartrate 心拍数
+     */
+    synchronized void sample(long now, int heartrate) {
+        if (this.started < 0) {
+            return;
+        }
+        if (this.lastSample >= 0) {
+            final long gap = now - this.lastSample;
+            this.maxGap = Math.max(this.maxGap, gap);
+            if (gap <= this.timeout) {
+                // 途切れていた分は見積もりに混ぜない
+                this.expectedInterval = this.expectedInterval <= 0 ? gap : (1 - INTERVAL_WEIGHT) * this.expectedInterval + INTERVAL_WEIGHT * gap;
+            }
+        }
+        this.lastSample = now;
+        if (heartrate > 0) {
+            this.lastNonZero = now;
+        }
+        if (heartrate != this.lastValue) {
+            this.lastValue = heartrate;
+            this.lastChange = now;
+        }
+    }
+
+    /**
+     * 状態を調べる
+     *
+     * @param now 今の時刻
+     * @return 新たに信号を失ったか、取り戻そうとした後も失ったままなら、その状態。それ以外は null
+     */
+    synchronized Condition check(long now) {
+        if (this.started < 0) {
+            return null;
+        }
+        final Condition condition = evaluate(now);
+        final Condition old = this.condition;
+        if (condition == Condition.OK) {
+            if (old != Condition.OK && !recovered(old)) {
+                // 取り戻そうとした後、まだ立ち直った証拠が無い
+                return null;
+            }
+            this.condition = Condition.OK;
+            this.rearmed = false;
+            return null;
+        }
+        this.condition = condition;
+        if (old != Condition.OK && !this.rearmed) {
+            // 失ったまま、取り戻そうとしている最中
+            return null;
+        }
+        this.rearmed = false;
+        if (old == Condition.OK) {
+            this.losses++;
+        }
+        return condition;
+    }
+
+    private Condition evaluate(long now) {
+        final Condition condition;
+        final long stallTimeout = Math.max(this.timeout, Math.min(2 * this.timeout, (long) (INTERVAL_FACTOR * this.expectedInterval)));
+        if (now - (this.lastSample >= 0 ? this.lastSample : this.started) > stallTimeout) {
+            condition = Condition.STALLED;
+        } else if (now - this.lastNonZero > this.timeout) {
+            condition = Condition.ZERO;
+        } else if (now - this.lastChange > Math.max(this.timeout, FLAT_DURATION)) {
+            condition = Condition.FLAT;
+        } else {
+            condition = Condition.OK;
+        }
+        return condition;
+    }
+
+    /**
+     * 取り戻そうとした後に、失った原因が解消した証拠があるか
+     */
+    private boolean recovered(Condition condition) {
+        switch (condition) {
+            case STALLED:
+                return this.lastSample >= 0;
+            case ZERO:
+                return this.lastNonZero > this.started;
+            case FLAT:
+                return this.lastChange > this.started;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * 信号を取り戻そうとした後、もう一度猶予を与える。
+     * 猶予の間も、立ち直った証拠が来るまでは失ったままとする
+     *
+     * @param now 今の時刻
+     */
+    synchronized void rearm(long now) {
+        if (this.started < 0) {
+            return;
+        }
+        this.started = now;
+        this.lastSample = -1;
+        this.lastNonZero = now;
+        this.lastChange = now;
+        this.rearmed = true;
+    }
+
+    /**
+     * @return 今の状態
+     */
+    synchronized Condition getCondition() {
+        return this.condition;
+    }
+
+    /**
+     * 統計を返す
+     *
+     * @return 今の状態、OK から信号を失った数、値が来る間隔の見積もり、値が来る間隔の最大
+     */
+    synchronized Map<String, Object> getStats() {
+        final Map<String, Object> stats = new HashMap<>();
+        stats.put(KEY_CONDITION, this.condition.name().toLowerCase());
+        stats.put(KEY_LOSSES, this.losses);
+        stats.put(KEY_EXPECTED_INTERVAL, this.expectedInterval);
+        stats.put(KEY_MAX_GAP, this.maxGap);
+        return stats;
+    }
+
+}
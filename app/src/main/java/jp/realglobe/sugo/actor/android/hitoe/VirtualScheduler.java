@@ -0,0 +1,139 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * 仮想時刻で処理を行う。
+ * 時刻は advance を呼んだときだけ進み、その間に予定時刻が来た処理を予定時刻の順に呼び出しスレッドで行う。
+ * 同じ予定時刻の処理は入れた順に行う。
+ * 何時間分の動きでも実時間を待たずに再現できるので、試験や性能測定に使う
+ */
+final class VirtualScheduler implements Scheduler {
+
+    /**
+     * 予定
+     */
+    private static final class Entry implements Comparable<Entry> {
+        private final long time;
+        private final long order;
+        private final Runnable task;
+
+        Entry(long time, long order, Runnable task) {
+            this.time = time;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (this.time != other.time) {
+                return this.time < other.time ? -1 : 1;
+            }
+            return this.order < other.order ? -1 : (this.order == other.order ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private long now;
+    // 入れた順
+    private long order;
+    // 行った処理の数
+    private long executed;
+
+    /**
+     * @param start 始めの時刻（ミリ秒）
+     */
+    VirtualScheduler(long start) {
+        this.now = start;
+    }
+
+    @Override
+    public long now() {
+        return this.now;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        this.queue.add(new Entry(this.now + Math.max(0, delay), this.order++, task));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        // 同じ処理は同じオブジェクトで入れ直されるので、参照で比べる
+        for (Iterator<Entry> iterator = this.queue.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().task == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 時刻を進めて、その間に予定時刻が来た処理を行う。
+     * 処理の中で入れた処理も、予定時刻が来ていれば続けて行う
+     *
+     * @param duration 進める時間（ミリ秒）
+     * @return 行った処理の数
+     */
+    long advance(long duration) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("negative duration " + duration);
+        }
+        return advanceTo(this.now + duration);
+    }
+
+    /**
+     * 指定した時刻まで進めて、その間に予定時刻が来た処理を行う
+     *
+     * @param time 時刻（ミリ秒）
+     * @return 行った処理の数
+     */
+    long advanceTo(long time) {
+        long count = 0;
+        while (!this.queue.isEmpty() && this.queue.peek().time <= time) {
+            final Entry entry = this.queue.poll();
+            this.now = entry.time;
+            entry.task.run();
+            count++;
+        }
+        this.now = Math.max(this.now, time);
+        this.executed += count;
+        return count;
+    }
+
+    /**
+     * @return 待っている処理の数
+     */
+    int getPending() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return これまでに行った処理の数
+     */
+    long getExecuted() {
+        return this.executed;
+    }
+
+}
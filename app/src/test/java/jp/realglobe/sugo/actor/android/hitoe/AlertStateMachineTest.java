@@ -0,0 +1,164 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AlertStateMachineTest {
+
+    /**
+     * 受け取ったものを記録する
+     */
+    private static final class Recorder implements AlertStateMachine.Listener {
+        private final List<AlertStateMachine.State> states = new ArrayList<>();
+        private final List<Long> reports = new ArrayList<>();
+        private final List<Long> summaries = new ArrayList<>();
+        private long lastRemaining = -1;
+        private int countdowns;
+        private int starts;
+
+        @Override
+        public void onStateChanged(AlertStateMachine.State state) {
+            this.states.add(state);
+        }
+
+        @Override
+        public void onCountdown(long remaining) {
+            this.lastRemaining = remaining;
+            this.countdowns++;
+        }
+
+        @Override
+        public void onReportStarted() {
+            this.starts++;
+        }
+
+        @Override
+        public void onReport(long scheduled) {
+            this.reports.add(scheduled);
+        }
+
+        @Override
+        public void onSummary(long scheduled) {
+            this.summaries.add(scheduled);
+        }
+    }
+
+    @Test
+    public void escalatesOnSchedule() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder();
+        final AlertStateMachine alert = new AlertStateMachine(scheduler, recorder, 10_000, 3_000, 0);
+
+        scheduler.advance(1_000);
+        assertTrue(alert.warn("heartrate"));
+        assertFalse(alert.warn("fall"));
+        assertEquals(AlertStateMachine.State.WARNING, alert.getState());
+        assertEquals(1_000, alert.getDetected());
+        // 警告中にしてすぐ報告する
+        assertEquals(1, recorder.reports.size());
+        assertEquals(10_000, recorder.lastRemaining);
+
+        scheduler.advance(9_999);
+        assertEquals(AlertStateMachine.State.WARNING, alert.getState());
+        // 100 ミリ秒ごとに残り時間を知らせる
+        assertEquals(100, recorder.lastRemaining);
+        assertEquals(100, recorder.countdowns);
+        scheduler.advance(1);
+        assertEquals(AlertStateMachine.State.EMERGENCY, alert.getState());
+        assertEquals("heartrate", alert.getCause());
+        // 4_000, 7_000, 10_000 の定期報告と、異常発生中にしてすぐの報告
+        assertEquals(5, recorder.reports.size());
+        assertEquals(11_000, (long) recorder.reports.get(4));
+        assertEquals(1, recorder.starts);
+
+        alert.reset();
+        assertEquals(AlertStateMachine.State.MAIN, alert.getState());
+        scheduler.advance(60_000);
+        assertEquals(5, recorder.reports.size());
+        assertEquals(0, scheduler.getPending());
+    }
+
+    @Test
+    public void timerAndReportInterval() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder();
+        final AlertStateMachine alert = new AlertStateMachine(scheduler, recorder, 0, 1_000, 0);
+
+        alert.startTimer("timer", 5_000);
+        scheduler.advance(4_999);
+        assertEquals(AlertStateMachine.State.MAIN, alert.getState());
+        scheduler.advance(1);
+        // 秒読みが 0 ならすぐ救助要請する
+        assertEquals(AlertStateMachine.State.EMERGENCY, alert.getState());
+        assertEquals("timer", alert.getCause());
+
+        final int before = recorder.reports.size();
+        scheduler.advance(500);
+        alert.setReportInterval(10_000);
+        scheduler.advance(9_999);
+        assertEquals(before, recorder.reports.size());
+        scheduler.advance(1);
+        assertEquals(before + 1, recorder.reports.size());
+        assertEquals(15_500, (long) recorder.reports.get(before));
+    }
+
+    @Test
+    public void simulatesHoursQuickly() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder();
+        final AlertStateMachine alert = new AlertStateMachine(scheduler, recorder, 30_000, 1_000, 0);
+
+        // 1 時間ごとに警告して救助要請し、10 分後に戻す、を 24 回
+        for (int hour = 0; hour < 24; hour++) {
+            alert.startTimer("timer", 50 * 60_000);
+            scheduler.advance(50 * 60_000);
+            assertEquals(AlertStateMachine.State.WARNING, alert.getState());
+            scheduler.advance(10 * 60_000);
+            assertEquals(AlertStateMachine.State.EMERGENCY, alert.getState());
+            alert.reset();
+        }
+        assertEquals(24 * 60 * 60_000L, scheduler.now());
+        assertEquals(24, recorder.starts);
+        // 10 分の間、毎秒と、警告中と異常発生中にしたときに 1 回ずつ。異常発生中にした時刻の定期報告とは重なる
+        assertEquals(24 * (600 + 2), recorder.reports.size());
+        assertEquals(0, scheduler.getPending());
+    }
+
+    @Test
+    public void summarizesOnlyInMain() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder();
+        final AlertStateMachine alert = new AlertStateMachine(scheduler, recorder, 10_000, 1_000, 60_000);
+        alert.reset();
+
+        scheduler.advance(3 * 60_000);
+        assertEquals(3, recorder.summaries.size());
+        assertEquals(0, recorder.reports.size());
+
+        // 警告中と異常発生中は要約をやめて毎回報告する
+        scheduler.advance(30_000);
+        alert.warn("heartrate");
+        scheduler.advance(5 * 60_000);
+        assertEquals(3, recorder.summaries.size());
+        assertEquals(AlertStateMachine.State.EMERGENCY, alert.getState());
+
+        alert.reset();
+        final int reports = recorder.reports.size();
+        scheduler.advance(60_000);
+        assertEquals(4, recorder.summaries.size());
+        assertEquals(reports, recorder.reports.size());
+        assertEquals(scheduler.now(), (long) recorder.summaries.get(3));
+
+        alert.setSummaryInterval(0);
+        scheduler.advance(10 * 60_000);
+        assertEquals(4, recorder.summaries.size());
+        assertEquals(0, scheduler.getPending());
+    }
+
+}
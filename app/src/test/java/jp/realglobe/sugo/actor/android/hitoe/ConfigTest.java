@@ -0,0 +1,108 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ConfigTest {
+
+    /**
+     * 文字列リソースは ID をそのまま文字列にし、設定は全て正しい値で埋める
+     */
+    private static final class Settings {
+        private final Map<String, String> values = new HashMap<>();
+
+        Settings() {
+            put(R.string.key_delay, "30");
+            put(R.string.key_server, "http://localhost:3000");
+            put(R.string.key_backup_servers, "http://backup1:3000, http://backup2:3000");
+            put(R.string.key_emergency_servers, "");
+            put(R.string.key_actor_suffix, "1");
+            put(R.string.key_report_interval, "10");
+            put(R.string.key_timer, "0");
+            put(R.string.key_heartrate_lower, "40");
+            put(R.string.key_heartrate_upper, "150");
+            put(R.string.key_abnormal_duration, "30");
+            put(R.string.key_outbox_policy, "coalesce");
+            put(R.string.key_outbox_capacity, "100");
+            put(R.string.key_signal_timeout, "3");
+            put(R.string.key_main_buffering, "5");
+            put(R.string.key_main_raw_data, "acc");
+            put(R.string.key_summary_interval, "60");
+        }
+
+        Settings put(int keyId, String value) {
+            this.values.put(String.valueOf(keyId), value);
+            return this;
+        }
+
+        Config load() {
+            return Config.load(String::valueOf, (key, defaultValue) -> this.values.containsKey(key) ? this.values.get(key) : defaultValue);
+        }
+    }
+
+    private static void assertRejected(Settings settings) {
+        try {
+            settings.load();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+    }
+
+    @Test
+    public void loadsValidSettings() {
+        final Config config = new Settings().put(R.string.key_outbox_policy, " Drop_Oldest ").load();
+        assertEquals(Outbox.Policy.DROP_OLDEST, config.getOutboxPolicy());
+        assertEquals(100, config.getOutboxCapacity());
+        assertEquals(Arrays.asList("http://localhost:3000", "http://backup1:3000", "http://backup2:3000"), config.getServers());
+        assertEquals(30_000, config.getAbnormalDuration());
+        assertEquals(Config.RawData.ACC, config.getMainRawData());
+    }
+
+    @Test
+    public void rejectsInvalidPolicy() {
+        assertRejected(new Settings().put(R.string.key_outbox_policy, "drop_newest"));
+        assertRejected(new Settings().put(R.string.key_outbox_policy, ""));
+        assertRejected(new Settings().put(R.string.key_main_raw_data, "ecg"));
+    }
+
+    @Test
+    public void rejectsInvalidCapacity() {
+        assertRejected(new Settings().put(R.string.key_outbox_capacity, "0"));
+        assertRejected(new Settings().put(R.string.key_outbox_capacity, "-1"));
+        assertRejected(new Settings().put(R.string.key_outbox_capacity, "many"));
+    }
+
+    @Test
+    public void rejectsInvalidThresholds() {
+        assertRejected(new Settings().put(R.string.key_heartrate_lower, "151"));
+        assertRejected(new Settings().put(R.string.key_abnormal_duration, "-1"));
+        assertRejected(new Settings().put(R.string.key_heartrate_upper, "1.5"));
+
+        // 上限と下限が同じなのは許す
+        final Config config = new Settings().put(R.string.key_heartrate_lower, "150").load();
+        try {
+            config.withHeartrateThresholds(100, 99, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        try {
+            config.withHeartrateThresholds(40, 150, -1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        final Config changed = config.withHeartrateThresholds(50, 120, 10_000);
+        assertEquals(50, changed.getHeartrateLower());
+        assertEquals(120, changed.getHeartrateUpper());
+        assertEquals(config.getOutboxCapacity(), changed.getOutboxCapacity());
+    }
+
+}
@@ -0,0 +1,54 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DataRouterTest {
+
+    @Test
+    public void decodesBlocksPerDataKey() {
+        final DataRouter router = new DataRouter();
+        router.register("test.acc", DataRouter.columns(3));
+        router.register("test.hr", DataRouter.columns(1));
+        final List<String> got = new ArrayList<>();
+        final DataRouter.Receiver receiver = block -> {
+            for (int i = 0; i < block.getCount(); i++) {
+                final StringBuilder row = new StringBuilder(block.getDataKey()).append(':').append(block.getDate(i));
+                for (int j = 0; j < block.getWidth(); j++) {
+                    row.append(',').append(block.getValue(i, j));
+                }
+                got.add(row.toString());
+            }
+        };
+        assertTrue(router.subscribe("test.acc", receiver));
+        assertFalse(router.subscribe("test.acc", block -> got.add("second " + block.getCount())));
+        assertEquals(DataKeys.of("test.acc"), router.getSubscribedKeys());
+
+        router.dispatch("test.acc", "100,0.5,-1,9.8\n200,0,0,1\n", 7);
+        // 受け取り手のいないデータキーは読まない
+        router.dispatch("test.hr", "100,70", 7);
+        assertEquals(3, got.size());
+        assertEquals("test.acc:100,0.5,-1.0,9.8", got.get(0));
+        assertEquals("test.acc:200,0.0,0.0,1.0", got.get(1));
+        assertEquals("second 2", got.get(2));
+        assertEquals(0, router.getErrors());
+
+        assertFalse(router.unsubscribe("test.acc", receiver));
+        got.clear();
+        router.dispatch("test.acc", "300,1,2,3", 8);
+        assertEquals(1, got.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsKeyWithoutDecoder() {
+        new DataRouter().subscribe("test.none", block -> {
+        });
+    }
+
+}
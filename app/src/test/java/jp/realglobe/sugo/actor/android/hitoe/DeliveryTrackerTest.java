@@ -0,0 +1,61 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DeliveryTrackerTest {
+
+    @Test
+    public void countsOnlyTheFirstEmit() {
+        final DeliveryTracker tracker = new DeliveryTracker();
+        tracker.offered(1);
+        tracker.offered(2);
+        tracker.emitted("a", 1, 30);
+        tracker.emitted("b", 1, 10);
+        tracker.emitted("b", 2, 50);
+        tracker.emitted("a", 2, 60);
+
+        final Map<String, Object> stats = tracker.getStats();
+        assertEquals(2L, stats.get("reports"));
+        assertEquals(2L, stats.get("emitted"));
+        assertEquals(50L, stats.get("lastEmitLatency"));
+        assertEquals(40.0, (Double) stats.get("averageEmitLatency"), 1e-9);
+        final Map<?, ?> firsts = (Map<?, ?>) stats.get("firsts");
+        assertEquals(1, firsts.get("a"));
+        assertEquals(1, firsts.get("b"));
+    }
+
+    @Test
+    public void ignoresUnknownSequences() {
+        final DeliveryTracker tracker = new DeliveryTracker();
+        // 同報していない報告
+        tracker.emitted("a", 7, 10);
+
+        final Map<String, Object> stats = tracker.getStats();
+        assertEquals(0L, stats.get("reports"));
+        assertEquals(0L, stats.get("emitted"));
+        assertNull(stats.get("lastEmitLatency"));
+        assertNull(stats.get("averageEmitLatency"));
+    }
+
+    @Test
+    public void forgetsOldestPendingReports() {
+        final DeliveryTracker tracker = new DeliveryTracker();
+        for (int i = 0; i < DeliveryTracker.MAX_PENDING + 10; i++) {
+            tracker.offered(i);
+        }
+        // 古いものは待つのをやめている
+        tracker.emitted("a", 0, 10);
+        tracker.emitted("a", DeliveryTracker.MAX_PENDING + 9, 20);
+
+        final Map<String, Object> stats = tracker.getStats();
+        assertEquals((long) DeliveryTracker.MAX_PENDING + 10, stats.get("reports"));
+        assertEquals(1L, stats.get("emitted"));
+        assertEquals(20L, stats.get("lastEmitLatency"));
+    }
+
+}
@@ -0,0 +1,44 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FallDetectorTest {
+
+    // 25 Hz
+    private static final long STEP = 40;
+
+    @Test
+    public void detectsImpactFollowedByStillness() {
+        final FallDetector detector = new FallDetector();
+        long date = 0;
+        for (; date < 2_000; date += STEP) {
+            assertEquals(0, detector.update(date, 0, (date / STEP) % 2 == 0 ? 1.3f : 0.7f, 0), 0);
+        }
+        assertTrue(detector.update(date, 2, 2, 1) > 0);
+        float score = 0;
+        for (date += STEP; date < 2_000 + FallDetector.SETTLE_TIME + FallDetector.INACTIVITY_DURATION + 3_000; date += STEP) {
+            score = detector.update(date, 0, 0, 1);
+        }
+        assertTrue(score >= 1);
+        assertEquals(1, detector.getStats().get("falls"));
+    }
+
+    @Test
+    public void forgetsImpactWhenMovingOn() {
+        final FallDetector detector = new FallDetector();
+        detector.update(0, 3, 0, 0);
+        float score = 1;
+        for (long date = STEP; date <= FallDetector.IMPACT_TIMEOUT + 1_000; date += STEP) {
+            // 歩き続けている
+            score = detector.update(date, 0, (date / STEP) % 2 == 0 ? 1.4f : 0.6f, 0);
+            assertTrue(score < 1);
+        }
+        assertEquals(0, score, 0);
+        assertEquals(1, detector.getStats().get("impacts"));
+        assertEquals(0, detector.getStats().get("falls"));
+    }
+
+}
@@ -0,0 +1,106 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeartrateDetectorTest {
+
+    @Test
+    public void thresholdsAreInclusive() {
+        final HeartrateDetector detector = new HeartrateDetector(40, 150, 30_000);
+        assertEquals(0, detector.update(0, 40), 0);
+        assertEquals(0, detector.update(1_000, 150), 0);
+        assertTrue(detector.update(2_000, 39) > 0);
+        detector.reset();
+        assertTrue(detector.update(3_000, 151) > 0);
+        // 範囲に戻ったら数え直す
+        assertEquals(0, detector.update(4_000, 100), 0);
+    }
+
+    @Test
+    public void scoreGrowsOverDuration() {
+        final HeartrateDetector detector = new HeartrateDetector(40, 150, 30_000);
+        for (int i = 0; i < 30; i++) {
+            final float score = detector.update(1_000L * i, 160);
+            assertTrue(score > 0);
+            assertTrue(score < 1);
+        }
+        assertEquals(1, detector.update(30_000, 160), 1e-6);
+        assertEquals(2, detector.update(60_000, 30), 1e-6);
+    }
+
+    @Test
+    public void missingSamplesScoreZero() {
+        final HeartrateDetector detector = new HeartrateDetector(40, 150, 30_000);
+        detector.update(0, 160);
+        assertEquals(0, detector.update(10_000, 0), 0);
+        assertEquals(0, detector.update(20_000, -1), 0);
+        // 測定できていない値は経過を途切れさせない
+        assertEquals(1, detector.update(30_000, 160), 1e-6);
+    }
+
+    @Test
+    public void resetOnGapRestartsDuration() {
+        final HeartrateDetector detector = new HeartrateDetector(40, 150, 30_000);
+        detector.update(0, 160);
+        detector.update(20_000, 160);
+        // 途切れたら前後を続けて数えない
+        detector.reset();
+        assertEquals(0, detector.update(40_000, 160), 1e-6);
+        assertEquals(0.5, detector.update(55_000, 160), 1e-6);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvertedRange() {
+        new HeartrateDetector(150, 40, 30_000);
+    }
+
+    @Test
+    public void sustainedAbnormalHeartrateEscalates() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final AlertStateMachine alert = new AlertStateMachine(scheduler, new AlertStateMachine.Listener() {
+            @Override
+            public void onStateChanged(AlertStateMachine.State state) {
+            }
+
+            @Override
+            public void onCountdown(long remaining) {
+            }
+
+            @Override
+            public void onReportStarted() {
+            }
+
+            @Override
+            public void onReport(long scheduled) {
+            }
+
+            @Override
+            public void onSummary(long scheduled) {
+            }
+        }, 10_000, 1_000, 0);
+        final HeartrateDetector detector = new HeartrateDetector(40, 150, 30_000);
+
+        // 1 秒ごとの心拍数を入れて、異常とみなしたら警告中にする
+        for (int i = 0; i < 30; i++) {
+            if (detector.update(scheduler.now(), 30) >= 1) {
+                alert.warn("heartrate");
+            }
+            scheduler.advance(1_000);
+        }
+        assertEquals(AlertStateMachine.State.MAIN, alert.getState());
+        if (detector.update(scheduler.now(), 30) >= 1) {
+            alert.warn("heartrate");
+        }
+        assertEquals(AlertStateMachine.State.WARNING, alert.getState());
+        assertEquals(30_000, alert.getDetected());
+
+        scheduler.advance(10_000);
+        assertEquals(AlertStateMachine.State.EMERGENCY, alert.getState());
+        assertEquals("heartrate", alert.getCause());
+        alert.reset();
+    }
+
+}
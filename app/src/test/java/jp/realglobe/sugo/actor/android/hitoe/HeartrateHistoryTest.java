@@ -0,0 +1,120 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeartrateHistoryTest {
+
+    private static final long[] RESOLUTIONS = {1_000, 10_000};
+    private static final int[] CAPACITIES = {100, 100};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int heartrate(int second) {
+        return 60 + (second * 7) % 13;
+    }
+
+    @Test
+    public void queryStitchesRawAndRollups() throws Exception {
+        final HeartrateHistory history = new HeartrateHistory(folder.getRoot(), "hr", 5, RESOLUTIONS, CAPACITIES);
+        for (int i = 0; i < 60; i++) {
+            history.add(1_000L * i, heartrate(i));
+        }
+
+        final List<List<Number>> buckets = history.query(0, 60_000, 10_000);
+        assertEquals(6, buckets.size());
+        for (int b = 0; b < 6; b++) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            int sum = 0;
+            for (int i = 10 * b; i < 10 * (b + 1); i++) {
+                min = Math.min(min, heartrate(i));
+                max = Math.max(max, heartrate(i));
+                sum += heartrate(i);
+            }
+            final List<Number> bucket = buckets.get(b);
+            assertEquals(10_000L * b, bucket.get(0).longValue());
+            assertEquals(min, bucket.get(1).intValue());
+            assertEquals(max, bucket.get(2).intValue());
+            assertEquals(sum / 10.0, bucket.get(3).doubleValue(), 1e-6);
+            assertEquals(10, bucket.get(4).intValue());
+        }
+        history.close();
+    }
+
+    @Test
+    public void rollupsSurviveReopen() throws Exception {
+        final HeartrateHistory history = new HeartrateHistory(folder.getRoot(), "hr", 5, RESOLUTIONS, CAPACITIES);
+        for (int i = 0; i < 40; i++) {
+            history.add(1_000L * i, heartrate(i));
+        }
+        history.close();
+
+        final HeartrateHistory reopened = new HeartrateHistory(folder.getRoot(), "hr", 5, RESOLUTIONS, CAPACITIES);
+        // まとめ途中だった最後の 1 秒も閉じるときに書かれている
+        final List<List<Number>> buckets = reopened.query(0, 40_000, 1_000);
+        assertEquals(40, buckets.size());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(1_000L * i, buckets.get(i).get(0).longValue());
+            assertEquals(heartrate(i), buckets.get(i).get(1).intValue());
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void olderSamplesAfterReopenAreDropped() throws Exception {
+        final HeartrateHistory history = new HeartrateHistory(folder.getRoot(), "hr", 5, RESOLUTIONS, CAPACITIES);
+        for (int i = 0; i < 40; i++) {
+            history.add(1_000L * i, heartrate(i));
+        }
+        history.close();
+
+        final HeartrateHistory reopened = new HeartrateHistory(folder.getRoot(), "hr", 5, RESOLUTIONS, CAPACITIES);
+        // 時計が戻ったもの
+        reopened.add(20_500, 200);
+        for (int i = 40; i < 50; i++) {
+            reopened.add(1_000L * i, heartrate(i));
+        }
+
+        final List<List<Number>> buckets = reopened.query(0, 50_000, 1_000);
+        assertEquals(50, buckets.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(1_000L * i, buckets.get(i).get(0).longValue());
+            assertEquals(heartrate(i), buckets.get(i).get(2).intValue());
+            assertEquals(1, buckets.get(i).get(4).intValue());
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void diskUsageIsBounded() throws Exception {
+        final HeartrateHistory history = new HeartrateHistory(folder.getRoot(), "hr", 5, RESOLUTIONS, CAPACITIES);
+        for (int i = 0; i < 10_000; i++) {
+            history.add(1_000L * i, heartrate(i));
+        }
+        history.close();
+
+        for (long resolution : RESOLUTIONS) {
+            final File file = new File(folder.getRoot(), "hr_" + resolution + ".bin");
+            assertTrue(file.length() <= RollupTier.HEADER_SIZE + 100L * RollupTier.RECORD_SIZE);
+        }
+
+        // 1 秒の段に残っていない古い部分は 10 秒の段で答える
+        final HeartrateHistory reopened = new HeartrateHistory(folder.getRoot(), "hr", 5, RESOLUTIONS, CAPACITIES);
+        final List<List<Number>> buckets = reopened.query(9_000_000, 9_990_000, 10_000);
+        assertEquals(99, buckets.size());
+        for (List<Number> bucket : buckets) {
+            assertEquals(10, bucket.get(4).intValue());
+        }
+        reopened.close();
+    }
+
+}
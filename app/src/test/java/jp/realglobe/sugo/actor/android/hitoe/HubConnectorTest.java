@@ -0,0 +1,164 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HubConnectorTest {
+
+    /**
+     * 接続を始めた URL と時刻、捨てた数を記録する
+     */
+    private static final class Recorder {
+        private final VirtualScheduler scheduler;
+        private final List<String> servers = new ArrayList<>();
+        private final List<Long> dates = new ArrayList<>();
+        private int hangups;
+        private HubConnector connector;
+        // true なら接続を始めるとすぐ切れる
+        private boolean refuse;
+
+        Recorder(VirtualScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        HubConnector newConnector() {
+            this.connector = new HubConnector(this.scheduler, this::dial, () -> this.hangups++);
+            return this.connector;
+        }
+
+        private void dial(String server) {
+            this.servers.add(server);
+            this.dates.add(this.scheduler.now());
+            if (this.refuse) {
+                this.connector.onDisconnected();
+            }
+        }
+    }
+
+    @Test
+    public void disconnectWhileDialingFailsOverAtOnce() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder(scheduler);
+        final HubConnector connector = recorder.newConnector();
+        connector.start(Arrays.asList("a", "b"));
+
+        scheduler.advance(100);
+        connector.onDisconnected();
+        // 時間切れを待たずに次の URL へ
+        scheduler.advance(HubConnector.FAILOVER_DELAY);
+        assertEquals(Arrays.asList("a", "b"), recorder.servers);
+        assertEquals(1, recorder.hangups);
+        // 残るのは b の時間切れだけ
+        assertEquals(1, scheduler.getPending());
+
+        connector.onConnected();
+        scheduler.advance(HubConnector.CONNECT_TIMEOUT);
+        assertEquals("b", connector.getServer());
+        assertEquals(true, connector.getStats().get("connected"));
+        assertEquals(0, connector.getStats().get("disconnects"));
+        assertEquals(0, scheduler.getPending());
+    }
+
+    @Test
+    public void connectJustBeforeTimeoutWins() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder(scheduler);
+        final HubConnector connector = recorder.newConnector();
+        connector.start(Arrays.asList("a", "b"));
+
+        scheduler.advance(HubConnector.CONNECT_TIMEOUT - 1);
+        connector.onConnected();
+        scheduler.advance(HubConnector.CONNECT_TIMEOUT);
+        assertEquals(Collections.singletonList("a"), recorder.servers);
+        assertEquals(true, connector.getStats().get("connected"));
+        assertEquals(1.0, connector.getStats().get("successRate"));
+        assertEquals(0, recorder.hangups);
+    }
+
+    @Test
+    public void connectBehindTimeoutIsDropped() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder(scheduler);
+        final HubConnector connector = recorder.newConnector();
+        // 時間切れと同じ時刻に、時間切れより先に積まれた接続の知らせ
+        scheduler.postDelayed(connector::onConnected, HubConnector.CONNECT_TIMEOUT);
+        connector.start(Arrays.asList("a", "b"));
+
+        scheduler.advance(HubConnector.CONNECT_TIMEOUT);
+        // 時間切れで捨てた a の接続は数えない
+        assertEquals(false, connector.getStats().get("connected"));
+        assertEquals(1, recorder.hangups);
+        scheduler.advance(HubConnector.FAILOVER_DELAY);
+        assertEquals(Arrays.asList("a", "b"), recorder.servers);
+        assertEquals(0.0, connector.getStats().get("successRate"));
+
+        connector.onConnected();
+        scheduler.advance(0);
+        assertEquals("b", connector.getServer());
+        assertEquals(true, connector.getStats().get("connected"));
+    }
+
+    @Test
+    public void failsOverInOrderThenBacksOff() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder(scheduler);
+        final HubConnector connector = recorder.newConnector();
+        connector.start(Arrays.asList("a", "b", "c"));
+
+        // 全て時間切れ
+        scheduler.advance(3 * (HubConnector.CONNECT_TIMEOUT + HubConnector.FAILOVER_DELAY) + HubConnector.CONNECT_TIMEOUT + 2 * HubConnector.BASE_DELAY);
+        assertTrue(recorder.servers.size() >= 4);
+        assertEquals(Arrays.asList("a", "b", "c", "a"), recorder.servers.subList(0, 4));
+        for (int i = 1; i < 3; i++) {
+            final long gap = recorder.dates.get(i) - recorder.dates.get(i - 1);
+            assertTrue("gap " + gap, gap >= HubConnector.CONNECT_TIMEOUT && gap < HubConnector.CONNECT_TIMEOUT + HubConnector.FAILOVER_DELAY);
+        }
+        // 1 周目が全て失敗したら BASE_DELAY の 2 倍までの乱数だけ待つ
+        final long gap = recorder.dates.get(3) - recorder.dates.get(2);
+        assertTrue("gap " + gap, gap >= HubConnector.CONNECT_TIMEOUT && gap < HubConnector.CONNECT_TIMEOUT + 2 * HubConnector.BASE_DELAY);
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder(scheduler);
+        recorder.refuse = true;
+        final HubConnector connector = recorder.newConnector();
+        connector.start(Collections.singletonList("a"));
+
+        scheduler.advance(60 * 60_000);
+        assertTrue(recorder.dates.size() > 40);
+        long longest = 0;
+        for (int i = 1; i < recorder.dates.size(); i++) {
+            final long gap = recorder.dates.get(i) - recorder.dates.get(i - 1);
+            // i 回目の周回の後は BASE_DELAY を i 回倍にしたもの（MAX_DELAY まで）未満
+            final long cap = Math.min(HubConnector.MAX_DELAY, HubConnector.BASE_DELAY << Math.min(i, 16));
+            assertTrue("gap " + gap + " after round " + i, gap < cap);
+            longest = Math.max(longest, gap);
+        }
+        // 倍々に延びて上限の近くまで待つ
+        assertTrue("longest " + longest, longest > HubConnector.MAX_DELAY / 2);
+
+        // つながった後に切れたら、短い待ち時間から始め直す
+        recorder.refuse = false;
+        final int dialed = recorder.servers.size();
+        while (recorder.servers.size() == dialed) {
+            scheduler.advance(1);
+        }
+        connector.onConnected();
+        scheduler.advance(0);
+        final int before = recorder.servers.size();
+        connector.onDisconnected();
+        scheduler.advance(HubConnector.BASE_DELAY);
+        assertEquals(before + 1, recorder.servers.size());
+        assertEquals(1, connector.getStats().get("disconnects"));
+    }
+
+}
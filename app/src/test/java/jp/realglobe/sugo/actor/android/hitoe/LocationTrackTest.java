@@ -0,0 +1,73 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LocationTrackTest {
+
+    // 緯度 1 度あたりの距離（m）のおよそ
+    private static final double DEGREE = 111_320;
+
+    @Test
+    public void collapsesStraightAndStationary() {
+        final LocationTrack track = new LocationTrack();
+        // 北へ 1 秒に 2 m ずつ 2 分進んで、東へ曲がって 1 分進み、止まる
+        long date = 0;
+        for (int i = 0; i <= 120; i++) {
+            track.add(date += 1_000, 35 + 2 * i / DEGREE, 139);
+        }
+        for (int i = 1; i <= 60; i++) {
+            track.add(date += 1_000, 35 + 240 / DEGREE, 139 + 2 * i / DEGREE / Math.cos(Math.toRadians(35)));
+        }
+        for (int i = 0; i < 60; i++) {
+            track.add(date += 1_000, 35 + 240 / DEGREE, 139 + 120 / DEGREE / Math.cos(Math.toRadians(35)));
+        }
+        final List<List<Number>> points = track.get();
+        assertEquals(3, points.size());
+        assertEquals(1_000L, points.get(0).get(0));
+        // 曲がり角は仮の点を置き換える距離の分だけずれうる
+        assertEquals(35 + 240 / DEGREE, points.get(1).get(1).doubleValue(), LocationTrack.MIN_DISTANCE / DEGREE);
+        assertEquals(139, points.get(1).get(2).doubleValue(), LocationTrack.MIN_DISTANCE / DEGREE);
+        // 止まっている間は最後の点の時刻が進む
+        assertEquals(date, points.get(2).get(0));
+    }
+
+    @Test
+    public void boundsWanderingTrack() {
+        final Random random = new Random(3);
+        final LocationTrack track = new LocationTrack();
+        double latitude = 35;
+        double longitude = 139;
+        long date = 0;
+        for (int i = 0; i < 3_600; i++) {
+            latitude += 20 * random.nextGaussian() / DEGREE;
+            longitude += 20 * random.nextGaussian() / DEGREE;
+            track.add(date += 2_000, latitude, longitude);
+            assertTrue(track.size() <= LocationTrack.CAPACITY);
+        }
+        final List<List<Number>> points = track.get();
+        assertEquals(LocationTrack.CAPACITY, points.size());
+        // 最新の点は必ず残り、古すぎる点は残らない
+        assertEquals(date, points.get(points.size() - 1).get(0));
+        assertEquals(latitude, points.get(points.size() - 1).get(1).doubleValue(), 0);
+        assertTrue(date - points.get(0).get(0).longValue() <= LocationTrack.DURATION);
+    }
+
+    @Test
+    public void keepsLatestAfterLongGap() {
+        final LocationTrack track = new LocationTrack();
+        track.add(0, 35, 139);
+        track.add(1_000, 35.001, 139);
+        track.add(LocationTrack.DURATION + 60_000, 35.002, 139.001);
+        assertEquals(1, track.size());
+        // 遅れて届いた古い位置は無視する
+        track.add(1_000, 35, 139);
+        assertEquals(1, track.size());
+    }
+
+}
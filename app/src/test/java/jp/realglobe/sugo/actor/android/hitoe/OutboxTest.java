@@ -0,0 +1,168 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+
+    private static Outbox.Message routine(String event, int id) {
+        return new Outbox.Message(event, Collections.singletonMap("id", id), false, null);
+    }
+
+    private static Outbox.Message transition(String event, int id) {
+        return new Outbox.Message(event, Collections.singletonMap("id", id), true, null);
+    }
+
+    private static List<String> labels(List<Outbox.Message> messages) {
+        final List<String> labels = new ArrayList<>();
+        for (Outbox.Message message : messages) {
+            labels.add(message.getEvent() + message.getData().get("id"));
+        }
+        return labels;
+    }
+
+    @Test
+    public void coalesceKeepsLatestPerEvent() {
+        final List<Outbox.Message> sent = new ArrayList<>();
+        final Outbox outbox = new Outbox(sent::add, Outbox.Policy.COALESCE, 10);
+        outbox.offer(transition("warning", 0));
+        outbox.offer(routine("warning", 1));
+        outbox.offer(routine("warning", 2));
+        outbox.offer(transition("emergency", 3));
+        outbox.offer(routine("emergency", 4));
+        outbox.offer(routine("emergency", 5));
+        outbox.offer(routine("warning", 6));
+        assertEquals(0, sent.size());
+
+        outbox.setConnected(true);
+        assertEquals(Arrays.asList("warning0", "emergency3", "emergency5", "warning6"), labels(sent));
+
+        final Map<String, Object> stats = outbox.getStats();
+        assertEquals(0, stats.get("depth"));
+        assertEquals(4, stats.get("maxDepth"));
+        assertEquals(4L, stats.get("sent"));
+        assertEquals(3L, stats.get("coalesced"));
+        assertEquals(0L, stats.get("dropped"));
+    }
+
+    @Test
+    public void dropOldestNeverDropsTransitions() {
+        final List<Outbox.Message> sent = new ArrayList<>();
+        final Outbox outbox = new Outbox(sent::add, Outbox.Policy.DROP_OLDEST, 2);
+        outbox.offer(transition("warning", 0));
+        for (int i = 1; i <= 5; i++) {
+            outbox.offer(routine("warning", i));
+        }
+        outbox.offer(transition("emergency", 6));
+        outbox.offer(routine("emergency", 7));
+
+        outbox.setConnected(true);
+        assertEquals(Arrays.asList("warning0", "emergency6", "warning5", "emergency7"), labels(sent));
+        assertEquals(4L, outbox.getStats().get("dropped"));
+    }
+
+    @Test
+    public void transitionsPreemptRoutineBacklog() {
+        final List<Outbox.Message> sent = new ArrayList<>();
+        final Outbox outbox = new Outbox(sent::add, Outbox.Policy.DROP_OLDEST, 10);
+        for (int i = 0; i < 5; i++) {
+            outbox.offer(routine("warning", i));
+        }
+        outbox.offer(transition("emergency", 5));
+        assertEquals(1, outbox.getStats().get("urgentDepth"));
+
+        outbox.setConnected(true);
+        assertEquals(Arrays.asList("emergency5", "warning0", "warning1", "warning2", "warning3", "warning4"), labels(sent));
+
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> latency = (Map<String, Object>) outbox.getStats().get("urgentLatency");
+        assertEquals(1L, latency.get("count"));
+        assertTrue((Double) latency.get("p99") >= 0);
+    }
+
+    @Test
+    public void sendsImmediatelyWhileConnected() {
+        final List<Outbox.Message> sent = new ArrayList<>();
+        final Outbox outbox = new Outbox(sent::add, Outbox.Policy.COALESCE, 10);
+        outbox.setConnected(true);
+        outbox.offer(transition("warning", 0));
+        outbox.offer(routine("warning", 1));
+        assertEquals(Arrays.asList("warning0", "warning1"), labels(sent));
+
+        outbox.setConnected(false);
+        outbox.offer(routine("warning", 2));
+        assertEquals(2, sent.size());
+        assertEquals(1, outbox.getStats().get("depth"));
+    }
+
+    @Test
+    public void failedSendIsKeptAtHead() {
+        final List<Outbox.Message> sent = new ArrayList<>();
+        final boolean[] available = {false};
+        final Outbox outbox = new Outbox(message -> available[0] && sent.add(message), Outbox.Policy.COALESCE, 10);
+        outbox.offer(transition("emergency", 0));
+        outbox.offer(routine("emergency", 1));
+        // つながったと伝わったが、送り先はまだ無い
+        outbox.setConnected(true);
+        assertEquals(0, sent.size());
+        assertEquals(2, outbox.getStats().get("depth"));
+        assertEquals(0L, outbox.getStats().get("sent"));
+
+        // 送れなかったら次につながるまで待つ
+        available[0] = true;
+        outbox.offer(routine("emergency", 2));
+        assertEquals(0, sent.size());
+        outbox.setConnected(true);
+        assertEquals(Arrays.asList("emergency0", "emergency2"), labels(sent));
+        assertEquals(2L, outbox.getStats().get("sent"));
+    }
+
+    @Test
+    public void concurrentOffersAreNotStranded() throws InterruptedException {
+        final AtomicInteger delivered = new AtomicInteger();
+        final Outbox outbox = new Outbox(message -> delivered.incrementAndGet() > 0, Outbox.Policy.COALESCE, 10);
+        outbox.setConnected(true);
+        // 送り出しを終える瞬間と重なるように、2 つのスレッドから同時に入れるのを繰り返す
+        final int rounds = 20_000;
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final Thread other = new Thread(() -> {
+            try {
+                for (int i = 0; i < rounds; i++) {
+                    barrier.await();
+                    outbox.offer(transition("warning", 2 * i + 1));
+                    barrier.await();
+                }
+            } catch (InterruptedException | BrokenBarrierException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        other.start();
+        try {
+            for (int i = 0; i < rounds; i++) {
+                barrier.await();
+                outbox.offer(transition("warning", 2 * i));
+                barrier.await();
+                // どちらの offer も戻った後には何も残っていない
+                assertEquals("round " + i, 0, outbox.getStats().get("depth"));
+            }
+        } catch (BrokenBarrierException e) {
+            throw new RuntimeException(e);
+        } finally {
+            other.interrupt();
+            other.join();
+        }
+        assertEquals(2 * rounds, delivered.get());
+    }
+
+}
@@ -0,0 +1,97 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantileSketchTest {
+
+    /**
+     * 分位点の順位の誤差を返す
+     */
+    private static double rankError(int[] sorted, double value, double fraction) {
+        int below = 0;
+        while (below < sorted.length && sorted[below] < value) {
+            below++;
+        }
+        int upTo = below;
+        while (upTo < sorted.length && sorted[upTo] <= value) {
+            upTo++;
+        }
+        // 同じ値が並ぶ範囲のどこかに目標の順位があればよい
+        final double target = fraction * sorted.length;
+        if (target < below) {
+            return (below - target) / sorted.length;
+        } else if (target > upTo) {
+            return (target - upTo) / sorted.length;
+        }
+        return 0;
+    }
+
+    @Test
+    public void approximatesQuantiles() {
+        final Random random = new Random(1);
+        final QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_K);
+        final int[] values = new int[24 * 60 * 60];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 60 + (int) Math.round(15 * random.nextGaussian()) + (i / 3_600) % 4 * 10;
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+        for (double fraction : new double[]{0.05, 0.25, 0.5, 0.75, 0.95}) {
+            final double error = rankError(values, sketch.quantile(fraction), fraction);
+            assertTrue(fraction + ": " + error, error < 0.05);
+        }
+        assertEquals(values[0], sketch.quantile(0), 0);
+        assertEquals(values[values.length - 1], sketch.quantile(1), 0);
+        assertEquals(values.length, sketch.getCount());
+        // 1 日分でも数百バイトに収まる
+        assertTrue(String.valueOf(sketch.getRetained()), sketch.getRetained() <= 3 * QuantileSketch.DEFAULT_K + 16);
+        assertTrue(sketch.toMap().toString().length() < 600);
+    }
+
+    @Test
+    public void mergesAcrossDevices() {
+        final Random random = new Random(2);
+        final QuantileSketch fleet = new QuantileSketch(QuantileSketch.DEFAULT_K);
+        final int[] values = new int[20 * 3_600];
+        for (int device = 0; device < 20; device++) {
+            final QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_K);
+            for (int i = 0; i < 3_600; i++) {
+                final int value = 50 + 3 * device + random.nextInt(40);
+                values[device * 3_600 + i] = value;
+                sketch.add(value);
+            }
+            fleet.merge(sketch);
+            assertEquals(3_600, sketch.getCount());
+        }
+        Arrays.sort(values);
+        for (double fraction : new double[]{0.1, 0.5, 0.9}) {
+            final double error = rankError(values, fleet.quantile(fraction), fraction);
+            assertTrue(fraction + ": " + error, error < 0.05);
+        }
+        assertEquals(values.length, fleet.getCount());
+    }
+
+    @Test
+    public void flushStartsNewWindow() {
+        final QuantileSketch sketch = new QuantileSketch(8);
+        for (int i = 1; i <= 100; i++) {
+            sketch.add(i);
+        }
+        final Map<String, Object> window = sketch.flush();
+        assertEquals(100L, window.get("n"));
+        assertEquals(1, window.get("min"));
+        assertEquals(100, window.get("max"));
+        assertEquals(0, sketch.getCount());
+        assertTrue(Double.isNaN(sketch.quantile(0.5)));
+        sketch.add(70);
+        assertEquals(70, sketch.quantile(0.5), 0);
+    }
+
+}
@@ -0,0 +1,140 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RPeakDetectorTest {
+
+    private static final double RATE = 200;
+
+    /**
+     * R 波を尖ったガウス関数、T 波をなだらかなガウス関数とし、基線の揺れと雑音を足した心電図
+     */
+    private static double ecg(double t, double[] beats, Random random) {
+        return ecg(t, beats, null, random);
+    }
+
+    /**
+     * @param amplitudes R 波ごとの高さ。null なら全て 1
+     */
+    private static double ecg(double t, double[] beats, double[] amplitudes, Random random) {
+        double value = 0.1 * Math.sin(2 * Math.PI * 0.3 * t) + 0.02 * random.nextGaussian();
+        for (int i = 0; i < beats.length; i++) {
+            final double r = (t - beats[i]) / 0.01;
+            final double w = (t - beats[i] - 0.25) / 0.05;
+            value += (amplitudes == null ? 1 : amplitudes[i]) * Math.exp(-r * r / 2) + 0.3 * Math.exp(-w * w / 2);
+        }
+        return value;
+    }
+
+    @Test
+    public void findsBeatsAndRate() {
+        final double[] beats = new double[60];
+        double beat = 0.5;
+        for (int i = 0; i < beats.length; i++) {
+            beats[i] = beat;
+            // 75 bpm と 100 bpm を交互に
+            beat += i % 2 == 0 ? 0.8 : 0.6;
+        }
+        final List<long[]> found = new ArrayList<>();
+        final List<Float> rates = new ArrayList<>();
+        final RPeakDetector detector = new RPeakDetector(RATE, (date, heartrate) -> {
+            found.add(new long[]{date});
+            rates.add(heartrate);
+        });
+        final Random random = new Random(1);
+        for (int n = 0; n < (beat + 1) * RATE; n++) {
+            final double t = n / RATE;
+            detector.update(1_000_000L + Math.round(1_000 * t), ecg(t, beats, random));
+        }
+
+        // 閾値を学ぶ 2 秒の分は拾わない
+        int matched = 0;
+        for (long[] date : found) {
+            for (double b : beats) {
+                if (Math.abs(date[0] - (1_000_000L + Math.round(1_000 * b))) <= 15) {
+                    matched++;
+                    break;
+                }
+            }
+        }
+        assertTrue("found " + found.size(), found.size() >= beats.length - 4 && found.size() <= beats.length);
+        assertEquals(found.size(), matched);
+        for (int i = 1; i < rates.size(); i++) {
+            final float rate = rates.get(i);
+            assertTrue("rate " + rate, Math.abs(rate - 75) < 1 || Math.abs(rate - 100) < 1);
+        }
+    }
+
+    @Test
+    public void resetRelearnsAfterPause() {
+        final double[] beats = new double[20];
+        for (int i = 0; i < beats.length; i++) {
+            beats[i] = 0.5 + 0.75 * i;
+        }
+        final List<Float> rates = new ArrayList<>();
+        final RPeakDetector detector = new RPeakDetector(RATE, (date, heartrate) -> rates.add(heartrate));
+        final Random random = new Random(3);
+        final double end = beats[beats.length - 1] + 1;
+        for (int n = 0; n < end * RATE; n++) {
+            final double t = n / RATE;
+            detector.update(1_000_000L + Math.round(1_000 * t), ecg(t, beats, random));
+        }
+        final int before = rates.size();
+        assertTrue("found " + before, before > 0);
+
+        // 1 分止めてから、同じ心電図を受け取り直す
+        detector.reset();
+        assertEquals(true, detector.getStats().get("learning"));
+        for (int n = 0; n < end * RATE; n++) {
+            final double t = n / RATE;
+            detector.update(1_060_000L + Math.round(1_000 * (end + t)), ecg(t, beats, random));
+        }
+        assertEquals(2 * before, rates.size());
+        // 止める前の R 波とはつながず、最初の R 波は 0
+        assertEquals(0, rates.get(before), 0);
+        for (int i = before + 1; i < rates.size(); i++) {
+            assertEquals(80, rates.get(i), 1);
+        }
+        assertEquals(2L * before, detector.getStats().get("beats"));
+    }
+
+    @Test
+    public void searchBackRecoversWeakBeatsAtSlowRates() {
+        for (double bpm : new double[]{40, 35, 30}) {
+            final double interval = 60 / bpm;
+            final double[] beats = new double[(int) (120 / interval)];
+            final double[] amplitudes = new double[beats.length];
+            for (int i = 0; i < beats.length; i++) {
+                beats[i] = 0.5 + i * interval;
+                // 4 拍に 1 回は低い R 波で、通常の閾値では見逃す
+                amplitudes[i] = i % 4 == 3 ? 0.4 : 1;
+            }
+            final List<Long> found = new ArrayList<>();
+            final RPeakDetector detector = new RPeakDetector(RATE, (date, heartrate) -> found.add(date));
+            final Random random = new Random(1);
+            for (int n = 0; n < (beats[beats.length - 1] + 1) * RATE; n++) {
+                final double t = n / RATE;
+                detector.update(1_000_000L + Math.round(1_000 * t), ecg(t, beats, amplitudes, random));
+            }
+
+            // 閾値を学ぶ 2 秒の分を除いて全て拾う
+            assertTrue(bpm + " bpm found " + found.size() + " of " + beats.length, found.size() >= beats.length - 2);
+            for (long date : found) {
+                boolean matched = false;
+                for (double b : beats) {
+                    matched |= Math.abs(date - (1_000_000L + Math.round(1_000 * b))) <= 15;
+                }
+                assertTrue(bpm + " bpm unexpected beat at " + date, matched);
+            }
+            assertTrue(bpm + " bpm search-backs", (long) detector.getStats().get("searchBacks") > 0);
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResponseScannerTest {
+
+    @Test
+    public void splitsRowsAndColumns() {
+        final ResponseScanner scanner = new ResponseScanner("\r\n a,b,,c \r\n\n\rd\n");
+        assertTrue(scanner.nextRow());
+        assertEquals(4, scanner.getColumnCount());
+        assertEquals("a", scanner.getString(0));
+        assertEquals("", scanner.getString(2));
+        assertEquals("c", scanner.getString(3));
+        assertEquals("a,b,,c", scanner.getRow());
+        assertTrue(scanner.nextRow());
+        assertEquals(1, scanner.getColumnCount());
+        assertEquals("d", scanner.getString(0));
+        assertFalse(scanner.nextRow());
+    }
+
+    @Test
+    public void reusesRecentStrings() {
+        final ResponseScanner first = new ResponseScanner("session-1,sensor-1");
+        first.nextRow();
+        final ResponseScanner second = new ResponseScanner("x,session-1");
+        second.nextRow();
+        assertSame(first.getString(0), second.getString(1));
+    }
+
+    @Test
+    public void readsDataKeys() {
+        final ResponseScanner scanner = new ResponseScanner("raw.hr|raw.ecg||raw.acc,");
+        scanner.nextRow();
+        final long dataKeys = scanner.getDataKeys(0);
+        assertEquals(DataKeys.of("raw.acc", "raw.ecg", "raw.hr"), dataKeys);
+        assertEquals("raw.acc|raw.ecg|raw.hr", DataKeys.format(dataKeys));
+        assertEquals(0, scanner.getDataKeys(1));
+        assertEquals("", DataKeys.format(0));
+    }
+
+    @Test
+    public void readsNumbersFromBufferedBlock() {
+        final ResponseScanner scanner = new ResponseScanner("1476181091131,72.5\n1476181092131,-3\nx,y\n");
+        assertTrue(scanner.nextRow());
+        assertEquals(1476181091131L, scanner.getLong(0));
+        assertEquals(72.5, scanner.getDouble(1), 0);
+        assertTrue(scanner.nextRow());
+        assertEquals(-3, scanner.getLong(1));
+        assertTrue(scanner.nextRow());
+        try {
+            scanner.getLong(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        assertFalse(scanner.nextRow());
+    }
+
+    @Test
+    public void readsDoublesLikeParseDouble() {
+        final String[] texts = {
+                "0", "-0", "+1", "72.5", "-3", ".5", "5.", "0.001", "-0.000123",
+                "1e3", "1.5E-3", "-2.25e+2", "123456789012345", "0.1", "0.3", "4503599627370497",
+                "1234567890.1234567", "1e22", "1e23", "1e-22", "1e-400", "1e400", "NaN", "-Infinity", " 7 ", "1d",
+        };
+        final StringBuilder row = new StringBuilder();
+        for (String text : texts) {
+            row.append(text).append(',');
+        }
+        final ResponseScanner scanner = new ResponseScanner(row.toString());
+        assertTrue(scanner.nextRow());
+        for (int i = 0; i < texts.length; i++) {
+            assertEquals(texts[i], Double.doubleToLongBits(Double.parseDouble(texts[i])), Double.doubleToLongBits(scanner.getDouble(i)));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedDoubles() {
+        final ResponseScanner scanner = new ResponseScanner("-,.,e5,1e,1.2.3,1e+,x,");
+        assertTrue(scanner.nextRow());
+        for (int i = 0; i < scanner.getColumnCount(); i++) {
+            try {
+                scanner.getDouble(i);
+                fail(scanner.getString(i));
+            } catch (IllegalArgumentException e) {
+                // OK
+            }
+        }
+    }
+
+    @Test
+    public void resetStartsOver() {
+        final ResponseScanner scanner = new ResponseScanner();
+        assertFalse(scanner.nextRow());
+        scanner.reset("1,2.5\n3,4\n");
+        assertTrue(scanner.nextRow());
+        assertTrue(scanner.nextRow());
+        scanner.reset("5,6.5");
+        assertTrue(scanner.nextRow());
+        assertEquals(5, scanner.getLong(0));
+        assertEquals(6.5, scanner.getDouble(1), 0);
+        assertFalse(scanner.nextRow());
+    }
+
+}
@@ -0,0 +1,115 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleBusTest {
+
+    @Test
+    public void everySubscriberSeesEverySampleInOrder() throws InterruptedException {
+        // 受け取り手より少ないスレッドで配る
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final SampleBus bus = new SampleBus(16, () -> 0, executor);
+        final int total = 100_000;
+        final CountDownLatch done = new CountDownLatch(5);
+        final AtomicLong errors = new AtomicLong();
+        for (int n = 0; n < 5; n++) {
+            final long[] next = {0};
+            bus.subscribe("s" + n, (date, heartrate, received) -> {
+                if (date != next[0] || heartrate != (int) date || received != -date) {
+                    errors.incrementAndGet();
+                }
+                next[0]++;
+                if (next[0] == total) {
+                    done.countDown();
+                }
+            });
+        }
+        // 読み手が追い越されないように配る速さを抑える
+        for (int i = 0; i < total; i++) {
+            bus.publish(i, i, -i);
+            if (i % 8 == 7) {
+                waitForDepth(bus, 0);
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, errors.get());
+        bus.close();
+        assertFalse(bus.hasSubscribers());
+        executor.shutdown();
+    }
+
+    @Test
+    public void slowSubscriberIsOverrunWithoutBlockingOthers() throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final SampleBus bus = new SampleBus(4, () -> 0, executor);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fastDone = new CountDownLatch(1);
+        final AtomicLong slowLast = new AtomicLong(-1);
+        bus.subscribe("slow", (date, heartrate, received) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            slowLast.set(date);
+        });
+        bus.subscribe("fast", (date, heartrate, received) -> {
+            if (date == 99) {
+                fastDone.countDown();
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            bus.publish(i, 60, 0);
+            // 速い方だけは追いつくのを待つ
+            while ((Long) subscriberStats(bus, "fast").get("depth") > 0) {
+                Thread.yield();
+            }
+        }
+        assertTrue(fastDone.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (slowLast.get() != 99 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(99, slowLast.get());
+        final Map<String, Object> slow = subscriberStats(bus, "slow");
+        assertTrue((Long) slow.get("overruns") > 0);
+        assertEquals(100L, (Long) slow.get("delivered") + (Long) slow.get("overruns"));
+        assertEquals(0L, subscriberStats(bus, "fast").get("overruns"));
+        bus.close();
+        executor.shutdown();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> subscriberStats(SampleBus bus, String name) {
+        return (Map<String, Object>) ((Map<String, Object>) bus.getStats().get("subscribers")).get(name);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void waitForDepth(SampleBus bus, long depth) {
+        while (true) {
+            boolean caughtUp = true;
+            for (Object stats : ((Map<String, Object>) bus.getStats().get("subscribers")).values()) {
+                if ((Long) ((Map<String, Object>) stats).get("depth") > depth) {
+                    caughtUp = false;
+                }
+            }
+            if (caughtUp) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleQueueTest {
+
+    @Test
+    public void countsOverflowAndWrapsAround() {
+        final SampleQueue queue = new SampleQueue(3);
+        assertEquals(4, queue.getCapacity());
+        final List<Long> dates = new ArrayList<>();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(queue.offer(10 * round + i, 60 + i, i));
+            }
+            assertFalse(queue.offer(-1, 0, 0));
+            assertEquals(4, queue.drain((date, heartrate, received) -> dates.add(date)));
+        }
+        assertEquals(3, queue.getOverflows());
+        assertEquals(12, dates.size());
+        assertEquals(Long.valueOf(23), dates.get(11));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void passesSamplesInOrderAcrossThreads() throws InterruptedException {
+        final SampleQueue queue = new SampleQueue(64);
+        final int total = 200_000;
+        final Thread producer = new Thread(() -> {
+            for (int i = 0; i < total; ) {
+                if (queue.offer(i, i, -i)) {
+                    i++;
+                }
+            }
+        });
+        producer.start();
+        final long[] next = {0};
+        while (next[0] < total) {
+            queue.drain((date, heartrate, received) -> {
+                assertEquals(next[0], date);
+                assertEquals(next[0], heartrate);
+                assertEquals(-next[0], received);
+                next[0]++;
+            });
+        }
+        producer.join();
+        assertEquals(total, next[0]);
+    }
+
+}
@@ -0,0 +1,117 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SensorReconnectorTest {
+
+    private static final HitoeWrapper.SensorInfo SENSOR = HitoeWrapper.SensorInfo.parse("hitoe D100,001C4D000001,00:1C:4D:00:00:01,memory_setting,raw.hr");
+    private static final String PINCODE = "0000";
+
+    /**
+     * 接続を始めた時刻と結果の受け取り先、警告を記録する
+     */
+    private static final class Recorder {
+        private final VirtualScheduler scheduler;
+        private final List<Long> dates = new ArrayList<>();
+        private final List<HitoeWrapper.ConnectCallback> callbacks = new ArrayList<>();
+        private final List<String> warnings = new ArrayList<>();
+        // null でなければ接続を始めるとすぐこの結果を返す
+        private HitoeWrapper.ConnectResult result;
+
+        Recorder(VirtualScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        SensorReconnector newReconnector() {
+            return new SensorReconnector(this.scheduler, this::connect, this.warnings::add);
+        }
+
+        private void connect(HitoeWrapper.SensorInfo sensor, String pincode, HitoeWrapper.ConnectCallback callback) {
+            assertEquals(SENSOR, sensor);
+            assertEquals(PINCODE, pincode);
+            this.dates.add(this.scheduler.now());
+            this.callbacks.add(callback);
+            if (this.result != null) {
+                callback.call(this.result);
+            }
+        }
+    }
+
+    @Test
+    public void ignoresResultsOfStaleAttempts() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder(scheduler);
+        final SensorReconnector reconnector = recorder.newReconnector();
+        reconnector.start(SENSOR, PINCODE);
+
+        // 1 回目は結果が来ないまま時間切れになり、2 回目を試す
+        scheduler.advance(SensorReconnector.BASE_DELAY + SensorReconnector.ATTEMPT_TIMEOUT);
+        assertEquals(Arrays.asList(SensorReconnector.BASE_DELAY, SensorReconnector.BASE_DELAY + SensorReconnector.ATTEMPT_TIMEOUT), recorder.dates);
+
+        // 遅れて届いた 1 回目の結果は、成功でも失敗でも捨てる
+        recorder.callbacks.get(0).call(HitoeWrapper.ConnectResult.OK);
+        recorder.callbacks.get(0).call(HitoeWrapper.ConnectResult.INVALID_PINCODE);
+        scheduler.advance(0);
+        assertEquals(true, reconnector.getStats().get("reconnecting"));
+        assertEquals(0, reconnector.getStats().get("reconnects"));
+        assertEquals(0, recorder.warnings.size());
+
+        // 2 回目の失敗で、2 回分延ばした時間だけ待つ
+        recorder.callbacks.get(1).call(HitoeWrapper.ConnectResult.NOT_FOUND);
+        scheduler.advance((SensorReconnector.BASE_DELAY << 2) - 1);
+        assertEquals(2, recorder.dates.size());
+        scheduler.advance(1);
+        assertEquals(3, recorder.dates.size());
+        assertEquals(3, reconnector.getStats().get("attempts"));
+    }
+
+    @Test
+    public void invalidPincodeStopsTrying() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder(scheduler);
+        recorder.result = HitoeWrapper.ConnectResult.INVALID_PINCODE;
+        final SensorReconnector reconnector = recorder.newReconnector();
+        reconnector.start(SENSOR, PINCODE);
+
+        scheduler.advance(60 * 60_000);
+        assertEquals(1, recorder.dates.size());
+        assertEquals(1, recorder.warnings.size());
+        assertEquals(false, reconnector.getStats().get("reconnecting"));
+        assertEquals(0, scheduler.getPending());
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        final VirtualScheduler scheduler = new VirtualScheduler(0);
+        final Recorder recorder = new Recorder(scheduler);
+        recorder.result = HitoeWrapper.ConnectResult.NOT_FOUND;
+        final SensorReconnector reconnector = recorder.newReconnector();
+        reconnector.start(SENSOR, PINCODE);
+
+        scheduler.advance(10 * 60_000);
+        assertEquals(SensorReconnector.BASE_DELAY, (long) recorder.dates.get(0));
+        for (int i = 1; i < recorder.dates.size(); i++) {
+            // i 回失敗したら BASE_DELAY を i 回倍にしたもの（MAX_DELAY まで）待つ
+            final long expected = Math.min(SensorReconnector.MAX_DELAY, SensorReconnector.BASE_DELAY << i);
+            assertEquals("gap after attempt " + i, expected, recorder.dates.get(i) - recorder.dates.get(i - 1));
+        }
+        assertEquals(SensorReconnector.MAX_DELAY, recorder.dates.get(recorder.dates.size() - 1) - recorder.dates.get(recorder.dates.size() - 2));
+        assertNull(reconnector.getStats().get("lastReconnectTime"));
+
+        // 利用者がつなぎ直したらやめる
+        reconnector.onConnected();
+        final int attempts = recorder.dates.size();
+        scheduler.advance(10 * 60_000);
+        assertEquals(attempts, recorder.dates.size());
+        assertEquals(1, reconnector.getStats().get("reconnects"));
+        assertEquals(10 * 60_000L, reconnector.getStats().get("lastReconnectTime"));
+    }
+
+}
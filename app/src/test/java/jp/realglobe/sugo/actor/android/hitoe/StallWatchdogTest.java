@@ -0,0 +1,60 @@
+package jp.realglobe.sugo.actor.android.hitoe;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StallWatchdogTest {
+
+    @Test
+    public void detectsStall() {
+        final StallWatchdog watchdog = new StallWatchdog(3_000);
+        watchdog.start(0);
+        for (long t = 1_000; t <= 5_000; t += 1_000) {
+            watchdog.sample(t, 70 + (int) (t / 1_000));
+            assertNull(watchdog.check(t));
+        }
+        assertNull(watchdog.check(8_000));
+        assertEquals(StallWatchdog.Condition.STALLED, watchdog.check(8_001));
+        assertEquals(StallWatchdog.Condition.STALLED, watchdog.getCondition());
+        // 失ったままなら何度も知らせない
+        assertNull(watchdog.check(9_000));
+    }
+
+    @Test
+    public void detectsZeroAndFlat() {
+        final StallWatchdog zero = new StallWatchdog(3_000);
+        zero.start(0);
+        for (long t = 1_000; t <= 5_000; t += 1_000) {
+            zero.sample(t, 0);
+        }
+        assertEquals(StallWatchdog.Condition.ZERO, zero.check(5_000));
+
+        final StallWatchdog flat = new StallWatchdog(3_000);
+        flat.start(0);
+        for (long t = 1_000; t <= StallWatchdog.FLAT_DURATION + 2_000; t += 1_000) {
+            flat.sample(t, 72);
+        }
+        assertEquals(StallWatchdog.Condition.FLAT, flat.check(StallWatchdog.FLAT_DURATION + 2_000));
+    }
+
+    @Test
+    public void staysLostUntilRecovered() {
+        final StallWatchdog watchdog = new StallWatchdog(3_000);
+        watchdog.start(0);
+        assertEquals(StallWatchdog.Condition.STALLED, watchdog.check(3_001));
+        watchdog.rearm(3_001);
+        // 猶予の間も失ったまま
+        assertNull(watchdog.check(4_000));
+        assertEquals(StallWatchdog.Condition.STALLED, watchdog.getCondition());
+        // 猶予が切れたらもう一度知らせる
+        assertEquals(StallWatchdog.Condition.STALLED, watchdog.check(6_002));
+        watchdog.rearm(6_002);
+        watchdog.sample(7_000, 70);
+        assertNull(watchdog.check(7_000));
+        assertEquals(StallWatchdog.Condition.OK, watchdog.getCondition());
+        assertEquals(1, watchdog.getStats().get("losses"));
+    }
+
+}
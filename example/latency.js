@@ -0,0 +1,102 @@
+'use strict'
+
+const sugoCaller = require('sugo-caller')
+const co = require('co')
+const asleep = require('asleep')
+
+const HUB = process.env.HUB || 'http://localhost:8080'
+const ACTOR = process.env.ACTOR || 'qq:reporter:1'
+const MODULE = process.env.MODULE || 'reporter'
+const PRINT_INTERVAL = Number(process.env.PRINT_INTERVAL || 10000)
+
+// ヒストグラムの区切り（ミリ秒）
+const BOUNDS = [10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000]
+
+// 段階ごとの経過時間を求める
+// sensor と received は UNIX 時間、それ以外は端末の単調増加時刻
+const STAGES = {
+  delivery: (trace, wall) => wall(trace.decoded) - trace.sensor,
+  staleness: (trace) => trace.enqueued - trace.decoded,
+  schedule: (trace) => trace.enqueued - trace.scheduled,
+  send: (trace) => trace.emitted - trace.enqueued,
+  network: (trace, wall, received) => received - trace.clock,
+  total: (trace, wall, received) => received - trace.sensor
+}
+
+function newHistogram () {
+  return { counts: BOUNDS.map(() => 0).concat([0]), n: 0, sum: 0, max: 0 }
+}
+
+function record (histogram, value) {
+  let i = 0
+  while (i < BOUNDS.length && value > BOUNDS[i]) {
+    i++
+  }
+  histogram.counts[i]++
+  histogram.n++
+  histogram.sum += value
+  histogram.max = Math.max(histogram.max, value)
+}
+
+function print (name, histogram) {
+  if (histogram.n === 0) {
+    return
+  }
+  const cells = histogram.counts.map((count, i) => (i < BOUNDS.length ? '<=' + BOUNDS[i] : '>' + BOUNDS[BOUNDS.length - 1]) + ':' + count)
+  console.log(name + ' n=' + histogram.n + ' avg=' + Math.round(histogram.sum / histogram.n) + ' max=' + histogram.max + ' ' + cells.join(' '))
+}
+
+co(function * () {
+  var caller
+  var actor
+
+  while (true) {
+    try {
+      caller = sugoCaller(HUB + '/callers')
+      actor = yield caller.connect(ACTOR)
+      break
+    } catch (e) {
+      console.log('no target actor')
+    }
+    yield asleep(3000)
+  }
+
+  const histograms = {}
+  for (const name of Object.keys(STAGES)) {
+    histograms[name] = newHistogram()
+  }
+  // 通報ごとに最初の報告だけで測る
+  histograms.alert = newHistogram()
+  const seen = new Set()
+
+  const onReport = (data) => {
+    const received = Date.now()
+    const trace = data.trace
+    if (!trace) {
+      return
+    }
+    const wall = (mark) => trace.clock - (trace.emitted - mark)
+    for (const name of Object.keys(STAGES)) {
+      const value = STAGES[name](trace, wall, received)
+      if (isFinite(value)) {
+        record(histograms[name], value)
+      }
+    }
+    if (trace.detected > 0 && !seen.has(data.id)) {
+      seen.add(data.id)
+      record(histograms.alert, received - wall(trace.detected))
+    }
+  }
+
+  const reporter = actor.get(MODULE)
+  reporter.on('warning', onReport)
+  reporter.on('emergency', onReport)
+
+  while (true) {
+    yield asleep(PRINT_INTERVAL)
+    console.log('---- ' + new Date().toISOString())
+    for (const name of Object.keys(histograms)) {
+      print(name, histograms[name])
+    }
+  }
+}).catch((err) => console.error(err))